@@ -0,0 +1,115 @@
+package jp.jaxa.iss.kibo.rpc.sampleapk;
+
+import android.util.Log;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Assigns the ArUco markers of one frame to the areas a viewpoint should see, in one pass
+ * over any number of markers.
+ *
+ * Markers whose id is in the table go to their area; with several of the same id the
+ * closest wins. Areas left without a marker then take markers the table does not know,
+ * closest first, ordered left to right in the image like the areas are listed. That is
+ * the old position rule (two closest markers left to right, or the closest one for a
+ * single area), kept for marker ids other than the expected ones and for the target (area
+ * 0). A known marker of an area that was not asked for is never used for another area.
+ */
+public class AreaMarkerAssigner {
+    private static final String TAG = "AreaMarkerAssigner";
+
+    public static final int NO_MARKER = -1;
+
+    // Area N carries marker 100 + N
+    private static final int[][] DEFAULT_TABLE = {{101, 1}, {102, 2}, {103, 3}, {104, 4}};
+
+    private final Map<Integer, Integer> areaByMarkerId = new HashMap<Integer, Integer>();
+
+    /**
+     * The mission's marker layout, 101..104 for Areas 1..4.
+     */
+    public AreaMarkerAssigner() {
+        this(DEFAULT_TABLE);
+    }
+
+    /**
+     * @param table rows of {marker id, area id}
+     */
+    public AreaMarkerAssigner(int[][] table) {
+        for (int[] row : table) {
+            areaByMarkerId.put(row[0], row[1]);
+        }
+    }
+
+    /**
+     * @return the area of a marker id, or -1 if the table does not know it
+     */
+    public int areaOf(int markerId) {
+        Integer areaId = areaByMarkerId.get(markerId);
+        return areaId != null ? areaId : -1;
+    }
+
+    /**
+     * @param markerIds ids of the detected markers
+     * @param positions camera-frame translation {x, y, z} of each marker, null if its pose failed
+     * @param areaIds   areas wanted from this frame, in left to right order
+     * @return for each wanted area the index of its marker, or {@link #NO_MARKER}
+     */
+    public int[] assign(int[] markerIds, final double[][] positions, int[] areaIds) {
+        int[] assigned = new int[areaIds.length];
+        Arrays.fill(assigned, NO_MARKER);
+
+        List<Integer> unknown = new ArrayList<Integer>();
+        for (int i = 0; i < markerIds.length; i++) {
+            if (positions[i] == null) {
+                continue;
+            }
+            int areaId = areaOf(markerIds[i]);
+            if (areaId < 0) {
+                unknown.add(i);
+                continue;
+            }
+            for (int a = 0; a < areaIds.length; a++) {
+                if (areaIds[a] == areaId
+                        && (assigned[a] == NO_MARKER || positions[i][2] < positions[assigned[a]][2])) {
+                    assigned[a] = i;
+                }
+            }
+        }
+
+        List<Integer> open = new ArrayList<Integer>();
+        for (int a = 0; a < areaIds.length; a++) {
+            if (assigned[a] == NO_MARKER) {
+                open.add(a);
+            }
+        }
+        if (!open.isEmpty() && !unknown.isEmpty()) {
+            Collections.sort(unknown, new Comparator<Integer>() {
+                @Override
+                public int compare(Integer m1, Integer m2) {
+                    return Double.compare(positions[m1][2], positions[m2][2]);
+                }
+            });
+            List<Integer> closest = new ArrayList<Integer>(unknown.subList(0, Math.min(open.size(), unknown.size())));
+            Collections.sort(closest, new Comparator<Integer>() {
+                @Override
+                public int compare(Integer m1, Integer m2) {
+                    return Double.compare(positions[m1][0], positions[m2][0]);
+                }
+            });
+            // Fewer markers than open areas: the leftmost areas get them
+            for (int k = 0; k < closest.size(); k++) {
+                assigned[open.get(k)] = closest.get(k);
+                Log.d(TAG, "Area " + areaIds[open.get(k)] + " assigned unknown marker "
+                        + markerIds[closest.get(k)] + " by position");
+            }
+        }
+        return assigned;
+    }
+}
@@ -0,0 +1,293 @@
+package jp.jaxa.iss.kibo.rpc.sampleapk;
+
+import android.util.Log;
+
+import org.opencv.core.Mat;
+
+import java.util.ArrayDeque;
+
+/**
+ * Background writer for debug images (api.saveMatImage).
+ *
+ * PNG encoding of full NavCam frames used to run on the mission thread, up to eight
+ * times per area. Images are now copied on enqueue and written by a low-priority
+ * worker thread:
+ * - Level decides what is kept at all (NONE, FINALS_ONLY, ALL)
+ * - Final images (the YOLO inputs) are written before intermediate ones
+ * - Queued pixels are bounded; when full the oldest intermediate image is dropped,
+ *   finals are only dropped to make room for newer finals
+ *
+ * The mission thread never waits on compression or disk, except in {@link #shutdown(long)}.
+ */
+public class DebugImageWriter {
+    private static final String TAG = "DebugImageWriter";
+    // One frame at level ALL from the two-area viewpoint: the 1280x960 undistorted frame and
+    // each area's raw copy (1.2 MB each), annotated marker frame (3.7 MB, RGB) and three
+    // 320x320 crops, ~11.7 MB in all
+    private static final long DEFAULT_MAX_QUEUED_BYTES = 16L * 1024 * 1024;
+
+    public enum Level {
+        NONE,
+        FINALS_ONLY,
+        ALL
+    }
+
+    /**
+     * Destination of the images, normally api::saveMatImage.
+     */
+    public interface Sink {
+        void save(Mat image, String name);
+    }
+
+    private static class Job {
+        final Mat image;
+        final String name;
+        final long bytes;
+
+        Job(Mat image, String name, long bytes) {
+            this.image = image;
+            this.name = name;
+            this.bytes = bytes;
+        }
+    }
+
+    private final Sink sink;
+    private final MatPool matPool;
+    private final Level level;
+    private final long maxQueuedBytes;
+
+    private final Object lock = new Object();
+    private final ArrayDeque<Job> finalJobs = new ArrayDeque<Job>();
+    private final ArrayDeque<Job> debugJobs = new ArrayDeque<Job>();
+    private long queuedBytes = 0;
+    // Job the worker is saving, outside the queues; null when idle
+    private Job inFlight = null;
+    private boolean running = true;
+
+    private int written = 0;
+    private int failed = 0;
+    private int dropped = 0;
+
+    private final Thread worker;
+
+    public DebugImageWriter(Sink sink, MatPool matPool, Level level) {
+        this(sink, matPool, level, DEFAULT_MAX_QUEUED_BYTES);
+    }
+
+    /**
+     * @param sink           where images end up
+     * @param matPool        pool used for the enqueue copies, may be null
+     * @param level          which images are kept
+     * @param maxQueuedBytes upper bound of pixel data waiting to be written
+     */
+    public DebugImageWriter(Sink sink, MatPool matPool, Level level, long maxQueuedBytes) {
+        this.sink = sink;
+        this.matPool = matPool;
+        this.level = level;
+        this.maxQueuedBytes = maxQueuedBytes;
+
+        worker = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                writeLoop();
+            }
+        }, TAG);
+        worker.setDaemon(true);
+        worker.setPriority(Thread.MIN_PRIORITY);
+        if (level != Level.NONE) {
+            worker.start();
+        }
+    }
+
+    public Level getLevel() {
+        return level;
+    }
+
+    /**
+     * Queue an image that is fed to the detector (area_N_final, target_final ...).
+     */
+    public void saveFinal(Mat image, String name) {
+        enqueue(image, name, true);
+    }
+
+    /**
+     * Queue an intermediate image (raw, undistorted, marker frame, warped, CLAHE, binary ...).
+     */
+    public void saveDebug(Mat image, String name) {
+        enqueue(image, name, false);
+    }
+
+    private void enqueue(Mat image, String name, boolean isFinal) {
+        if (level == Level.NONE || (level == Level.FINALS_ONLY && !isFinal)) {
+            return;
+        }
+        if (image == null || image.empty()) {
+            return;
+        }
+
+        long bytes = image.total() * image.elemSize();
+        if (bytes > maxQueuedBytes) {
+            Log.w(TAG, "Image " + name + " larger than queue budget, skipped");
+            return;
+        }
+
+        // Copy outside the lock, the caller may reuse or release its Mat right after this call
+        Mat copy = matPool != null ? matPool.acquire(image.rows(), image.cols(), image.type()) : new Mat();
+        image.copyTo(copy);
+
+        synchronized (lock) {
+            if (!running) {
+                releaseCopy(copy);
+                return;
+            }
+            while (queuedBytes + bytes > maxQueuedBytes && dropOldest(isFinal)) {
+                // keep dropping until the new image fits
+            }
+            if (queuedBytes + bytes > maxQueuedBytes) {
+                // Only finals (or the image being written) left and this is not a final
+                dropped++;
+                Log.d(TAG, "Queue full of final images, dropped " + name);
+                releaseCopy(copy);
+                return;
+            }
+            (isFinal ? finalJobs : debugJobs).addLast(new Job(copy, name, bytes));
+            queuedBytes += bytes;
+            lock.notifyAll();
+        }
+    }
+
+    // Caller holds lock
+    private boolean dropOldest(boolean incomingIsFinal) {
+        Job victim = debugJobs.pollFirst();
+        if (victim == null && incomingIsFinal) {
+            victim = finalJobs.pollFirst();
+        }
+        if (victim == null) {
+            return false;
+        }
+        queuedBytes -= victim.bytes;
+        dropped++;
+        Log.d(TAG, "Queue full, dropped " + victim.name);
+        releaseCopy(victim.image);
+        return true;
+    }
+
+    private void writeLoop() {
+        while (true) {
+            Job job;
+            synchronized (lock) {
+                while (running && finalJobs.isEmpty() && debugJobs.isEmpty()) {
+                    try {
+                        lock.wait();
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                        return;
+                    }
+                }
+                job = finalJobs.pollFirst();
+                if (job == null) {
+                    job = debugJobs.pollFirst();
+                }
+                if (job == null) {
+                    return; // stopped and drained
+                }
+                inFlight = job;
+            }
+
+            boolean saved = false;
+            try {
+                sink.save(job.image, job.name);
+                saved = true;
+            } catch (Exception e) {
+                Log.e(TAG, "Failed to save " + job.name + ": " + e.getMessage(), e);
+            } finally {
+                synchronized (lock) {
+                    if (running) {
+                        releaseCopy(job.image);
+                        queuedBytes -= job.bytes;
+                    } else {
+                        // shutdown already reset the accounting and the pool may be cleared
+                        job.image.release();
+                    }
+                    if (saved) {
+                        written++;
+                    } else {
+                        failed++;
+                    }
+                    inFlight = null;
+                    lock.notifyAll();
+                }
+            }
+        }
+    }
+
+    /**
+     * Wait until everything queued so far is written, at most timeoutMillis.
+     *
+     * @return true if the queue drained in time
+     */
+    public boolean flush(long timeoutMillis) {
+        long deadline = System.currentTimeMillis() + timeoutMillis;
+        synchronized (lock) {
+            while (inFlight != null || !finalJobs.isEmpty() || !debugJobs.isEmpty()) {
+                long remaining = deadline - System.currentTimeMillis();
+                if (remaining <= 0 || !worker.isAlive()) {
+                    return false;
+                }
+                try {
+                    lock.wait(remaining);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    return false;
+                }
+            }
+            return true;
+        }
+    }
+
+    /**
+     * Flush for at most timeoutMillis, then stop the worker and drop whatever is left.
+     * Call at mission end, before the MatPool is cleared. An image still being saved after
+     * the timeout is finished by the worker, which then frees its copy outside the pool.
+     */
+    public void shutdown(long timeoutMillis) {
+        boolean drained = flush(timeoutMillis);
+        String pending = null;
+        synchronized (lock) {
+            running = false;
+            if (inFlight != null) {
+                pending = inFlight.name;
+            }
+            for (Job job : finalJobs) {
+                releaseCopy(job.image);
+                dropped++;
+            }
+            for (Job job : debugJobs) {
+                releaseCopy(job.image);
+                dropped++;
+            }
+            finalJobs.clear();
+            debugJobs.clear();
+            queuedBytes = 0;
+            lock.notifyAll();
+        }
+        if (worker.isAlive()) {
+            try {
+                worker.join(timeoutMillis);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+        String timedOut = pending != null ? " (flush timed out, still writing " + pending + ")" : " (flush timed out)";
+        Log.i(TAG, "Debug image writer stopped - written: " + written + ", failed: " + failed
+                + ", dropped: " + dropped + (drained ? "" : timedOut));
+    }
+
+    private void releaseCopy(Mat copy) {
+        if (matPool != null) {
+            matPool.release(copy);
+        } else {
+            copy.release();
+        }
+    }
+}
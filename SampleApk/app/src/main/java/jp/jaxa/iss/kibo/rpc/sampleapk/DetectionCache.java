@@ -0,0 +1,187 @@
+package jp.jaxa.iss.kibo.rpc.sampleapk;
+
+import org.opencv.core.CvType;
+import org.opencv.core.Mat;
+import org.opencv.core.Size;
+import org.opencv.imgproc.Imgproc;
+
+import java.util.Iterator;
+import java.util.LinkedList;
+
+/**
+ * Recent detection results keyed by a perceptual hash of the model input.
+ *
+ * Re-captures at the same viewpoint (bursts, a revisit of the target area) can give model
+ * inputs that are identical or nearly so, e.g. when the NavCam hands out the same frame
+ * again, and each used to pay a full inference. The input is hashed with a 256-bit
+ * difference hash (dHash): a 16x16 gray thumbnail, one bit per pixel telling whether
+ * brightness rises towards its right neighbour (the last column wraps to the first). A
+ * lookup returns the cached result of the closest input with the same detection parameters
+ * and input size, when its hash differs in at most {@code maxDistance} bits. Least recently
+ * used entries are evicted.
+ *
+ * Binarized inputs amplify sensor noise: in the replay scenes, re-captures of the same board
+ * with noise added were ~100 bits apart, as far as different boards (>= 54), so only a
+ * small tolerance is safe and such re-captures still run inference. With that, only
+ * byte-identical inputs hit, and the mission leaves the cache off. The gray crop before
+ * binarization is steadier but does not separate either: with a bit set only for a rise of
+ * more than 2 levels, re-captures were a median 3 bits apart but up to 41, different boards
+ * at least 11.
+ *
+ * Thread-safe; cached results are shared between callers and must not be modified.
+ */
+public class DetectionCache {
+    static final int HASH_WORDS = 4;
+    // Integer downscale factors of the 320x320 model input keep INTER_AREA on its fast path
+    private static final int THUMBNAIL_SIDE = 16;
+    private static final Size THUMBNAIL_SIZE = new Size(THUMBNAIL_SIDE, THUMBNAIL_SIDE);
+
+    private static class Entry {
+        final long[] hash;
+        final String imageType;
+        final float confThreshold;
+        final float standardNmsThreshold;
+        final float overlapNmsThreshold;
+        final int width;
+        final int height;
+        final YOLODetectionService.EnhancedDetectionResult result;
+
+        Entry(long[] hash, String imageType, float confThreshold, float standardNmsThreshold,
+              float overlapNmsThreshold, int width, int height, YOLODetectionService.EnhancedDetectionResult result) {
+            this.hash = hash;
+            this.imageType = imageType;
+            this.confThreshold = confThreshold;
+            this.standardNmsThreshold = standardNmsThreshold;
+            this.overlapNmsThreshold = overlapNmsThreshold;
+            this.width = width;
+            this.height = height;
+            this.result = result;
+        }
+
+        boolean sameParameters(String imageType, float confThreshold, float standardNmsThreshold,
+                               float overlapNmsThreshold, int width, int height) {
+            return this.imageType.equals(imageType) && this.confThreshold == confThreshold
+                    && this.standardNmsThreshold == standardNmsThreshold
+                    && this.overlapNmsThreshold == overlapNmsThreshold
+                    && this.width == width && this.height == height;
+        }
+    }
+
+    private final int capacity;
+    private final int maxDistance;
+    // Most recently used first
+    private final LinkedList<Entry> entries = new LinkedList<Entry>();
+    private int hits = 0;
+    private int misses = 0;
+
+    /**
+     * @param capacity    results kept
+     * @param maxDistance differing hash bits (of 256) still treated as the same input
+     */
+    public DetectionCache(int capacity, int maxDistance) {
+        if (capacity < 1) {
+            throw new IllegalArgumentException("Cache capacity " + capacity);
+        }
+        this.capacity = capacity;
+        this.maxDistance = maxDistance;
+    }
+
+    /**
+     * 256-bit difference hash of an image with 1, 3 or 4 channels.
+     */
+    public static long[] hash(Mat image) {
+        Mat gray = new Mat();
+        Mat thumbnail = new Mat();
+        try {
+            Imgproc.resize(PreprocessProfiles.toGray(image, gray), thumbnail, THUMBNAIL_SIZE, 0, 0, Imgproc.INTER_AREA);
+            if (thumbnail.depth() != CvType.CV_8U) {
+                thumbnail.convertTo(thumbnail, CvType.CV_8U);
+            }
+            byte[] pixels = new byte[THUMBNAIL_SIDE * THUMBNAIL_SIDE];
+            thumbnail.get(0, 0, pixels);
+            long[] hash = new long[HASH_WORDS];
+            int bit = 0;
+            for (int row = 0; row < THUMBNAIL_SIDE; row++) {
+                for (int col = 0; col < THUMBNAIL_SIDE; col++, bit++) {
+                    int left = pixels[row * THUMBNAIL_SIDE + col] & 0xFF;
+                    int right = pixels[row * THUMBNAIL_SIDE + (col + 1) % THUMBNAIL_SIDE] & 0xFF;
+                    if (right > left) {
+                        hash[bit >>> 6] |= 1L << (bit & 63);
+                    }
+                }
+            }
+            return hash;
+        } finally {
+            gray.release();
+            thumbnail.release();
+        }
+    }
+
+    public static int distance(long[] a, long[] b) {
+        int bits = 0;
+        for (int i = 0; i < HASH_WORDS; i++) {
+            bits += Long.bitCount(a[i] ^ b[i]);
+        }
+        return bits;
+    }
+
+    /**
+     * @return the cached result of the closest matching input, or null
+     */
+    public synchronized YOLODetectionService.EnhancedDetectionResult get(long[] hash, String imageType,
+                                                                         float confThreshold,
+                                                                         float standardNmsThreshold,
+                                                                         float overlapNmsThreshold,
+                                                                         int width, int height) {
+        Entry best = null;
+        int bestDistance = maxDistance + 1;
+        for (Entry entry : entries) {
+            if (entry.sameParameters(imageType, confThreshold, standardNmsThreshold, overlapNmsThreshold, width, height)) {
+                int d = distance(hash, entry.hash);
+                if (d < bestDistance) {
+                    best = entry;
+                    bestDistance = d;
+                }
+            }
+        }
+        if (best == null) {
+            misses++;
+            return null;
+        }
+        hits++;
+        entries.remove(best);
+        entries.addFirst(best);
+        return best.result;
+    }
+
+    public synchronized void put(long[] hash, String imageType, float confThreshold, float standardNmsThreshold,
+                                 float overlapNmsThreshold, int width, int height,
+                                 YOLODetectionService.EnhancedDetectionResult result) {
+        // A near-identical input replaces the older entry instead of crowding the cache
+        Iterator<Entry> it = entries.iterator();
+        while (it.hasNext()) {
+            Entry entry = it.next();
+            if (entry.sameParameters(imageType, confThreshold, standardNmsThreshold, overlapNmsThreshold, width, height)
+                    && distance(hash, entry.hash) <= maxDistance) {
+                it.remove();
+            }
+        }
+        entries.addFirst(new Entry(hash, imageType, confThreshold, standardNmsThreshold, overlapNmsThreshold,
+                width, height, result));
+        while (entries.size() > capacity) {
+            entries.removeLast();
+        }
+    }
+
+    public synchronized int getHits() {
+        return hits;
+    }
+
+    public synchronized int getMisses() {
+        return misses;
+    }
+
+    public synchronized void clear() {
+        entries.clear();
+    }
+}
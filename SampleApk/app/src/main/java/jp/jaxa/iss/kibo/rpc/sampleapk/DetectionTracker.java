@@ -0,0 +1,190 @@
+package jp.jaxa.iss.kibo.rpc.sampleapk;
+
+import org.opencv.core.Core;
+import org.opencv.core.Mat;
+import org.opencv.core.Rect;
+import org.opencv.core.Size;
+import org.opencv.imgproc.Imgproc;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Detect-then-track over the frames one viewpoint takes of an area.
+ *
+ * A keyframe runs the full detection; the tracker keeps its board crop and final boxes.
+ * On each following frame every box is searched for by normalized template correlation
+ * within a margin around its keyframe position, and the best match is associated with the
+ * keyframe box by IoU. When all boxes are found again the frame reuses the keyframe's
+ * detection instead of running the model. A box whose correlation or IoU falls below the
+ * limits means the board drifted, and the caller detects that frame, which becomes the new
+ * keyframe. A keyframe without boxes or with a box below the confidence trigger is never
+ * tracked, and a keyframe is refreshed after {@code maxTrackedFrames} frames.
+ *
+ * Correlation runs on the gray crop before enhancement, lightly blurred: binarization turns
+ * sensor noise into texture, and in the replay scenes noisy re-captures of the same board
+ * correlated mostly above 0.75 in gray but often below 0.3 once binarized.
+ *
+ * Not thread-safe; a tracker follows one area.
+ */
+public class DetectionTracker {
+    private static final String TAG = "DetectionTracker";
+
+    private static final Size BLUR_SIZE = new Size(5, 5);
+    // Marker pose jitter moves the crop by a few pixels between frames of a burst
+    private static final int SEARCH_MARGIN = 16;
+    // Smaller boxes carry too little texture to correlate reliably
+    private static final int MIN_TEMPLATE_SIDE = 8;
+
+    private final int areaId;
+    private final double minCorrelation;
+    private final double minIou;
+    private final float minKeyframeConfidence;
+    private final int maxTrackedFrames;
+
+    // Blurred keyframe crop and the current frame, reused between frames
+    private final Mat keyframe = new Mat();
+    private final Mat frame = new Mat();
+    private final Mat response = new Mat();
+    private final List<Rect> boxes = new ArrayList<Rect>();
+    private VisionPipeline.ItemDetection detection;
+    private boolean trackable = false;
+    private int trackedFrames = 0;
+
+    private int keyframeCount = 0;
+    private int trackedCount = 0;
+
+    /**
+     * @param minCorrelation        TM_CCOEFF_NORMED score a box needs in the new frame
+     * @param minIou                overlap of the found box with its keyframe box
+     * @param minKeyframeConfidence keyframes with a weaker box are detected again every frame
+     * @param maxTrackedFrames      frames reusing one keyframe before it is refreshed
+     */
+    public DetectionTracker(int areaId, double minCorrelation, double minIou, float minKeyframeConfidence,
+                            int maxTrackedFrames) {
+        this.areaId = areaId;
+        this.minCorrelation = minCorrelation;
+        this.minIou = minIou;
+        this.minKeyframeConfidence = minKeyframeConfidence;
+        this.maxTrackedFrames = maxTrackedFrames;
+    }
+
+    /**
+     * Start tracking from a fully detected frame.
+     *
+     * @param gray      board crop before enhancement, in the model input's geometry; null
+     *                  leaves the area untracked
+     * @param result    the frame's YOLO result, boxes in model input pixels
+     * @param detection what the following tracked frames report
+     */
+    public void setKeyframe(Mat gray, YOLODetectionService.EnhancedDetectionResult result,
+                            VisionPipeline.ItemDetection detection) {
+        this.detection = detection;
+        trackedFrames = 0;
+        keyframeCount++;
+        boxes.clear();
+        trackable = false;
+        if (gray == null || result.getDetections().isEmpty()) {
+            return;
+        }
+        for (YOLODetectionService.FinalDetection box : result.getDetections()) {
+            Rect rect = clip(new Rect(
+                    Math.round(box.centerX - box.width / 2), Math.round(box.centerY - box.height / 2),
+                    Math.round(box.width), Math.round(box.height)), gray.cols(), gray.rows());
+            if (box.confidence < minKeyframeConfidence
+                    || rect.width < MIN_TEMPLATE_SIDE || rect.height < MIN_TEMPLATE_SIDE) {
+                MissionLog.d(TAG, "Area {}: keyframe not tracked, box {}", areaId, box);
+                boxes.clear();
+                return;
+            }
+            boxes.add(rect);
+        }
+        Imgproc.GaussianBlur(gray, keyframe, BLUR_SIZE, 0);
+        trackable = true;
+    }
+
+    /**
+     * Follow the keyframe's boxes into a new frame.
+     *
+     * @param gray board crop before enhancement, like the keyframe's
+     * @return the keyframe's detection when every box was found, null when the frame needs
+     * a full detection
+     */
+    public VisionPipeline.ItemDetection track(Mat gray) {
+        if (!trackable || gray == null || trackedFrames >= maxTrackedFrames
+                || gray.cols() != keyframe.cols() || gray.rows() != keyframe.rows()) {
+            return null;
+        }
+        Imgproc.GaussianBlur(gray, frame, BLUR_SIZE, 0);
+        for (int i = 0; i < boxes.size(); i++) {
+            Rect box = boxes.get(i);
+            Rect window = clip(new Rect(box.x - SEARCH_MARGIN, box.y - SEARCH_MARGIN,
+                    box.width + 2 * SEARCH_MARGIN, box.height + 2 * SEARCH_MARGIN), frame.cols(), frame.rows());
+            Mat template = keyframe.submat(box);
+            Mat search = frame.submat(window);
+            Core.MinMaxLocResult best;
+            try {
+                Imgproc.matchTemplate(search, template, response, Imgproc.TM_CCOEFF_NORMED);
+                best = Core.minMaxLoc(response);
+            } finally {
+                template.release();
+                search.release();
+            }
+            Rect found = new Rect(window.x + (int) best.maxLoc.x, window.y + (int) best.maxLoc.y,
+                    box.width, box.height);
+            double iou = iou(box, found);
+            // A flat template scores NaN, which must not pass
+            if (!(best.maxVal >= minCorrelation) || iou < minIou) {
+                MissionLog.event(MissionLog.Event.TRACK_LOST, areaId, i, (float) best.maxVal);
+                MissionLog.d(TAG, "Area {}: box {} lost, correlation {}, IoU {}", areaId, i, best.maxVal, iou);
+                return null;
+            }
+        }
+        trackedFrames++;
+        trackedCount++;
+        return detection;
+    }
+
+    /**
+     * Forget the keyframe, e.g. before the robot moves to another viewpoint.
+     */
+    public void reset() {
+        detection = null;
+        boxes.clear();
+        trackable = false;
+        trackedFrames = 0;
+    }
+
+    public int getKeyframeCount() {
+        return keyframeCount;
+    }
+
+    public int getTrackedCount() {
+        return trackedCount;
+    }
+
+    public void release() {
+        reset();
+        keyframe.release();
+        frame.release();
+        response.release();
+    }
+
+    static double iou(Rect a, Rect b) {
+        int width = Math.min(a.x + a.width, b.x + b.width) - Math.max(a.x, b.x);
+        int height = Math.min(a.y + a.height, b.y + b.height) - Math.max(a.y, b.y);
+        if (width <= 0 || height <= 0) {
+            return 0;
+        }
+        double intersection = (double) width * height;
+        return intersection / ((double) a.width * a.height + (double) b.width * b.height - intersection);
+    }
+
+    private static Rect clip(Rect rect, int cols, int rows) {
+        int x0 = Math.max(0, rect.x);
+        int y0 = Math.max(0, rect.y);
+        int x1 = Math.min(cols, rect.x + rect.width);
+        int y1 = Math.min(rows, rect.y + rect.height);
+        return new Rect(x0, y0, Math.max(0, x1 - x0), Math.max(0, y1 - y0));
+    }
+}
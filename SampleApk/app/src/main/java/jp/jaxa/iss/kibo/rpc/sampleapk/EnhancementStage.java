@@ -0,0 +1,211 @@
+package jp.jaxa.iss.kibo.rpc.sampleapk;
+
+import android.util.Log;
+
+import org.opencv.core.Core;
+import org.opencv.core.CvType;
+import org.opencv.core.Mat;
+import org.opencv.core.Size;
+import org.opencv.imgproc.CLAHE;
+import org.opencv.imgproc.Imgproc;
+
+import java.util.Arrays;
+
+/**
+ * Contrast enhancement + binarization stage for area crops, built once per mission.
+ *
+ * Holds a preconfigured CLAHE operator and reusable LUT / statistics buffers instead of
+ * calling Imgproc.createCLAHE() on every crop. Two paths:
+ * - ADAPTIVE: CLAHE then Gaussian adaptive threshold (the original pipeline)
+ * - FAST: LUT contrast stretch between the 2nd and 98th percentile, then global Otsu
+ *
+ * In AUTO mode the path is picked per frame from a histogram spread and a coarse
+ * tile-mean map: evenly lit frames with enough contrast take the FAST path, unevenly
+ * lit or flat ones still get CLAHE + adaptive threshold.
+ *
+ * Not thread-safe, one instance per pipeline thread.
+ */
+public class EnhancementStage {
+    private static final String TAG = "EnhancementStage";
+
+    public enum Mode {
+        ADAPTIVE,
+        FAST,
+        AUTO
+    }
+
+    private static final double CLAHE_CLIP_LIMIT = 2.0;
+    private static final Size CLAHE_TILE_GRID = new Size(8, 8);
+    // Adaptive threshold block size tuned on 640 px wide crops, scaled with the crop
+    private static final int REFERENCE_BLOCK_SIZE = 11;
+    private static final double ADAPTIVE_C = 2;
+
+    // AUTO mode defaults
+    private static final int DEFAULT_MIN_FAST_SPREAD = 96;       // p98 - p2 gray levels
+    private static final double DEFAULT_MAX_TILE_MEAN_RANGE = 40; // max - min of 4x4 tile means
+    private static final int STAT_TILES = 4;
+
+    private final Mode mode;
+    private final int minFastSpread;
+    private final double maxTileMeanRange;
+
+    private final CLAHE clahe;
+    private final Mat lut = new Mat(1, 256, CvType.CV_8UC1);
+    private final byte[] lutData = new byte[256];
+    private final int[] histogram = new int[256];
+    private final Mat tileMeans = new Mat();
+    private final Mat tileMeans64 = new Mat();
+    private byte[] pixelBuffer = new byte[0];
+    private final double[] tileBuffer = new double[STAT_TILES * STAT_TILES];
+
+    private int lastLow;
+    private int lastHigh;
+    private int fastCount = 0;
+    private int adaptiveCount = 0;
+
+    public EnhancementStage(Mode mode) {
+        this(mode, DEFAULT_MIN_FAST_SPREAD, DEFAULT_MAX_TILE_MEAN_RANGE);
+    }
+
+    public EnhancementStage(Mode mode, int minFastSpread, double maxTileMeanRange) {
+        this.mode = mode;
+        this.minFastSpread = minFastSpread;
+        this.maxTileMeanRange = maxTileMeanRange;
+
+        clahe = Imgproc.createCLAHE();
+        clahe.setClipLimit(CLAHE_CLIP_LIMIT);
+        clahe.setTilesGridSize(CLAHE_TILE_GRID);
+    }
+
+    /**
+     * CLAHE only, with the shared operator.
+     */
+    public void applyClahe(Mat gray, Mat dst) {
+        clahe.apply(gray, dst);
+    }
+
+    /**
+     * Enhance and binarize a single channel 8-bit crop that is already at model resolution.
+     *
+     * @param gray          CV_8UC1 input
+     * @param enhancedOut   receives the CLAHE (ADAPTIVE) or stretched (FAST) image
+     * @param binaryOut     receives the binary image
+     * @param nominalWidth  crop width the thresholds were tuned for (e.g. 640), scales the block size
+     * @return true if the FAST path was taken
+     */
+    public boolean enhanceAndBinarize(Mat gray, Mat enhancedOut, Mat binaryOut, double nominalWidth) {
+        boolean useFast;
+        if (mode == Mode.FAST) {
+            computeHistogram(gray);
+            useFast = true;
+        } else if (mode == Mode.ADAPTIVE) {
+            useFast = false;
+        } else {
+            useFast = isEvenAndContrasted(gray);
+        }
+
+        if (useFast) {
+            fastCount++;
+            buildStretchLut(lastLow, lastHigh);
+            Core.LUT(gray, lut, enhancedOut);
+            Imgproc.threshold(enhancedOut, binaryOut, 0, 255, Imgproc.THRESH_BINARY | Imgproc.THRESH_OTSU);
+        } else {
+            adaptiveCount++;
+            clahe.apply(gray, enhancedOut);
+            Imgproc.adaptiveThreshold(enhancedOut, binaryOut, 255,
+                    Imgproc.ADAPTIVE_THRESH_GAUSSIAN_C, Imgproc.THRESH_BINARY,
+                    scaledBlockSize(gray.cols(), nominalWidth), ADAPTIVE_C);
+        }
+        return useFast;
+    }
+
+    public int getFastCount() {
+        return fastCount;
+    }
+
+    public int getAdaptiveCount() {
+        return adaptiveCount;
+    }
+
+    /**
+     * Percentile spread of the last analysed frame (p98 - p2).
+     */
+    public int getLastSpread() {
+        return lastHigh - lastLow;
+    }
+
+    public void release() {
+        lut.release();
+        tileMeans.release();
+        tileMeans64.release();
+        Log.i(TAG, "Enhancement paths used - fast: " + fastCount + ", adaptive: " + adaptiveCount);
+    }
+
+    private boolean isEvenAndContrasted(Mat gray) {
+        computeHistogram(gray);
+        if (lastHigh - lastLow < minFastSpread) {
+            return false;
+        }
+
+        // Coarse illumination map: INTER_AREA down to STAT_TILES x STAT_TILES gives tile means
+        Imgproc.resize(gray, tileMeans, new Size(STAT_TILES, STAT_TILES), 0, 0, Imgproc.INTER_AREA);
+        tileMeans.convertTo(tileMeans64, CvType.CV_64F);
+        tileMeans64.get(0, 0, tileBuffer);
+
+        double min = Double.MAX_VALUE;
+        double max = -Double.MAX_VALUE;
+        for (double v : tileBuffer) {
+            min = Math.min(min, v);
+            max = Math.max(max, v);
+        }
+        return max - min <= maxTileMeanRange;
+    }
+
+    private void computeHistogram(Mat gray) {
+        int total = (int) gray.total();
+        if (pixelBuffer.length < total) {
+            pixelBuffer = new byte[total];
+        }
+        gray.get(0, 0, pixelBuffer);
+
+        Arrays.fill(histogram, 0);
+        for (int i = 0; i < total; i++) {
+            histogram[pixelBuffer[i] & 0xFF]++;
+        }
+
+        int lowCount = total / 50;        // 2nd percentile
+        int highCount = total - total / 50; // 98th percentile
+        int cumulative = 0;
+        lastLow = 0;
+        lastHigh = 255;
+        boolean lowFound = false;
+        for (int v = 0; v < 256; v++) {
+            cumulative += histogram[v];
+            if (!lowFound && cumulative > lowCount) {
+                lastLow = v;
+                lowFound = true;
+            }
+            if (cumulative >= highCount) {
+                lastHigh = v;
+                break;
+            }
+        }
+    }
+
+    private void buildStretchLut(int low, int high) {
+        int range = Math.max(1, high - low);
+        for (int v = 0; v < 256; v++) {
+            int stretched = (v - low) * 255 / range;
+            lutData[v] = (byte) Math.max(0, Math.min(255, stretched));
+        }
+        lut.put(0, 0, lutData);
+    }
+
+    private static int scaledBlockSize(int width, double nominalWidth) {
+        int block = (int) Math.round(REFERENCE_BLOCK_SIZE * width / nominalWidth);
+        if (block % 2 == 0) {
+            block++;
+        }
+        return Math.max(3, block);
+    }
+}
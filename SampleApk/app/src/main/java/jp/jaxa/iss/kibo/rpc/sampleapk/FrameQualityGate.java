@@ -0,0 +1,152 @@
+package jp.jaxa.iss.kibo.rpc.sampleapk;
+
+import org.opencv.core.Core;
+import org.opencv.core.CvType;
+import org.opencv.core.Mat;
+import org.opencv.core.MatOfDouble;
+import org.opencv.core.MatOfFloat;
+import org.opencv.core.MatOfInt;
+import org.opencv.core.Size;
+import org.opencv.imgproc.Imgproc;
+
+import java.util.Collections;
+
+/**
+ * Cheap blur / exposure check of a raw NavCam frame, run before undistortion so a bad
+ * frame is re-captured instead of going through ArUco, cropping and YOLO for nothing.
+ *
+ * The frame is scored on a downscaled gray copy:
+ * - sharpness: variance of the Laplacian; motion blur and defocus flatten it, while the
+ *   downscale averages most sensor noise away
+ * - exposure: mean brightness and the spread between the 5th and 95th brightness
+ *   percentiles; an under- or overexposed frame has a narrow or shifted histogram
+ *
+ * Not thread-safe, owned by one {@link VisionPipeline}.
+ */
+public class FrameQualityGate {
+    private static final double DEFAULT_MIN_SHARPNESS = 10.0;
+    private static final double DEFAULT_MIN_BRIGHTNESS = 25.0;
+    private static final double DEFAULT_MAX_BRIGHTNESS = 230.0;
+    private static final double DEFAULT_MIN_SPREAD = 10.0;
+    // Half the NavCam resolution keeps a few pixels of blur visible at ~1/4 of the cost
+    private static final Size DEFAULT_SCORE_SIZE = new Size(640, 480);
+
+    private static final int HISTOGRAM_BINS = 256;
+    private static final double LOW_PERCENTILE = 0.05;
+    private static final double HIGH_PERCENTILE = 0.95;
+
+    /**
+     * Scores of one frame, all on 8-bit gray levels.
+     */
+    public static class Score {
+        public final double sharpness;
+        public final double brightness;
+        public final double spread;
+        public final boolean accepted;
+        // Why the frame was rejected, null when accepted
+        public final String reason;
+
+        Score(double sharpness, double brightness, double spread, String reason) {
+            this.sharpness = sharpness;
+            this.brightness = brightness;
+            this.spread = spread;
+            this.accepted = reason == null;
+            this.reason = reason;
+        }
+
+        @Override
+        public String toString() {
+            return String.format("sharpness %.1f, brightness %.1f, spread %.0f%s",
+                    sharpness, brightness, spread, accepted ? "" : " (" + reason + ")");
+        }
+    }
+
+    private final double minSharpness;
+    private final double minBrightness;
+    private final double maxBrightness;
+    private final double minSpread;
+    private final Size scoreSize;
+
+    private final Mat gray = new Mat();
+    private final Mat small = new Mat();
+    private final Mat laplacian = new Mat();
+    private final Mat histogram = new Mat();
+    private final Mat noMask = new Mat();
+    private final MatOfDouble mean = new MatOfDouble();
+    private final MatOfDouble stdDev = new MatOfDouble();
+    private final MatOfInt channels = new MatOfInt(0);
+    private final MatOfInt histSize = new MatOfInt(HISTOGRAM_BINS);
+    private final MatOfFloat ranges = new MatOfFloat(0f, 256f);
+    private final float[] bins = new float[HISTOGRAM_BINS];
+
+    public FrameQualityGate() {
+        this(DEFAULT_MIN_SHARPNESS, DEFAULT_MIN_BRIGHTNESS, DEFAULT_MAX_BRIGHTNESS, DEFAULT_MIN_SPREAD,
+                DEFAULT_SCORE_SIZE);
+    }
+
+    public FrameQualityGate(double minSharpness, double minBrightness, double maxBrightness,
+                            double minSpread, Size scoreSize) {
+        this.minSharpness = minSharpness;
+        this.minBrightness = minBrightness;
+        this.maxBrightness = maxBrightness;
+        this.minSpread = minSpread;
+        this.scoreSize = scoreSize;
+    }
+
+    public Score score(Mat frame) {
+        Mat source = PreprocessProfiles.toGray(frame, gray);
+        if (source.cols() > scoreSize.width || source.rows() > scoreSize.height) {
+            Imgproc.resize(source, small, scoreSize, 0, 0, Imgproc.INTER_AREA);
+            source = small;
+        }
+
+        Imgproc.Laplacian(source, laplacian, CvType.CV_16S);
+        Core.meanStdDev(laplacian, mean, stdDev);
+        double deviation = stdDev.toArray()[0];
+        double sharpness = deviation * deviation;
+
+        Imgproc.calcHist(Collections.singletonList(source), channels, noMask, histogram, histSize, ranges);
+        histogram.get(0, 0, bins);
+        double total = source.total();
+        int low = -1;
+        int high = HISTOGRAM_BINS - 1;
+        double cumulative = 0;
+        for (int b = 0; b < HISTOGRAM_BINS; b++) {
+            cumulative += bins[b];
+            if (low < 0 && cumulative >= LOW_PERCENTILE * total) {
+                low = b;
+            }
+            if (cumulative >= HIGH_PERCENTILE * total) {
+                high = b;
+                break;
+            }
+        }
+        double brightness = Core.mean(source).val[0];
+        double spread = high - Math.max(0, low);
+
+        String reason = null;
+        if (brightness < minBrightness) {
+            reason = "underexposed";
+        } else if (brightness > maxBrightness) {
+            reason = "overexposed";
+        } else if (spread < minSpread) {
+            reason = "low contrast";
+        } else if (sharpness < minSharpness) {
+            reason = "blurred";
+        }
+        return new Score(sharpness, brightness, spread, reason);
+    }
+
+    public void release() {
+        gray.release();
+        small.release();
+        laplacian.release();
+        histogram.release();
+        noMask.release();
+        mean.release();
+        stdDev.release();
+        channels.release();
+        histSize.release();
+        ranges.release();
+    }
+}
@@ -0,0 +1,196 @@
+package jp.jaxa.iss.kibo.rpc.sampleapk;
+
+import android.util.Log;
+
+import org.opencv.core.Mat;
+import org.opencv.core.Size;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Size- and type-keyed pool of OpenCV Mats for the vision pipeline.
+ *
+ * Every helper in the mission path used to allocate fresh Mats (gray, warped, CLAHE,
+ * binary, final, marker frame clones, 1x1 id Mats ...) and release them by hand on
+ * some paths only. The pool hands out Mats whose native buffers are recycled between
+ * areas, and {@link Scope} gives a Java 7 friendly acquire/release block:
+ *
+ * <pre>
+ * MatPool.Scope scope = matPool.openScope();
+ * try {
+ *     Mat gray = scope.acquire(image.size(), CvType.CV_8UC1);
+ *     Mat transform = scope.track(Imgproc.getPerspectiveTransform(src, dst));
+ *     ...
+ *     return scope.detach(result);
+ * } finally {
+ *     scope.close();
+ * }
+ * </pre>
+ *
+ * Thread-safe: the pool itself is synchronized, a Scope must stay on one thread.
+ */
+public class MatPool {
+    private static final String TAG = "MatPool";
+    private static final int DEFAULT_MAX_PER_KEY = 4;
+
+    private final Map<Long, ArrayDeque<Mat>> freeMats = new HashMap<Long, ArrayDeque<Mat>>();
+    private final int maxPerKey;
+
+    private int hits = 0;
+    private int misses = 0;
+    private int discarded = 0;
+
+    public MatPool() {
+        this(DEFAULT_MAX_PER_KEY);
+    }
+
+    public MatPool(int maxPerKey) {
+        this.maxPerKey = maxPerKey;
+    }
+
+    /**
+     * Get a Mat of the given geometry, recycled if one is free.
+     * Content is undefined, callers must overwrite it.
+     */
+    public synchronized Mat acquire(int rows, int cols, int type) {
+        ArrayDeque<Mat> free = freeMats.get(key(rows, cols, type));
+        if (free != null && !free.isEmpty()) {
+            hits++;
+            return free.pollFirst();
+        }
+        misses++;
+        return new Mat(rows, cols, type);
+    }
+
+    public Mat acquire(Size size, int type) {
+        return acquire((int) size.height, (int) size.width, type);
+    }
+
+    /**
+     * Return a Mat to the pool. Empty Mats and Mats beyond the per-key limit are
+     * released natively instead.
+     */
+    public synchronized void release(Mat mat) {
+        if (mat == null) {
+            return;
+        }
+        // Submatrices share their parent's buffer, pooling them would alias live data.
+        if (mat.empty() || mat.isSubmatrix() || !mat.isContinuous() || mat.dataAddr() == 0) {
+            mat.release();
+            return;
+        }
+        long key = key(mat.rows(), mat.cols(), mat.type());
+        ArrayDeque<Mat> free = freeMats.get(key);
+        if (free == null) {
+            free = new ArrayDeque<Mat>();
+            freeMats.put(key, free);
+        }
+        if (free.contains(mat)) {
+            return;
+        }
+        if (free.size() < maxPerKey) {
+            free.addLast(mat);
+        } else {
+            discarded++;
+            mat.release();
+        }
+    }
+
+    /**
+     * Release every pooled Mat natively. Call at mission end.
+     */
+    public synchronized void clear() {
+        for (ArrayDeque<Mat> free : freeMats.values()) {
+            for (Mat mat : free) {
+                mat.release();
+            }
+        }
+        freeMats.clear();
+        Log.i(TAG, "Pool cleared - hits: " + hits + ", misses: " + misses + ", discarded: " + discarded);
+    }
+
+    public Scope openScope() {
+        return new Scope();
+    }
+
+    private static long key(int rows, int cols, int type) {
+        return ((long) rows << 40) | ((long) cols << 16) | (type & 0xFFFF);
+    }
+
+    /**
+     * Tracks Mats acquired or created inside one block of work and returns them all
+     * to the pool on {@link #close()}, whichever path (return, early exit, exception)
+     * leaves the block.
+     */
+    public class Scope {
+        private final List<Mat> owned = new ArrayList<Mat>();
+
+        private Scope() {
+        }
+
+        public Mat acquire(int rows, int cols, int type) {
+            return track(MatPool.this.acquire(rows, cols, type));
+        }
+
+        public Mat acquire(Size size, int type) {
+            return track(MatPool.this.acquire(size, type));
+        }
+
+        /**
+         * Empty Mat header for OpenCV outputs whose geometry is decided by the call.
+         * Its buffer still goes back to the pool on close.
+         */
+        public Mat acquire() {
+            return track(new Mat());
+        }
+
+        /**
+         * Take ownership of a Mat created elsewhere (api.getMatNavCam(), getPerspectiveTransform ...).
+         */
+        public <T extends Mat> T track(T mat) {
+            if (mat != null) {
+                owned.add(mat);
+            }
+            return mat;
+        }
+
+        public void trackAll(List<? extends Mat> mats) {
+            if (mats != null) {
+                for (Mat mat : mats) {
+                    track(mat);
+                }
+            }
+        }
+
+        /**
+         * Hand a Mat out of the scope; the caller becomes responsible for releasing it.
+         */
+        public <T extends Mat> T detach(T mat) {
+            for (int i = owned.size() - 1; i >= 0; i--) {
+                if (owned.get(i) == mat) {
+                    owned.remove(i);
+                    break;
+                }
+            }
+            return mat;
+        }
+
+        public void close() {
+            // The same Mat may be tracked twice (e.g. a corner list that also holds a detached
+            // marker), only hand it back once.
+            Map<Mat, Boolean> seen = new IdentityHashMap<Mat, Boolean>();
+            for (int i = owned.size() - 1; i >= 0; i--) {
+                Mat mat = owned.get(i);
+                if (seen.put(mat, Boolean.TRUE) == null) {
+                    MatPool.this.release(mat);
+                }
+            }
+            owned.clear();
+        }
+    }
+}
@@ -0,0 +1,269 @@
+package jp.jaxa.iss.kibo.rpc.sampleapk;
+
+import android.util.Log;
+
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * What the mission learned about the areas, keyed by YOLO class id.
+ *
+ * Per area the store keeps a class bitmask of the treasures and of the landmarks seen,
+ * the landmark counts and the best confidence per class, all in flat atomic arrays, so
+ * detection workers can record areas while the mission thread reads without a lock. The
+ * treasure to area index is kept up to date on every record: the area holding a treasure
+ * is the one that saw it with the highest confidence (the lowest area on a tie), and the
+ * target lookup at the astronaut is a single array read.
+ *
+ * An area is normally recorded once; a later record of the same area adds its classes,
+ * replaces the counts of the landmarks it saw and keeps the higher confidences. Name views
+ * for logging are built on demand.
+ */
+public class MissionKnowledge {
+    private static final String TAG = "MissionKnowledge";
+
+    public static final int NO_AREA = 0;
+
+    private final int areaCount;
+    private final String[] classNames;
+    // Built once in the constructor, only read afterwards
+    private final Map<String, Integer> classIds = new HashMap<String, Integer>();
+    private final int landmarkMask;
+
+    // Index areaId - 1
+    private final AtomicIntegerArray treasureBits;
+    private final AtomicIntegerArray landmarkBits;
+    // Index (areaId - 1) * classes + classId; confidences as Float.floatToIntBits
+    private final AtomicIntegerArray quantities;
+    private final AtomicIntegerArray confidences;
+    // Index classId: confidence bits << 32 | area id, 0 while no area holds the treasure
+    private final AtomicLongArray treasureArea;
+
+    private final AtomicInteger foundTreasureBits = new AtomicInteger();
+    private final AtomicInteger foundLandmarkBits = new AtomicInteger();
+    private final AtomicInteger reportedLandmarkBits = new AtomicInteger();
+
+    /**
+     * @param areaCount areas 1..areaCount of the mission
+     */
+    public MissionKnowledge(int areaCount) {
+        this.areaCount = areaCount;
+        this.classNames = YOLODetectionService.getClassNames();
+        if (classNames.length > Integer.SIZE) {
+            throw new IllegalArgumentException(classNames.length + " classes do not fit a bitmask");
+        }
+        int landmarks = 0;
+        for (int classId = 0; classId < classNames.length; classId++) {
+            classIds.put(classNames[classId], classId);
+            if (!YOLODetectionService.isTreasure(classId)) {
+                landmarks |= 1 << classId;
+            }
+        }
+        this.landmarkMask = landmarks;
+
+        treasureBits = new AtomicIntegerArray(areaCount);
+        landmarkBits = new AtomicIntegerArray(areaCount);
+        quantities = new AtomicIntegerArray(areaCount * classNames.length);
+        confidences = new AtomicIntegerArray(areaCount * classNames.length);
+        treasureArea = new AtomicLongArray(classNames.length);
+    }
+
+    /**
+     * @return class id of a YOLO class name, -1 if the model does not know it
+     */
+    public int classId(String className) {
+        Integer classId = className != null ? classIds.get(className) : null;
+        return classId != null ? classId : -1;
+    }
+
+    /**
+     * Record what was detected in an area. Safe to call from any thread.
+     */
+    public void recordArea(int areaId, VisionPipeline.ItemDetection detection) {
+        int area = areaIndex(areaId);
+        int treasures = 0;
+        for (String name : detection.treasureTypes) {
+            int classId = classId(name);
+            if (classId >= 0) {
+                treasures |= 1 << classId;
+                float confidence = detection.getConfidence(classId);
+                raiseConfidence(area, classId, confidence);
+                indexTreasure(classId, areaId, confidence);
+            }
+        }
+        int landmarks = 0;
+        for (Map.Entry<String, Integer> entry : detection.landmarkQuantities.entrySet()) {
+            int classId = classId(entry.getKey());
+            if (classId >= 0) {
+                landmarks |= 1 << classId;
+                quantities.set(slot(area, classId), entry.getValue());
+                raiseConfidence(area, classId, detection.getConfidence(classId));
+            }
+        }
+        int top = classId(detection.highestConfidenceLandmark);
+
+        orBits(treasureBits, area, treasures);
+        orBits(landmarkBits, area, landmarks);
+        orBits(foundTreasureBits, treasures);
+        // The top landmark stands for the area when YOLO picked one
+        orBits(foundLandmarkBits, top >= 0 ? 1 << top : landmarks);
+    }
+
+    /**
+     * @return the area holding a treasure, {@link #NO_AREA} if none saw it
+     */
+    public int areaOfTreasure(String treasureName) {
+        int classId = classId(treasureName);
+        return classId >= 0 ? (int) treasureArea.get(classId) : NO_AREA;
+    }
+
+    public float getConfidence(int areaId, int classId) {
+        return Float.intBitsToFloat(confidences.get(slot(areaIndex(areaId), classId)));
+    }
+
+    /**
+     * @return the treasures seen in an area, by name
+     */
+    public Set<String> getTreasureNames(int areaId) {
+        return names(treasureBits.get(areaIndex(areaId)));
+    }
+
+    /**
+     * @return landmark counts of an area by name, in class id order
+     */
+    public Map<String, Integer> getLandmarkQuantities(int areaId) {
+        int area = areaIndex(areaId);
+        int bits = landmarkBits.get(area);
+        Map<String, Integer> named = new LinkedHashMap<String, Integer>();
+        for (int classId = 0; classId < classNames.length; classId++) {
+            if ((bits & 1 << classId) != 0) {
+                named.put(classNames[classId], quantities.get(slot(area, classId)));
+            }
+        }
+        return named;
+    }
+
+    public Set<String> getFoundTreasures() {
+        return names(foundTreasureBits.get());
+    }
+
+    public Set<String> getFoundLandmarks() {
+        return names(foundLandmarkBits.get());
+    }
+
+    /**
+     * Remember a landmark reported to the API; names the model does not know are ignored.
+     */
+    public void markReported(String landmarkName) {
+        int classId = classId(landmarkName);
+        if (classId >= 0) {
+            orBits(reportedLandmarkBits, 1 << classId);
+        }
+    }
+
+    /**
+     * A landmark not reported yet, at random; when all were reported the record starts over.
+     *
+     * @return null if the model has no landmark classes
+     */
+    public String pickUnreportedLandmark(Random random) {
+        int unreported = landmarkMask & ~reportedLandmarkBits.get();
+        if (unreported == 0) {
+            reportedLandmarkBits.set(0);
+            unreported = landmarkMask;
+        }
+        int count = Integer.bitCount(unreported);
+        if (count == 0) {
+            return null;
+        }
+        int pick = random.nextInt(count);
+        for (int classId = 0; classId < classNames.length; classId++) {
+            if ((unreported & 1 << classId) != 0 && pick-- == 0) {
+                return classNames[classId];
+            }
+        }
+        return null;
+    }
+
+    public void logSummary() {
+        for (int areaId = 1; areaId <= areaCount; areaId++) {
+            Log.i(TAG, "Area " + areaId + " treasures: " + getTreasureNames(areaId));
+            Log.i(TAG, "Area " + areaId + " landmarks: " + getLandmarkQuantities(areaId));
+        }
+        Log.i(TAG, "All found treasures: " + getFoundTreasures());
+        Log.i(TAG, "All found landmarks: " + getFoundLandmarks());
+    }
+
+    private void indexTreasure(int classId, int areaId, float confidence) {
+        while (true) {
+            long current = treasureArea.get(classId);
+            int currentArea = (int) current;
+            float currentConfidence = Float.intBitsToFloat((int) (current >>> 32));
+            if (currentArea != NO_AREA && (confidence < currentConfidence
+                    || confidence == currentConfidence && areaId >= currentArea)) {
+                return;
+            }
+            long updated = (long) Float.floatToIntBits(confidence) << 32 | areaId;
+            if (treasureArea.compareAndSet(classId, current, updated)) {
+                return;
+            }
+        }
+    }
+
+    private void raiseConfidence(int area, int classId, float confidence) {
+        int slot = slot(area, classId);
+        while (true) {
+            int current = confidences.get(slot);
+            if (confidence <= Float.intBitsToFloat(current)
+                    || confidences.compareAndSet(slot, current, Float.floatToIntBits(confidence))) {
+                return;
+            }
+        }
+    }
+
+    private Set<String> names(int bits) {
+        Set<String> named = new LinkedHashSet<String>();
+        for (int classId = 0; classId < classNames.length; classId++) {
+            if ((bits & 1 << classId) != 0) {
+                named.add(classNames[classId]);
+            }
+        }
+        return named;
+    }
+
+    private int areaIndex(int areaId) {
+        if (areaId < 1 || areaId > areaCount) {
+            throw new IllegalArgumentException("No area " + areaId);
+        }
+        return areaId - 1;
+    }
+
+    private int slot(int area, int classId) {
+        return area * classNames.length + classId;
+    }
+
+    private static void orBits(AtomicIntegerArray array, int index, int bits) {
+        while (true) {
+            int current = array.get(index);
+            if ((current | bits) == current || array.compareAndSet(index, current, current | bits)) {
+                return;
+            }
+        }
+    }
+
+    private static void orBits(AtomicInteger value, int bits) {
+        while (true) {
+            int current = value.get();
+            if ((current | bits) == current || value.compareAndSet(current, current | bits)) {
+                return;
+            }
+        }
+    }
+}
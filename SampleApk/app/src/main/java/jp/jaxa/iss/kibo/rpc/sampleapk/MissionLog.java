@@ -0,0 +1,282 @@
+package jp.jaxa.iss.kibo.rpc.sampleapk;
+
+import android.util.Log;
+
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.PrintWriter;
+
+/**
+ * Level-gated logging for the vision hot path.
+ *
+ * <pre>
+ * MissionLog.d(TAG, "Selected landmark: {} (conf: {})", name, confidence);
+ * MissionLog.event(MissionLog.Event.LANDMARK_SELECTED, classId, 0, confidence);
+ * </pre>
+ *
+ * Messages below the level return before anything is formatted; "{}" placeholders are
+ * filled with a StringBuilder instead of String.format, floating point values with three
+ * decimals. Per-frame facts that are only needed after the mission go into a preallocated
+ * binary event ring instead, which costs a few array stores per event and is written to a
+ * file by {@link #flushAsync(File)} once the mission is over.
+ */
+public final class MissionLog {
+    private static final String TAG = "MissionLog";
+
+    /**
+     * Hot-path events; the labels name the integer and float fields in the event dump.
+     */
+    public enum Event {
+        CANDIDATES("treasures", "landmarks", null),
+        TREASURE_SELECTED("class", null, "confidence"),
+        LANDMARK_SELECTED("class", null, "confidence"),
+        LANDMARK_FALLBACK("class", null, "confidence"),
+        LANDMARK_NMS("kept", "candidates", "confidence"),
+        MARKERS("markers", "areas", null),
+        TRACK_LOST("area", "box", "correlation");
+
+        final String aLabel;
+        final String bLabel;
+        final String valueLabel;
+
+        Event(String aLabel, String bLabel, String valueLabel) {
+            this.aLabel = aLabel;
+            this.bLabel = bLabel;
+            this.valueLabel = valueLabel;
+        }
+    }
+
+    private static final Event[] EVENTS = Event.values();
+
+    private static volatile int level = Log.INFO;
+
+    // Event ring, empty until enableEvents()
+    private static final Object ringLock = new Object();
+    private static long origin = System.nanoTime();
+    private static long[] ringTime = new long[0];
+    private static int[] ringEvent = new int[0];
+    private static int[] ringA = new int[0];
+    private static int[] ringB = new int[0];
+    private static float[] ringValue = new float[0];
+    private static long eventCount = 0;
+
+    private MissionLog() {
+    }
+
+    /**
+     * @param minLevel lowest android.util.Log priority still written, e.g. Log.INFO
+     */
+    public static void setLevel(int minLevel) {
+        level = minLevel;
+    }
+
+    public static boolean isLoggable(int priority) {
+        return priority >= level;
+    }
+
+    /**
+     * Keep the most recent {@code capacity} events, 0 turns the ring off.
+     */
+    public static void enableEvents(int capacity) {
+        synchronized (ringLock) {
+            origin = System.nanoTime();
+            ringTime = new long[capacity];
+            ringEvent = new int[capacity];
+            ringA = new int[capacity];
+            ringB = new int[capacity];
+            ringValue = new float[capacity];
+            eventCount = 0;
+        }
+    }
+
+    public static void event(Event event, int a, int b, float value) {
+        long now = System.nanoTime();
+        synchronized (ringLock) {
+            int capacity = ringEvent.length;
+            if (capacity == 0) {
+                return;
+            }
+            int slot = (int) (eventCount % capacity);
+            ringTime[slot] = now;
+            ringEvent[slot] = event.ordinal();
+            ringA[slot] = a;
+            ringB[slot] = b;
+            ringValue[slot] = value;
+            eventCount++;
+        }
+    }
+
+    public static void v(String tag, String message, Object... args) {
+        if (Log.VERBOSE >= level) {
+            Log.v(tag, format(message, args));
+        }
+    }
+
+    public static void d(String tag, String message) {
+        if (Log.DEBUG >= level) {
+            Log.d(tag, message);
+        }
+    }
+
+    public static void d(String tag, String message, Object arg) {
+        if (Log.DEBUG >= level) {
+            Log.d(tag, format(message, arg));
+        }
+    }
+
+    public static void d(String tag, String message, Object arg1, Object arg2) {
+        if (Log.DEBUG >= level) {
+            Log.d(tag, format(message, arg1, arg2));
+        }
+    }
+
+    public static void d(String tag, String message, Object... args) {
+        if (Log.DEBUG >= level) {
+            Log.d(tag, format(message, args));
+        }
+    }
+
+    public static void i(String tag, String message) {
+        if (Log.INFO >= level) {
+            Log.i(tag, message);
+        }
+    }
+
+    public static void i(String tag, String message, Object arg) {
+        if (Log.INFO >= level) {
+            Log.i(tag, format(message, arg));
+        }
+    }
+
+    public static void i(String tag, String message, Object arg1, Object arg2) {
+        if (Log.INFO >= level) {
+            Log.i(tag, format(message, arg1, arg2));
+        }
+    }
+
+    public static void i(String tag, String message, Object... args) {
+        if (Log.INFO >= level) {
+            Log.i(tag, format(message, args));
+        }
+    }
+
+    /**
+     * Write the event ring on a background thread; the mission thread does not wait for it.
+     *
+     * @return the writer thread, already started
+     */
+    public static Thread flushAsync(final File file) {
+        final long[] time;
+        final int[] events;
+        final int[] a;
+        final int[] b;
+        final float[] value;
+        final long first;
+        final long count;
+        final long start;
+        synchronized (ringLock) {
+            int capacity = ringEvent.length;
+            int kept = (int) Math.min(eventCount, capacity);
+            time = new long[kept];
+            events = new int[kept];
+            a = new int[kept];
+            b = new int[kept];
+            value = new float[kept];
+            for (int i = 0; i < kept; i++) {
+                int slot = (int) ((eventCount - kept + i) % capacity);
+                time[i] = ringTime[slot];
+                events[i] = ringEvent[slot];
+                a[i] = ringA[slot];
+                b[i] = ringB[slot];
+                value[i] = ringValue[slot];
+            }
+            first = eventCount - kept;
+            count = eventCount;
+            start = origin;
+        }
+
+        Thread writer = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    PrintWriter out = new PrintWriter(new FileWriter(file));
+                    try {
+                        out.println("# Events " + first + ".." + count + ": offset (ms), event, fields");
+                        for (int i = 0; i < events.length; i++) {
+                            Event event = EVENTS[events[i]];
+                            StringBuilder line = new StringBuilder();
+                            appendFixed(line, (time[i] - start) / 1e6, 3);
+                            line.append(' ').append(event);
+                            if (event.aLabel != null) {
+                                line.append(' ').append(event.aLabel).append('=').append(a[i]);
+                            }
+                            if (event.bLabel != null) {
+                                line.append(' ').append(event.bLabel).append('=').append(b[i]);
+                            }
+                            if (event.valueLabel != null) {
+                                appendFixed(line.append(' ').append(event.valueLabel).append('='), value[i], 3);
+                            }
+                            out.println(line);
+                        }
+                    } finally {
+                        out.close();
+                    }
+                    if (out.checkError()) {
+                        throw new IOException("Failed to write " + file);
+                    }
+                    Log.i(TAG, events.length + " events written to " + file);
+                } catch (IOException e) {
+                    Log.w(TAG, "Could not write events: " + e.getMessage());
+                }
+            }
+        }, "MissionLogFlush");
+        writer.setPriority(Thread.MIN_PRIORITY);
+        writer.setDaemon(true);
+        writer.start();
+        return writer;
+    }
+
+    /**
+     * Fill the "{}" placeholders in order; extra placeholders stay as they are.
+     */
+    static String format(String message, Object... args) {
+        StringBuilder text = new StringBuilder(message.length() + 16 * args.length);
+        int from = 0;
+        for (Object arg : args) {
+            int at = message.indexOf("{}", from);
+            if (at < 0) {
+                break;
+            }
+            text.append(message, from, at);
+            if (arg instanceof Float || arg instanceof Double) {
+                appendFixed(text, ((Number) arg).doubleValue(), 3);
+            } else {
+                text.append(arg);
+            }
+            from = at + 2;
+        }
+        return text.append(message, from, message.length()).toString();
+    }
+
+    private static void appendFixed(StringBuilder text, double value, int decimals) {
+        if (Double.isNaN(value) || Double.isInfinite(value)) {
+            text.append(value);
+            return;
+        }
+        long scale = 1;
+        for (int i = 0; i < decimals; i++) {
+            scale *= 10;
+        }
+        long scaled = Math.round(Math.abs(value) * scale);
+        if (value < 0 && scaled != 0) {
+            text.append('-');
+        }
+        text.append(scaled / scale).append('.');
+        String fraction = Long.toString(scaled % scale);
+        for (int i = fraction.length(); i < decimals; i++) {
+            text.append('0');
+        }
+        text.append(fraction);
+    }
+}
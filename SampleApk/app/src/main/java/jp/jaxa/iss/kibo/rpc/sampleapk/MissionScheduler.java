@@ -0,0 +1,147 @@
+package jp.jaxa.iss.kibo.rpc.sampleapk;
+
+import android.util.Log;
+
+import java.util.Arrays;
+
+/**
+ * Tracks elapsed mission time against a budget and decides how much vision work each area
+ * may still afford.
+ *
+ * The score's time bonus grows with every second left, so a slow move or a hard frame early
+ * on makes the later areas cheaper instead of pushing the whole mission over budget. The
+ * scheduler keeps running estimates of a move and of one frame's vision work (capture to
+ * YOLO) from what the mission actually measured, reserves time for the moves still planned
+ * (areas, astronaut, target revisit) and hands the rest out evenly to the remaining areas:
+ *
+ * <pre>
+ * MissionScheduler.Tier tier = scheduler.planViewpoint(areaIds, remainingAreas);
+ * for (int frame = 0; frame &lt; tier.burstFrames; frame++) { ... }
+ * scheduler.recordVision(millis, frames);
+ * </pre>
+ *
+ * Not thread-safe, used from the mission thread.
+ */
+public class MissionScheduler {
+    private static final String TAG = "MissionScheduler";
+
+    // Weight of a new measurement in the running estimates
+    private static final double ESTIMATE_WEIGHT = 0.5;
+
+    /**
+     * Per-area work levels, from most to least expensive.
+     */
+    public enum Tier {
+        // Several frames voted together, markers missing -> re-capture
+        THOROUGH(3, 2),
+        // Two frames, one re-capture
+        STANDARD(2, 1),
+        // Single frame, no re-capture
+        FAST(1, 0);
+
+        public final int burstFrames;
+        public final int recaptures;
+
+        Tier(int burstFrames, int recaptures) {
+            this.burstFrames = burstFrames;
+            this.recaptures = recaptures;
+        }
+
+        /**
+         * Frames this tier processes at most.
+         */
+        int maxFrames() {
+            return burstFrames + recaptures;
+        }
+    }
+
+    private final long budgetMillis;
+    private final long reserveMillis;
+    private long startNanos = -1;
+
+    private int remainingMoves;
+    private double moveEstimateMillis;
+    private double frameEstimateMillis;
+
+    /**
+     * @param budgetMillis        mission time the plan should fit in
+     * @param reserveMillis       kept free for reporting and the unexpected
+     * @param plannedMoves        moves of the plan, including astronaut and target revisit
+     * @param initialMoveMillis   move estimate until the first move was measured
+     * @param initialFrameMillis  vision estimate per frame until the first area was measured
+     */
+    public MissionScheduler(long budgetMillis, long reserveMillis, int plannedMoves,
+                            long initialMoveMillis, long initialFrameMillis) {
+        this.budgetMillis = budgetMillis;
+        this.reserveMillis = reserveMillis;
+        this.remainingMoves = plannedMoves;
+        this.moveEstimateMillis = initialMoveMillis;
+        this.frameEstimateMillis = initialFrameMillis;
+    }
+
+    /**
+     * Start the clock, called right after api.startMission().
+     */
+    public void start() {
+        startNanos = System.nanoTime();
+    }
+
+    public long getElapsedMillis() {
+        return startNanos < 0 ? 0 : (System.nanoTime() - startNanos) / 1000000L;
+    }
+
+    public long getRemainingMillis() {
+        return budgetMillis - getElapsedMillis();
+    }
+
+    /**
+     * Time left after the planned moves and the reserve, what vision work may use.
+     */
+    public long getSlackMillis() {
+        return (long) (getRemainingMillis() - reserveMillis - remainingMoves * moveEstimateMillis);
+    }
+
+    /**
+     * A planned move finished.
+     */
+    public void recordMove(long millis) {
+        remainingMoves = Math.max(0, remainingMoves - 1);
+        moveEstimateMillis = blend(moveEstimateMillis, millis);
+    }
+
+    /**
+     * The vision work at one viewpoint finished.
+     *
+     * @param frames frames captured and processed there
+     */
+    public void recordVision(long millis, int frames) {
+        if (frames > 0) {
+            frameEstimateMillis = blend(frameEstimateMillis, millis / (double) frames);
+        }
+    }
+
+    /**
+     * Most thorough tier whose worst case fits the slack share of the areas seen from one
+     * viewpoint (frames of a viewpoint serve all of its areas).
+     *
+     * @param areaIds        areas captured from this viewpoint
+     * @param remainingAreas areas still to process, these included
+     */
+    public Tier planViewpoint(int[] areaIds, int remainingAreas) {
+        double share = getSlackMillis() * areaIds.length / (double) Math.max(areaIds.length, remainingAreas);
+        Tier chosen = Tier.FAST;
+        for (Tier tier : Tier.values()) {
+            if (tier.maxFrames() * frameEstimateMillis <= share) {
+                chosen = tier;
+                break;
+            }
+        }
+        Log.i(TAG, String.format("Areas %s: %s (share %.0f ms, frame ~%.0f ms, move ~%.0f ms, %d ms elapsed)",
+                Arrays.toString(areaIds), chosen, share, frameEstimateMillis, moveEstimateMillis, getElapsedMillis()));
+        return chosen;
+    }
+
+    private static double blend(double estimate, double measured) {
+        return estimate + ESTIMATE_WEIGHT * (measured - estimate);
+    }
+}
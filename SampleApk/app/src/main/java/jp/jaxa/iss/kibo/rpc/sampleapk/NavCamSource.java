@@ -0,0 +1,22 @@
+package jp.jaxa.iss.kibo.rpc.sampleapk;
+
+import org.opencv.core.Mat;
+
+/**
+ * The part of KiboRpcApi the vision pipeline needs. YourService adapts the real api,
+ * the desktop replay serves saved frames from disk.
+ */
+public interface NavCamSource {
+
+    /**
+     * Current NavCam frame, owned by the caller.
+     */
+    Mat getMatNavCam();
+
+    /**
+     * [0] = 3x3 camera matrix (row major), [1] = 5 distortion coefficients.
+     */
+    double[][] getNavCamIntrinsics();
+
+    void saveMatImage(Mat image, String name);
+}
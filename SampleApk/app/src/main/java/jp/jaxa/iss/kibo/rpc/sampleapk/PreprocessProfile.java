@@ -0,0 +1,33 @@
+package jp.jaxa.iss.kibo.rpc.sampleapk;
+
+import org.opencv.core.Mat;
+import org.opencv.core.Size;
+
+/**
+ * Turns a single channel crop (area board or target frame) into the image fed to YOLO.
+ *
+ * The area path warps the marker-relative crop to {@link #getWarpSize(Size)} and then calls
+ * {@link #apply(Mat, Mat, Mat, Size)}; the target path without a marker resizes the whole
+ * frame to the same warp size. Implementations live in {@link PreprocessProfiles}.
+ */
+public interface PreprocessProfile {
+
+    /**
+     * Short name used in configuration, logs and harness reports (e.g. "binarized").
+     */
+    String getName();
+
+    /**
+     * Size the crop should be warped or resized to before {@link #apply(Mat, Mat, Mat, Size)}.
+     */
+    Size getWarpSize(Size modelSize);
+
+    /**
+     * @param gray        CV_8UC1 crop of {@link #getWarpSize(Size)}
+     * @param enhancedOut receives the intermediate enhanced image if the profile has one,
+     *                    otherwise left untouched
+     * @param dst         receives the CV_8UC1 model input of modelSize
+     * @param modelSize   YOLO input size
+     */
+    void apply(Mat gray, Mat enhancedOut, Mat dst, Size modelSize);
+}
@@ -0,0 +1,183 @@
+package jp.jaxa.iss.kibo.rpc.sampleapk;
+
+import org.opencv.core.Core;
+import org.opencv.core.Mat;
+import org.opencv.core.Scalar;
+import org.opencv.core.Size;
+import org.opencv.imgproc.Imgproc;
+
+/**
+ * Built-in {@link PreprocessProfile} implementations:
+ * - raw: crop only, no enhancement
+ * - clahe: CLAHE only
+ * - binarized: CLAHE/LUT + adaptive/Otsu threshold via EnhancementStage (mission default)
+ * - letterbox-&lt;inner&gt;: any of the above at the crop's 4:3 aspect, padded to the model size
+ */
+public final class PreprocessProfiles {
+    public static final String RAW = "raw";
+    public static final String CLAHE = "clahe";
+    public static final String BINARIZED = "binarized";
+    public static final String LETTERBOX_PREFIX = "letterbox-";
+
+    // Area crops are 0.212 x 0.159 m (processCropRegion), i.e. 4:3
+    private static final double CROP_ASPECT = 4.0 / 3.0;
+    // Ultralytics letterbox padding value
+    private static final double LETTERBOX_PAD = 114;
+
+    private PreprocessProfiles() {
+    }
+
+    /**
+     * Look up a profile by name.
+     *
+     * @param name  one of raw, clahe, binarized or letterbox-{raw,clahe,binarized}
+     * @param stage shared enhancement operators
+     * @return the profile, or null for an unknown name
+     */
+    public static PreprocessProfile byName(String name, EnhancementStage stage) {
+        if (name == null) {
+            return null;
+        }
+        if (name.startsWith(LETTERBOX_PREFIX)) {
+            PreprocessProfile inner = byName(name.substring(LETTERBOX_PREFIX.length()), stage);
+            return inner != null && !(inner instanceof Letterboxed) ? new Letterboxed(inner) : null;
+        }
+        if (RAW.equals(name)) {
+            return new Raw();
+        }
+        if (CLAHE.equals(name)) {
+            return new ClaheOnly(stage);
+        }
+        if (BINARIZED.equals(name)) {
+            return new Binarized(stage);
+        }
+        return null;
+    }
+
+    public static String[] getNames() {
+        return new String[]{
+                RAW, CLAHE, BINARIZED,
+                LETTERBOX_PREFIX + RAW, LETTERBOX_PREFIX + CLAHE, LETTERBOX_PREFIX + BINARIZED
+        };
+    }
+
+    /**
+     * Convert any NavCam-derived Mat to single channel. NavCam frames already are gray,
+     * in which case the input itself is returned.
+     *
+     * @param image input with 1, 3 (BGR) or 4 (BGRA) channels
+     * @param grayBuffer scratch Mat used when a conversion is needed
+     */
+    public static Mat toGray(Mat image, Mat grayBuffer) {
+        if (image.channels() == 1) {
+            return image;
+        }
+        Imgproc.cvtColor(image, grayBuffer,
+                image.channels() == 4 ? Imgproc.COLOR_BGRA2GRAY : Imgproc.COLOR_BGR2GRAY);
+        return grayBuffer;
+    }
+
+    public static class Raw implements PreprocessProfile {
+        @Override
+        public String getName() {
+            return RAW;
+        }
+
+        @Override
+        public Size getWarpSize(Size modelSize) {
+            return modelSize;
+        }
+
+        @Override
+        public void apply(Mat gray, Mat enhancedOut, Mat dst, Size modelSize) {
+            gray.copyTo(dst);
+        }
+    }
+
+    public static class ClaheOnly implements PreprocessProfile {
+        private final EnhancementStage stage;
+
+        public ClaheOnly(EnhancementStage stage) {
+            this.stage = stage;
+        }
+
+        @Override
+        public String getName() {
+            return CLAHE;
+        }
+
+        @Override
+        public Size getWarpSize(Size modelSize) {
+            return modelSize;
+        }
+
+        @Override
+        public void apply(Mat gray, Mat enhancedOut, Mat dst, Size modelSize) {
+            stage.applyClahe(gray, dst);
+        }
+    }
+
+    public static class Binarized implements PreprocessProfile {
+        // Thresholds of the stage were tuned on 640 px wide crops
+        private static final double NOMINAL_CROP_WIDTH = 640;
+
+        private final EnhancementStage stage;
+
+        public Binarized(EnhancementStage stage) {
+            this.stage = stage;
+        }
+
+        @Override
+        public String getName() {
+            return BINARIZED;
+        }
+
+        @Override
+        public Size getWarpSize(Size modelSize) {
+            return modelSize;
+        }
+
+        @Override
+        public void apply(Mat gray, Mat enhancedOut, Mat dst, Size modelSize) {
+            stage.enhanceAndBinarize(gray, enhancedOut, dst, NOMINAL_CROP_WIDTH);
+        }
+    }
+
+    /**
+     * Keeps the crop's 4:3 aspect instead of squashing it into a square, padding the rest.
+     */
+    public static class Letterboxed implements PreprocessProfile {
+        private final PreprocessProfile inner;
+
+        public Letterboxed(PreprocessProfile inner) {
+            this.inner = inner;
+        }
+
+        @Override
+        public String getName() {
+            return LETTERBOX_PREFIX + inner.getName();
+        }
+
+        @Override
+        public Size getWarpSize(Size modelSize) {
+            return new Size(modelSize.width, Math.round(modelSize.width / CROP_ASPECT));
+        }
+
+        @Override
+        public void apply(Mat gray, Mat enhancedOut, Mat dst, Size modelSize) {
+            // Per call rather than a field: profiles are shared and have no release hook
+            Mat innerOut = new Mat();
+            try {
+                inner.apply(gray, enhancedOut, innerOut, gray.size());
+                int padRows = (int) modelSize.height - innerOut.rows();
+                int top = padRows / 2;
+                int padCols = (int) modelSize.width - innerOut.cols();
+                int left = padCols / 2;
+                Core.copyMakeBorder(innerOut, dst, top, padRows - top, left, padCols - left,
+                        Core.BORDER_CONSTANT, new Scalar(LETTERBOX_PAD));
+            } finally {
+                innerOut.release();
+            }
+        }
+    }
+}
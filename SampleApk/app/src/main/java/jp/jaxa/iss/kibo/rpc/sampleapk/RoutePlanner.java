@@ -0,0 +1,258 @@
+package jp.jaxa.iss.kibo.rpc.sampleapk;
+
+import android.util.Log;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Orders the area viewpoints of a mission plan by estimated flight time.
+ *
+ * The rules fix the tail of every plan: all areas, then the astronaut, then one flight back
+ * to the area holding the target, which is only known at the astronaut. The planner searches
+ * every order of the viewpoints and every candidate attitude per viewpoint (Held-Karp over
+ * the visited set, fine for the handful of viewpoints a plan has) and adds the leg to the
+ * astronaut and the expected revisit, the mean over the viewpoints, to each order's cost.
+ *
+ * A leg is estimated as a fixed per-move overhead (planning, acceleration, settling) plus
+ * distance over a cruise speed plus rotation angle over a turn rate. Positions are
+ * {x, y, z} in the ISS frame and attitudes quaternions {x, y, z, w}, so the planner does
+ * not depend on the astrobee types and can be used on the desktop.
+ */
+public class RoutePlanner {
+    private static final String TAG = "RoutePlanner";
+
+    private static final double DEFAULT_LINEAR_SPEED = 0.1;   // m/s, averaged over a move
+    private static final double DEFAULT_ANGULAR_SPEED = 0.25; // rad/s
+    private static final long DEFAULT_MOVE_OVERHEAD_MILLIS = 4000;
+
+    /**
+     * A place the plan has to visit.
+     */
+    public static class Stop {
+        public final String name;
+        // Caller's own index, e.g. into MOVE_POINTS
+        public final int index;
+        public final int[] areaIds;
+        public final double[] position;
+        // Attitudes the stop can be served from, the planner picks one
+        public final double[][] attitudes;
+
+        public Stop(String name, int index, int[] areaIds, double[] position, double[]... attitudes) {
+            if (attitudes.length == 0) {
+                throw new IllegalArgumentException("Stop " + name + " needs at least one attitude");
+            }
+            this.name = name;
+            this.index = index;
+            this.areaIds = areaIds;
+            this.position = position;
+            this.attitudes = attitudes;
+        }
+    }
+
+    /**
+     * One planned move.
+     */
+    public static class Waypoint {
+        public final Stop stop;
+        public final double[] attitude;
+        public final long legMillis;
+
+        Waypoint(Stop stop, double[] attitude, long legMillis) {
+            this.stop = stop;
+            this.attitude = attitude;
+            this.legMillis = legMillis;
+        }
+    }
+
+    public static class Plan {
+        // Viewpoints in visiting order, then the astronaut
+        public final List<Waypoint> waypoints;
+        // Mean flight from the astronaut back to a viewpoint
+        public final long expectedRevisitMillis;
+        public final long totalMillis;
+
+        Plan(List<Waypoint> waypoints, long expectedRevisitMillis) {
+            this.waypoints = Collections.unmodifiableList(waypoints);
+            this.expectedRevisitMillis = expectedRevisitMillis;
+            long total = expectedRevisitMillis;
+            for (Waypoint waypoint : waypoints) {
+                total += waypoint.legMillis;
+            }
+            this.totalMillis = total;
+        }
+
+        /**
+         * The viewpoint waypoints, without the astronaut.
+         */
+        public List<Waypoint> getViewpoints() {
+            return waypoints.subList(0, waypoints.size() - 1);
+        }
+
+        @Override
+        public String toString() {
+            StringBuilder text = new StringBuilder();
+            for (Waypoint waypoint : waypoints) {
+                text.append(waypoint.stop.name).append(" (").append(waypoint.legMillis / 1000.0).append(" s) -> ");
+            }
+            return text.append("target revisit (~").append(expectedRevisitMillis / 1000.0)
+                    .append(" s), total ~").append(totalMillis / 1000.0).append(" s").toString();
+        }
+    }
+
+    private final double linearSpeed;
+    private final double angularSpeed;
+    private final long moveOverheadMillis;
+
+    public RoutePlanner() {
+        this(DEFAULT_LINEAR_SPEED, DEFAULT_ANGULAR_SPEED, DEFAULT_MOVE_OVERHEAD_MILLIS);
+    }
+
+    /**
+     * @param linearSpeed        m/s averaged over a move
+     * @param angularSpeed       rad/s averaged over a turn
+     * @param moveOverheadMillis fixed cost of every move
+     */
+    public RoutePlanner(double linearSpeed, double angularSpeed, long moveOverheadMillis) {
+        this.linearSpeed = linearSpeed;
+        this.angularSpeed = angularSpeed;
+        this.moveOverheadMillis = moveOverheadMillis;
+    }
+
+    /**
+     * Estimated time of one move between two poses.
+     */
+    public long legMillis(double[] fromPosition, double[] fromAttitude, double[] toPosition, double[] toAttitude) {
+        double dx = toPosition[0] - fromPosition[0];
+        double dy = toPosition[1] - fromPosition[1];
+        double dz = toPosition[2] - fromPosition[2];
+        double distance = Math.sqrt(dx * dx + dy * dy + dz * dz);
+        return moveOverheadMillis
+                + Math.round(1000 * (distance / linearSpeed + rotationAngle(fromAttitude, toAttitude) / angularSpeed));
+    }
+
+    /**
+     * Cheapest plan from the current pose over all viewpoints to the astronaut.
+     *
+     * @param startPosition current position
+     * @param startAttitude current attitude
+     * @param viewpoints    area viewpoints, at most 16
+     * @param astronaut     last stop before the target revisit
+     */
+    public Plan plan(double[] startPosition, double[] startAttitude, List<Stop> viewpoints, Stop astronaut) {
+        int n = viewpoints.size();
+        if (n == 0 || n > 16) {
+            throw new IllegalArgumentException("Cannot plan over " + n + " viewpoints");
+        }
+        // Flattened (viewpoint, attitude) nodes
+        int nodes = 0;
+        for (Stop stop : viewpoints) {
+            nodes += stop.attitudes.length;
+        }
+        int[] nodeStop = new int[nodes];
+        int[] nodeAttitude = new int[nodes];
+        for (int s = 0, node = 0; s < n; s++) {
+            for (int a = 0; a < viewpoints.get(s).attitudes.length; a++, node++) {
+                nodeStop[node] = s;
+                nodeAttitude[node] = a;
+            }
+        }
+
+        long[][] leg = new long[nodes][nodes];
+        long[] fromStart = new long[nodes];
+        long[] toEnd = new long[nodes];
+        long[] revisit = new long[nodes];
+        double[] astronautAttitude = astronaut.attitudes[0];
+        for (int i = 0; i < nodes; i++) {
+            Stop stop = viewpoints.get(nodeStop[i]);
+            double[] attitude = stop.attitudes[nodeAttitude[i]];
+            fromStart[i] = legMillis(startPosition, startAttitude, stop.position, attitude);
+            toEnd[i] = legMillis(stop.position, attitude, astronaut.position, astronautAttitude);
+            revisit[i] = legMillis(astronaut.position, astronautAttitude, stop.position, attitude);
+            for (int j = 0; j < nodes; j++) {
+                Stop next = viewpoints.get(nodeStop[j]);
+                leg[i][j] = legMillis(stop.position, attitude, next.position, next.attitudes[nodeAttitude[j]]);
+            }
+        }
+
+        // cost[mask][node]: cheapest way to visit the stops in mask, ending at node; each
+        // node also carries its share of the expected revisit, which depends on its attitude
+        int full = (1 << n) - 1;
+        long[][] cost = new long[full + 1][nodes];
+        int[][] previous = new int[full + 1][nodes];
+        for (long[] row : cost) {
+            Arrays.fill(row, Long.MAX_VALUE);
+        }
+        for (int i = 0; i < nodes; i++) {
+            cost[1 << nodeStop[i]][i] = fromStart[i] + revisit[i] / n;
+            previous[1 << nodeStop[i]][i] = -1;
+        }
+        for (int mask = 1; mask <= full; mask++) {
+            for (int i = 0; i < nodes; i++) {
+                if (cost[mask][i] == Long.MAX_VALUE) {
+                    continue;
+                }
+                for (int j = 0; j < nodes; j++) {
+                    int bit = 1 << nodeStop[j];
+                    if ((mask & bit) != 0) {
+                        continue;
+                    }
+                    long candidate = cost[mask][i] + leg[i][j] + revisit[j] / n;
+                    if (candidate < cost[mask | bit][j]) {
+                        cost[mask | bit][j] = candidate;
+                        previous[mask | bit][j] = i;
+                    }
+                }
+            }
+        }
+
+        int last = -1;
+        for (int i = 0; i < nodes; i++) {
+            if (cost[full][i] != Long.MAX_VALUE
+                    && (last < 0 || cost[full][i] + toEnd[i] < cost[full][last] + toEnd[last])) {
+                last = i;
+            }
+        }
+
+        int[] chosenNode = new int[n];
+        List<Waypoint> waypoints = new ArrayList<Waypoint>();
+        int mask = full;
+        for (int node = last; node >= 0; ) {
+            Stop stop = viewpoints.get(nodeStop[node]);
+            int before = previous[mask][node];
+            long millis = before < 0 ? fromStart[node] : leg[before][node];
+            waypoints.add(0, new Waypoint(stop, stop.attitudes[nodeAttitude[node]], millis));
+            chosenNode[nodeStop[node]] = node;
+            mask &= ~(1 << nodeStop[node]);
+            node = before;
+        }
+        waypoints.add(new Waypoint(astronaut, astronautAttitude, toEnd[last]));
+
+        long revisitSum = 0;
+        for (int s = 0; s < n; s++) {
+            revisitSum += revisit[chosenNode[s]];
+        }
+        Plan plan = new Plan(waypoints, revisitSum / n);
+        Log.i(TAG, "Route: " + plan);
+        return plan;
+    }
+
+    /**
+     * Angle in radians of the rotation between two unit quaternions {x, y, z, w}.
+     */
+    static double rotationAngle(double[] q1, double[] q2) {
+        double dot = 0;
+        double norm1 = 0;
+        double norm2 = 0;
+        for (int i = 0; i < 4; i++) {
+            dot += q1[i] * q2[i];
+            norm1 += q1[i] * q1[i];
+            norm2 += q2[i] * q2[i];
+        }
+        // q and -q are the same attitude
+        double cos = Math.min(1.0, Math.abs(dot) / Math.sqrt(norm1 * norm2));
+        return 2 * Math.acos(cos);
+    }
+}
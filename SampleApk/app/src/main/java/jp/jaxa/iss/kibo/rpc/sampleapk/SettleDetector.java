@@ -0,0 +1,226 @@
+package jp.jaxa.iss.kibo.rpc.sampleapk;
+
+import android.util.Log;
+
+import org.opencv.core.Core;
+import org.opencv.core.Mat;
+import org.opencv.core.Size;
+import org.opencv.imgproc.Imgproc;
+
+/**
+ * Decides when the robot has settled after a move, so a capture is neither blurred by
+ * residual motion nor delayed by a fixed sleep.
+ *
+ * Two signals, polled until both agree (per {@link Mode}) or the timeout expires:
+ * - kinematics: linear speed and angular rate below thresholds for a few consecutive samples
+ * - image motion: mean absolute difference of consecutive downscaled NavCam frames below a
+ *   threshold, which also catches jitter the state estimate smooths over
+ *
+ * When the kinematics are unavailable (no sensor, or localization lost) the image signal
+ * decides alone.
+ *
+ * Not thread-safe, used from the mission thread.
+ */
+public class SettleDetector {
+    private static final String TAG = "SettleDetector";
+
+    public enum Mode {
+        KINEMATICS,
+        IMAGE,
+        BOTH
+    }
+
+    /**
+     * Robot velocity source; YourService adapts api.getRobotKinematics().
+     */
+    public interface MotionSensor {
+        /**
+         * Fill the linear velocity (m/s) and angular velocity (rad/s) of the robot.
+         *
+         * @return false when no trustworthy estimate is available
+         */
+        boolean sample(double[] linearVelocity, double[] angularVelocity);
+    }
+
+    /**
+     * What {@link #waitUntilSettled} observed.
+     */
+    public static class Result {
+        public final boolean settled;
+        public final long waitedMillis;
+        public final int samples;
+        // Last measurements, NaN when not sampled
+        public final double linearSpeed;
+        public final double angularRate;
+        public final double imageMotion;
+
+        Result(boolean settled, long waitedMillis, int samples,
+               double linearSpeed, double angularRate, double imageMotion) {
+            this.settled = settled;
+            this.waitedMillis = waitedMillis;
+            this.samples = samples;
+            this.linearSpeed = linearSpeed;
+            this.angularRate = angularRate;
+            this.imageMotion = imageMotion;
+        }
+
+        @Override
+        public String toString() {
+            return String.format("%s after %d ms, %d samples (v %.4f m/s, w %.4f rad/s, image %.2f)",
+                    settled ? "settled" : "timed out", waitedMillis, samples, linearSpeed, angularRate, imageMotion);
+        }
+    }
+
+    private static final double DEFAULT_MAX_LINEAR_SPEED = 0.01;  // m/s
+    private static final double DEFAULT_MAX_ANGULAR_RATE = 0.02;  // rad/s, ~1.1 deg/s
+    private static final double DEFAULT_MAX_IMAGE_MOTION = 1.5;   // mean abs gray difference
+    private static final int DEFAULT_STABLE_SAMPLES = 2;
+    private static final long DEFAULT_POLL_MILLIS = 50;
+    // Motion is measured on a thumbnail, enough for whole-frame blur and shift
+    private static final Size THUMBNAIL_SIZE = new Size(80, 60);
+
+    private final Mode mode;
+    private final MotionSensor motionSensor;
+    private final NavCamSource navCam;
+    private final double maxLinearSpeed;
+    private final double maxAngularRate;
+    private final double maxImageMotion;
+    private final int stableSamples;
+    private final long pollMillis;
+
+    private final double[] linearVelocity = new double[3];
+    private final double[] angularVelocity = new double[3];
+    private final Mat gray = new Mat();
+    private final Mat thumbnail = new Mat();
+    private final Mat previousThumbnail = new Mat();
+    private final Mat difference = new Mat();
+    private StageTracer tracer = StageTracer.disabled();
+
+    /**
+     * @param motionSensor null for image motion only
+     * @param navCam       null for kinematics only
+     */
+    public SettleDetector(Mode mode, MotionSensor motionSensor, NavCamSource navCam) {
+        this(mode, motionSensor, navCam, DEFAULT_MAX_LINEAR_SPEED, DEFAULT_MAX_ANGULAR_RATE,
+                DEFAULT_MAX_IMAGE_MOTION, DEFAULT_STABLE_SAMPLES, DEFAULT_POLL_MILLIS);
+    }
+
+    public SettleDetector(Mode mode, MotionSensor motionSensor, NavCamSource navCam,
+                          double maxLinearSpeed, double maxAngularRate, double maxImageMotion,
+                          int stableSamples, long pollMillis) {
+        this.mode = mode;
+        this.motionSensor = mode == Mode.IMAGE ? null : motionSensor;
+        this.navCam = mode == Mode.KINEMATICS ? null : navCam;
+        this.maxLinearSpeed = maxLinearSpeed;
+        this.maxAngularRate = maxAngularRate;
+        this.maxImageMotion = maxImageMotion;
+        this.stableSamples = Math.max(1, stableSamples);
+        this.pollMillis = pollMillis;
+    }
+
+    public void setTracer(StageTracer tracer) {
+        this.tracer = tracer != null ? tracer : StageTracer.disabled();
+    }
+
+    /**
+     * Poll until the robot is still or the timeout expires. Returns at once when it already
+     * is, so a move that ended at rest costs a few samples instead of a fixed sleep.
+     */
+    public Result waitUntilSettled(long timeoutMillis) {
+        long start = tracer.begin();
+        long startNanos = System.nanoTime();
+        int samples = 0;
+        int stableRun = 0;
+        double linearSpeed = Double.NaN;
+        double angularRate = Double.NaN;
+        double imageMotion = Double.NaN;
+        boolean settled = false;
+        boolean havePrevious = false;
+
+        while (true) {
+            samples++;
+            boolean kinematicsStill = true;
+            boolean kinematicsKnown = false;
+            if (motionSensor != null && motionSensor.sample(linearVelocity, angularVelocity)) {
+                kinematicsKnown = true;
+                linearSpeed = norm(linearVelocity);
+                angularRate = norm(angularVelocity);
+                kinematicsStill = linearSpeed <= maxLinearSpeed && angularRate <= maxAngularRate;
+            }
+
+            boolean imageStill = true;
+            // In KINEMATICS mode the image is only the fallback for a missing estimate
+            if (navCam != null && (mode != Mode.KINEMATICS || !kinematicsKnown)) {
+                if (captureThumbnail()) {
+                    if (havePrevious) {
+                        Core.absdiff(thumbnail, previousThumbnail, difference);
+                        imageMotion = Core.mean(difference).val[0];
+                        imageStill = imageMotion <= maxImageMotion;
+                    } else {
+                        // The first frame has nothing to compare with
+                        imageStill = false;
+                    }
+                    thumbnail.copyTo(previousThumbnail);
+                    havePrevious = true;
+                } else {
+                    imageStill = false;
+                }
+            } else if (!kinematicsKnown) {
+                // Neither signal available: nothing to wait for
+                kinematicsStill = true;
+            }
+
+            stableRun = kinematicsStill && imageStill ? stableRun + 1 : 0;
+            if (stableRun >= stableSamples) {
+                settled = true;
+                break;
+            }
+            if ((System.nanoTime() - startNanos) / 1000000L + pollMillis > timeoutMillis) {
+                break;
+            }
+            try {
+                Thread.sleep(pollMillis);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                break;
+            }
+        }
+
+        tracer.end(StageTracer.Stage.SETTLE, start);
+        Result result = new Result(settled, (System.nanoTime() - startNanos) / 1000000L, samples,
+                linearSpeed, angularRate, imageMotion);
+        if (settled) {
+            Log.i(TAG, result.toString());
+        } else {
+            Log.w(TAG, result.toString());
+        }
+        return result;
+    }
+
+    public void release() {
+        gray.release();
+        thumbnail.release();
+        previousThumbnail.release();
+        difference.release();
+    }
+
+    private boolean captureThumbnail() {
+        Mat frame = navCam.getMatNavCam();
+        if (frame == null) {
+            return false;
+        }
+        try {
+            if (frame.empty()) {
+                return false;
+            }
+            Imgproc.resize(PreprocessProfiles.toGray(frame, gray), thumbnail, THUMBNAIL_SIZE, 0, 0, Imgproc.INTER_AREA);
+            return true;
+        } finally {
+            frame.release();
+        }
+    }
+
+    private static double norm(double[] v) {
+        return Math.sqrt(v[0] * v[0] + v[1] * v[1] + v[2] * v[2]);
+    }
+}
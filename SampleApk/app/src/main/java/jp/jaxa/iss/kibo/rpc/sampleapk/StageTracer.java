@@ -0,0 +1,288 @@
+package jp.jaxa.iss.kibo.rpc.sampleapk;
+
+import android.util.Log;
+
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.PrintWriter;
+
+/**
+ * Allocation-free latency tracing for the mission pipeline.
+ *
+ * <pre>
+ * long start = tracer.begin();
+ * Aruco.detectMarkers(...);
+ * tracer.end(StageTracer.Stage.ARUCO_DETECT, start);
+ * </pre>
+ *
+ * Every span goes into a preallocated ring buffer (the most recent spans, for a timeline) and
+ * into per-stage counters and log2 latency histograms (every span, even after the ring wraps).
+ * Spans may nest, e.g. NMS is also part of POSTPROCESS. Per-frame values such as the frame
+ * quality scores are kept as {@link Metric} count / mean / min / max. {@link #dump(File)}
+ * writes everything at mission end.
+ */
+public class StageTracer {
+    private static final String TAG = "StageTracer";
+
+    public enum Stage {
+        MOVE,
+        SETTLE,
+        CAPTURE,
+        QUALITY_GATE,
+        UNDISTORT,
+        ARUCO_DETECT,
+        POSE_ESTIMATION,
+        CROP_ENHANCE,
+        PREPROCESS,
+        SESSION_RUN,
+        POSTPROCESS,
+        NMS,
+        SET_AREA_INFO
+    }
+
+    /**
+     * Values recorded with {@link #record(Metric, double)}.
+     */
+    public enum Metric {
+        FRAME_SHARPNESS,
+        FRAME_BRIGHTNESS,
+        FRAME_SPREAD,
+        // 1 per frame the quality gate rejected, the count is the number of re-captures
+        FRAME_REJECTED
+    }
+
+    private static final Stage[] STAGES = Stage.values();
+    private static final Metric[] METRICS = Metric.values();
+    // Bucket i holds spans of [2^(i-1), 2^i) microseconds, bucket 0 everything below 1 us
+    private static final int HISTOGRAM_BUCKETS = 26; // last bucket: >= 16.7 s
+
+    private static final StageTracer DISABLED = new StageTracer(0);
+
+    private final boolean enabled;
+    private final long origin = System.nanoTime();
+
+    // Ring of the most recent spans
+    private final int[] ringStage;
+    private final long[] ringStart;
+    private final long[] ringDuration;
+    private long spanCount = 0;
+
+    private final long[] counts = new long[STAGES.length];
+    private final long[] totals = new long[STAGES.length];
+    private final long[] maxima = new long[STAGES.length];
+    private final long[][] histograms = new long[STAGES.length][HISTOGRAM_BUCKETS];
+
+    private final long[] metricCounts = new long[METRICS.length];
+    private final double[] metricSums = new double[METRICS.length];
+    private final double[] metricMinima = new double[METRICS.length];
+    private final double[] metricMaxima = new double[METRICS.length];
+
+    /**
+     * @param ringCapacity number of recent spans kept for the timeline; 0 disables tracing
+     */
+    public StageTracer(int ringCapacity) {
+        this.enabled = ringCapacity > 0;
+        this.ringStage = new int[ringCapacity];
+        this.ringStart = new long[ringCapacity];
+        this.ringDuration = new long[ringCapacity];
+    }
+
+    /**
+     * Shared no-op tracer for code running without one.
+     */
+    public static StageTracer disabled() {
+        return DISABLED;
+    }
+
+    public boolean isEnabled() {
+        return enabled;
+    }
+
+    public long begin() {
+        return enabled ? System.nanoTime() : 0L;
+    }
+
+    /**
+     * Record a span that started at {@code startNanos} (from {@link #begin()}) and ends now.
+     */
+    public void end(Stage stage, long startNanos) {
+        if (!enabled) {
+            return;
+        }
+        long duration = System.nanoTime() - startNanos;
+        int s = stage.ordinal();
+        synchronized (this) {
+            int slot = (int) (spanCount % ringStage.length);
+            ringStage[slot] = s;
+            ringStart[slot] = startNanos;
+            ringDuration[slot] = duration;
+            spanCount++;
+
+            counts[s]++;
+            totals[s] += duration;
+            if (duration > maxima[s]) {
+                maxima[s] = duration;
+            }
+            histograms[s][bucket(duration)]++;
+        }
+    }
+
+    public void record(Metric metric, double value) {
+        if (!enabled) {
+            return;
+        }
+        int m = metric.ordinal();
+        synchronized (this) {
+            if (metricCounts[m] == 0 || value < metricMinima[m]) {
+                metricMinima[m] = value;
+            }
+            if (metricCounts[m] == 0 || value > metricMaxima[m]) {
+                metricMaxima[m] = value;
+            }
+            metricCounts[m]++;
+            metricSums[m] += value;
+        }
+    }
+
+    public synchronized long getCount(Metric metric) {
+        return metricCounts[metric.ordinal()];
+    }
+
+    public synchronized double getMean(Metric metric) {
+        int m = metric.ordinal();
+        return metricCounts[m] == 0 ? Double.NaN : metricSums[m] / metricCounts[m];
+    }
+
+    public synchronized long getCount(Stage stage) {
+        return counts[stage.ordinal()];
+    }
+
+    public synchronized long getTotalNanos(Stage stage) {
+        return totals[stage.ordinal()];
+    }
+
+    /**
+     * Write per-stage counts, latency summary and histograms, then the span timeline.
+     */
+    public synchronized void dump(File file) throws IOException {
+        PrintWriter out = new PrintWriter(new FileWriter(file));
+        try {
+            writeTo(out);
+        } finally {
+            out.close();
+        }
+        if (out.checkError()) {
+            throw new IOException("Failed to write " + file);
+        }
+    }
+
+    /**
+     * One line per stage, for the log when no file can be written.
+     */
+    public synchronized void logSummary() {
+        for (Stage stage : STAGES) {
+            int s = stage.ordinal();
+            if (counts[s] > 0) {
+                Log.i(TAG, String.format("%s: count %d, total %.1f ms, mean %.2f ms, ~p95 %.2f ms, max %.2f ms",
+                        stage, counts[s], totals[s] / 1e6, totals[s] / 1e6 / counts[s],
+                        percentileUpperBound(s, 95) / 1e6, maxima[s] / 1e6));
+            }
+        }
+        for (Metric metric : METRICS) {
+            int m = metric.ordinal();
+            if (metricCounts[m] > 0) {
+                Log.i(TAG, String.format("%s: count %d, mean %.2f, min %.2f, max %.2f",
+                        metric, metricCounts[m], metricSums[m] / metricCounts[m], metricMinima[m], metricMaxima[m]));
+            }
+        }
+    }
+
+    private void writeTo(PrintWriter out) {
+        out.println("# Stage latency summary (ms); p50/p95 are histogram bucket upper bounds");
+        out.println(String.format("%-16s %7s %10s %9s %9s %9s %9s",
+                "stage", "count", "total", "mean", "~p50", "~p95", "max"));
+        for (Stage stage : STAGES) {
+            int s = stage.ordinal();
+            if (counts[s] == 0) {
+                continue;
+            }
+            out.println(String.format("%-16s %7d %10.1f %9.2f %9.2f %9.2f %9.2f",
+                    stage, counts[s], totals[s] / 1e6, totals[s] / 1e6 / counts[s],
+                    percentileUpperBound(s, 50) / 1e6, percentileUpperBound(s, 95) / 1e6, maxima[s] / 1e6));
+        }
+
+        boolean anyMetric = false;
+        for (Metric metric : METRICS) {
+            int m = metric.ordinal();
+            if (metricCounts[m] == 0) {
+                continue;
+            }
+            if (!anyMetric) {
+                out.println();
+                out.println("# Metrics");
+                out.println(String.format("%-16s %7s %9s %9s %9s", "metric", "count", "mean", "min", "max"));
+                anyMetric = true;
+            }
+            out.println(String.format("%-16s %7d %9.2f %9.2f %9.2f",
+                    metric, metricCounts[m], metricSums[m] / metricCounts[m], metricMinima[m], metricMaxima[m]));
+        }
+
+        out.println();
+        out.println("# Histograms: bucket upper bound -> count");
+        for (Stage stage : STAGES) {
+            int s = stage.ordinal();
+            if (counts[s] == 0) {
+                continue;
+            }
+            StringBuilder line = new StringBuilder(stage.toString()).append(':');
+            for (int b = 0; b < HISTOGRAM_BUCKETS; b++) {
+                if (histograms[s][b] > 0) {
+                    line.append(' ').append(formatMicros(bucketUpperMicros(b))).append('=').append(histograms[s][b]);
+                }
+            }
+            out.println(line);
+        }
+
+        long kept = Math.min(spanCount, ringStage.length);
+        out.println();
+        out.println("# Last " + kept + " of " + spanCount + " spans: start offset (ms), stage, duration (ms)");
+        for (long i = spanCount - kept; i < spanCount; i++) {
+            int slot = (int) (i % ringStage.length);
+            out.println(String.format("%10.3f %-16s %9.3f",
+                    (ringStart[slot] - origin) / 1e6, STAGES[ringStage[slot]], ringDuration[slot] / 1e6));
+        }
+    }
+
+    private long percentileUpperBound(int s, int percent) {
+        long rank = (counts[s] * percent + 99) / 100;
+        long seen = 0;
+        for (int b = 0; b < HISTOGRAM_BUCKETS; b++) {
+            seen += histograms[s][b];
+            if (seen >= rank) {
+                return Math.min(bucketUpperMicros(b) * 1000, maxima[s]);
+            }
+        }
+        return maxima[s];
+    }
+
+    private static int bucket(long nanos) {
+        long micros = nanos / 1000;
+        int b = 64 - Long.numberOfLeadingZeros(micros); // 0 for < 1 us, else floor(log2) + 1
+        return Math.min(b, HISTOGRAM_BUCKETS - 1);
+    }
+
+    private static long bucketUpperMicros(int bucket) {
+        return 1L << bucket;
+    }
+
+    private static String formatMicros(long micros) {
+        if (micros >= 1000000) {
+            return (micros / 1000000) + "s";
+        }
+        if (micros >= 1000) {
+            return (micros / 1000) + "ms";
+        }
+        return micros + "us";
+    }
+}
@@ -0,0 +1,76 @@
+package jp.jaxa.iss.kibo.rpc.sampleapk;
+
+import org.opencv.core.Rect;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Overlapping tiles covering a crop at native scale, for the tiled mode of
+ * {@link YOLODetectionService}.
+ *
+ * Along each axis the crop gets the fewest tiles that overlap by at least {@code overlap}
+ * pixels, spread evenly from edge to edge, so the real overlap is usually a little larger.
+ * A side no longer than a tile gets a single tile of its own length. With tiles of the
+ * model input size (320) a tile is inferred without any resize: a 640x480 crop with 64
+ * pixels of overlap becomes 3 x 2 tiles.
+ */
+public class TileLayout {
+    private final int tileSize;
+    private final int overlap;
+
+    /**
+     * @param tileSize side of a tile in crop pixels
+     * @param overlap  minimum overlap of neighbouring tiles, below tileSize
+     */
+    public TileLayout(int tileSize, int overlap) {
+        if (tileSize < 1 || overlap < 0 || overlap >= tileSize) {
+            throw new IllegalArgumentException("Tile size " + tileSize + " with overlap " + overlap);
+        }
+        this.tileSize = tileSize;
+        this.overlap = overlap;
+    }
+
+    public int getTileSize() {
+        return tileSize;
+    }
+
+    public int getOverlap() {
+        return overlap;
+    }
+
+    /**
+     * @return the tiles of a crop, row by row; one tile when the crop fits into a tile
+     */
+    public List<Rect> tiles(int width, int height) {
+        int[] xs = starts(width);
+        int[] ys = starts(height);
+        int tileWidth = Math.min(tileSize, width);
+        int tileHeight = Math.min(tileSize, height);
+        List<Rect> tiles = new ArrayList<Rect>(xs.length * ys.length);
+        for (int y : ys) {
+            for (int x : xs) {
+                tiles.add(new Rect(x, y, tileWidth, tileHeight));
+            }
+        }
+        return tiles;
+    }
+
+    private int[] starts(int length) {
+        if (length <= tileSize) {
+            return new int[]{0};
+        }
+        int step = tileSize - overlap;
+        int count = (length - overlap + step - 1) / step;
+        int[] starts = new int[count];
+        for (int i = 0; i < count; i++) {
+            starts[i] = (int) Math.round((double) i * (length - tileSize) / (count - 1));
+        }
+        return starts;
+    }
+
+    @Override
+    public String toString() {
+        return tileSize + " px tiles, " + overlap + " px overlap";
+    }
+}
@@ -0,0 +1,1029 @@
+package jp.jaxa.iss.kibo.rpc.sampleapk;
+
+import android.util.Log;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+
+// OpenCV imports
+import org.opencv.aruco.Aruco;
+import org.opencv.aruco.Dictionary;
+import org.opencv.calib3d.Calib3d;
+import org.opencv.core.*;
+import org.opencv.imgproc.Imgproc;
+
+/**
+ * NavCam vision path of the mission: undistort, ArUco detection, marker-relative crop,
+ * enhancement and YOLO detection.
+ *
+ * Only depends on {@link NavCamSource}, so the exact same code runs inside YourService and
+ * in the desktop replay harness. Mission decisions (moves, setAreaInfo, report points) stay
+ * in YourService.
+ *
+ * Steps take a {@link MatPool.Scope} owned by the caller for the frame being processed; Mats
+ * returned as part of {@link AreaCrop} or from {@link #cropTarget} are owned by the caller
+ * and go back with {@code getMatPool().release(mat)}.
+ */
+public class VisionPipeline {
+    private static final String TAG = "VisionPipeline";
+
+    private static final float MARKER_LENGTH = 0.05f;
+    // The mission's NMS thresholds
+    private static final float STANDARD_NMS_THRESHOLD = 0.45f;
+    private static final float OVERLAP_NMS_THRESHOLD = 0.8f;
+
+    /**
+     * Creates the detector used by {@link #detect}, once; it is kept until {@link #release}.
+     * The detector must be thread-safe for {@link #detectAll}.
+     */
+    public interface DetectorFactory {
+        YOLODetectionService create();
+    }
+
+    /**
+     * ArUco corners and ids of one frame, both tracked by the scope they were detected in.
+     */
+    public static class MarkerSet {
+        public final List<Mat> corners;
+        public final Mat ids;
+
+        MarkerSet(List<Mat> corners, Mat ids) {
+            this.corners = corners;
+            this.ids = ids;
+        }
+
+        public int size() {
+            return ids.empty() ? 0 : ids.rows();
+        }
+    }
+
+    /**
+     * Model input of one area plus the marker pose it was cropped from.
+     */
+    public static class AreaCrop {
+        public final int areaId;
+        public final int markerId;
+        // YOLO input, null if no marker was usable; owned by the caller
+        public final Mat image;
+        // Marker translation in the camera frame (x right, y down, z forward), null without pose
+        public final double[] markerOffset;
+        // Board before enhancement in the geometry of image, for the trackers; only kept while
+        // tracking and when the profile does not letterbox, otherwise null; owned by the caller
+        public final Mat gray;
+
+        AreaCrop(int areaId, int markerId, Mat image, double[] markerOffset, Mat gray) {
+            this.areaId = areaId;
+            this.markerId = markerId;
+            this.image = image;
+            this.markerOffset = markerOffset;
+            this.gray = gray;
+        }
+    }
+
+    /**
+     * What the mission uses from a YOLO result, with class names as keys.
+     */
+    public static class ItemDetection {
+        public final Map<String, Integer> landmarkQuantities;
+        public final Set<String> treasureTypes;
+        // May be null
+        public final String highestConfidenceLandmark;
+        // Best box confidence per YOLO class id, 0 for classes not detected
+        final float[] classConfidences;
+        // Reused from a keyframe by the tracker instead of inferred, not a vote of its own
+        public final boolean tracked;
+
+        ItemDetection(Map<String, Integer> landmarkQuantities, Set<String> treasureTypes,
+                      String highestConfidenceLandmark, float[] classConfidences) {
+            this(landmarkQuantities, treasureTypes, highestConfidenceLandmark, classConfidences, false);
+        }
+
+        private ItemDetection(Map<String, Integer> landmarkQuantities, Set<String> treasureTypes,
+                              String highestConfidenceLandmark, float[] classConfidences, boolean tracked) {
+            this.landmarkQuantities = landmarkQuantities;
+            this.treasureTypes = treasureTypes;
+            this.highestConfidenceLandmark = highestConfidenceLandmark;
+            this.classConfidences = classConfidences;
+            this.tracked = tracked;
+        }
+
+        /**
+         * The same detection, flagged as reported by a tracked frame.
+         */
+        ItemDetection asTracked() {
+            return tracked ? this : new ItemDetection(landmarkQuantities, treasureTypes, highestConfidenceLandmark,
+                    classConfidences, true);
+        }
+
+        static ItemDetection empty() {
+            return new ItemDetection(new HashMap<String, Integer>(), new HashSet<String>(), null,
+                    new float[YOLODetectionService.getClassCount()]);
+        }
+
+        /**
+         * @return best confidence of a class in this detection, 0 if it was not detected
+         */
+        public float getConfidence(int classId) {
+            return classId >= 0 && classId < classConfidences.length ? classConfidences[classId] : 0f;
+        }
+
+        public boolean isEmpty() {
+            return landmarkQuantities.isEmpty() && treasureTypes.isEmpty() && highestConfidenceLandmark == null;
+        }
+
+        /**
+         * Vote the detections of several frames of the same area: treasures are united, a
+         * landmark class is kept when at least half of the frames saw it, with its median
+         * count, and the top landmark is the one most frames agreed on.
+         *
+         * Only inferred frames vote. A tracked frame repeats its keyframe, counting it would
+         * let one inference outvote the others; it is used only if nothing else is left.
+         */
+        public static ItemDetection merge(List<ItemDetection> frames) {
+            List<ItemDetection> inferred = new ArrayList<ItemDetection>(frames.size());
+            for (ItemDetection frame : frames) {
+                if (!frame.tracked) {
+                    inferred.add(frame);
+                }
+            }
+            if (!inferred.isEmpty()) {
+                frames = inferred;
+            }
+            if (frames.isEmpty()) {
+                return empty();
+            }
+            if (frames.size() == 1) {
+                return frames.get(0);
+            }
+            Set<String> treasureTypes = new HashSet<String>();
+            float[] classConfidences = new float[YOLODetectionService.getClassCount()];
+            Map<String, List<Integer>> counts = new HashMap<String, List<Integer>>();
+            Map<String, Integer> topVotes = new HashMap<String, Integer>();
+            String top = null;
+            for (ItemDetection frame : frames) {
+                treasureTypes.addAll(frame.treasureTypes);
+                for (int classId = 0; classId < classConfidences.length; classId++) {
+                    classConfidences[classId] = Math.max(classConfidences[classId], frame.getConfidence(classId));
+                }
+                for (Map.Entry<String, Integer> entry : frame.landmarkQuantities.entrySet()) {
+                    List<Integer> seen = counts.get(entry.getKey());
+                    if (seen == null) {
+                        seen = new ArrayList<Integer>();
+                        counts.put(entry.getKey(), seen);
+                    }
+                    seen.add(entry.getValue());
+                }
+                if (frame.highestConfidenceLandmark != null) {
+                    Integer votes = topVotes.get(frame.highestConfidenceLandmark);
+                    int newVotes = votes == null ? 1 : votes + 1;
+                    topVotes.put(frame.highestConfidenceLandmark, newVotes);
+                    // Ties go to the landmark reached first
+                    if (top == null || newVotes > topVotes.get(top)) {
+                        top = frame.highestConfidenceLandmark;
+                    }
+                }
+            }
+
+            Map<String, Integer> landmarkQuantities = new HashMap<String, Integer>();
+            for (Map.Entry<String, List<Integer>> entry : counts.entrySet()) {
+                List<Integer> seen = entry.getValue();
+                if (2 * seen.size() >= frames.size() || entry.getKey().equals(top)) {
+                    Collections.sort(seen);
+                    landmarkQuantities.put(entry.getKey(), seen.get(seen.size() / 2));
+                }
+            }
+            return new ItemDetection(landmarkQuantities, treasureTypes, top, classConfidences);
+        }
+    }
+
+    private final NavCamSource navCam;
+    private final DetectorFactory detectorFactory;
+
+    // Recycled native buffers for the vision pipeline, cleared in release()
+    private final MatPool matPool = new MatPool();
+    // Debug images are encoded off the calling thread
+    private final DebugImageWriter debugImages;
+    // Shared CLAHE / threshold operators
+    private final EnhancementStage enhancementStage;
+    private final PreprocessProfile areaProfile;
+    private final PreprocessProfile targetProfile;
+    // ArUco id -> area table, shared by every viewpoint
+    private final AreaMarkerAssigner markerAssigner = new AreaMarkerAssigner();
+
+    // NavCam intrinsics and ArUco dictionary never change during a mission, build them once
+    private Mat navCamMatrix;
+    private Mat navCamDistCoeffs;
+    private Dictionary arucoDictionary;
+
+    private StageTracer tracer = StageTracer.disabled();
+
+    // Scores raw frames before the expensive stages, none by default; released in release()
+    private FrameQualityGate qualityGate;
+    private int maxRecaptures;
+    private FrameQualityGate.Score lastFrameScore;
+
+    // Owns the model sessions and their reused input/output tensors, closed in release()
+    private YOLODetectionService detector;
+    // Runs the extra crops of detectAll, created on first use
+    private ExecutorService detectExecutor;
+
+    // Detect-then-track of detectAreas, off while trackMaxFrames is 0; one tracker per area
+    private double trackMinCorrelation;
+    private double trackMinIou;
+    private float trackMinKeyframeConfidence;
+    private int trackMaxFrames = 0;
+    private final Map<Integer, DetectionTracker> trackers = new HashMap<Integer, DetectionTracker>();
+
+    /**
+     * @param navCam             frame and intrinsics source, also receives debug images
+     * @param detectorFactory    creates the YOLO detector
+     * @param debugLevel         which debug images are written
+     * @param enhancementMode    CLAHE / threshold path selection
+     * @param areaProfileName    PreprocessProfiles name for area crops
+     * @param targetProfileName  PreprocessProfiles name for the marker-less target frame
+     */
+    public VisionPipeline(final NavCamSource navCam, DetectorFactory detectorFactory,
+                          DebugImageWriter.Level debugLevel, EnhancementStage.Mode enhancementMode,
+                          String areaProfileName, String targetProfileName) {
+        this.navCam = navCam;
+        this.detectorFactory = detectorFactory;
+        this.debugImages = new DebugImageWriter(new DebugImageWriter.Sink() {
+            @Override
+            public void save(Mat image, String name) {
+                navCam.saveMatImage(image, name);
+            }
+        }, matPool, debugLevel);
+        this.enhancementStage = new EnhancementStage(enhancementMode);
+        this.areaProfile = PreprocessProfiles.byName(areaProfileName, enhancementStage);
+        this.targetProfile = PreprocessProfiles.byName(targetProfileName, enhancementStage);
+        if (areaProfile == null || targetProfile == null) {
+            throw new IllegalArgumentException("Unknown preprocess profile: " + areaProfileName + ", " + targetProfileName);
+        }
+    }
+
+    public MatPool getMatPool() {
+        return matPool;
+    }
+
+    public DebugImageWriter getDebugImages() {
+        return debugImages;
+    }
+
+    /**
+     * Trace capture, undistort, ArUco, pose, crop/enhance and the detector's stages.
+     */
+    public synchronized void setTracer(StageTracer tracer) {
+        this.tracer = tracer != null ? tracer : StageTracer.disabled();
+        if (detector != null) {
+            detector.setTracer(this.tracer);
+        }
+    }
+
+    public StageTracer getTracer() {
+        return tracer;
+    }
+
+    /**
+     * Score every captured frame and re-capture rejected ones before they are undistorted.
+     * The pipeline takes ownership of the gate.
+     *
+     * @param maxRecaptures extra frames grabbed at most per capture; when none passes, the
+     *                      sharpest one is used
+     */
+    public void setQualityGate(FrameQualityGate qualityGate, int maxRecaptures) {
+        if (this.qualityGate != null && this.qualityGate != qualityGate) {
+            this.qualityGate.release();
+        }
+        this.qualityGate = qualityGate;
+        this.maxRecaptures = Math.max(0, maxRecaptures);
+    }
+
+    /**
+     * Let {@link #detectAreas} reuse an area's keyframe detection on the following frames
+     * its boxes can be tracked into, see {@link DetectionTracker}. Call on the mission thread.
+     *
+     * @param maxTrackedFrames frames reusing one keyframe, 0 turns tracking off
+     */
+    public void setTracking(double minCorrelation, double minIou, float minKeyframeConfidence,
+                            int maxTrackedFrames) {
+        releaseTrackers();
+        this.trackMinCorrelation = minCorrelation;
+        this.trackMinIou = minIou;
+        this.trackMinKeyframeConfidence = minKeyframeConfidence;
+        this.trackMaxFrames = Math.max(0, maxTrackedFrames);
+    }
+
+    /**
+     * Forget every area's keyframe; the next frame of each area is detected in full.
+     */
+    public void resetTracks() {
+        for (DetectionTracker tracker : trackers.values()) {
+            tracker.reset();
+        }
+    }
+
+    /**
+     * Quality of the frame the last capture returned, null without a gate.
+     */
+    public FrameQualityGate.Score getLastFrameScore() {
+        return lastFrameScore;
+    }
+
+    /**
+     * Grab a NavCam frame and undistort it, both tracked by the scope.
+     */
+    public Mat captureUndistorted(MatPool.Scope scope) {
+        return undistort(capture(scope), scope);
+    }
+
+    /**
+     * Grab a raw NavCam frame, tracked by the scope, passing it through the quality gate if
+     * one is set.
+     */
+    public Mat capture(MatPool.Scope scope) {
+        Mat best = null;
+        FrameQualityGate.Score bestScore = null;
+        for (int attempt = 0; ; attempt++) {
+            long start = tracer.begin();
+            Mat image = navCam.getMatNavCam();
+            tracer.end(StageTracer.Stage.CAPTURE, start);
+            if (qualityGate == null) {
+                lastFrameScore = null;
+                return scope.track(image);
+            }
+
+            FrameQualityGate.Score score = scoreFrame(image);
+            if (score.accepted) {
+                if (best != null) {
+                    best.release();
+                }
+                lastFrameScore = score;
+                return scope.track(image);
+            }
+            Log.w(TAG, "Frame " + (attempt + 1) + " rejected: " + score);
+            if (best == null || score.sharpness > bestScore.sharpness) {
+                if (best != null) {
+                    best.release();
+                }
+                best = image;
+                bestScore = score;
+            } else {
+                image.release();
+            }
+            if (attempt >= maxRecaptures) {
+                Log.w(TAG, "No frame passed the quality gate, using the sharpest: " + bestScore);
+                lastFrameScore = bestScore;
+                return scope.track(best);
+            }
+        }
+    }
+
+    private FrameQualityGate.Score scoreFrame(Mat image) {
+        long start = tracer.begin();
+        FrameQualityGate.Score score = qualityGate.score(image);
+        tracer.end(StageTracer.Stage.QUALITY_GATE, start);
+        tracer.record(StageTracer.Metric.FRAME_SHARPNESS, score.sharpness);
+        tracer.record(StageTracer.Metric.FRAME_BRIGHTNESS, score.brightness);
+        tracer.record(StageTracer.Metric.FRAME_SPREAD, score.spread);
+        if (!score.accepted) {
+            tracer.record(StageTracer.Metric.FRAME_REJECTED, 1);
+        }
+        return score;
+    }
+
+    public Mat undistort(Mat image, MatPool.Scope scope) {
+        Mat undistortedImage = scope.acquire(image.size(), image.type());
+        long start = tracer.begin();
+        Calib3d.undistort(image, undistortedImage, getNavCamMatrix(), getNavCamDistCoeffs(), getNavCamMatrix());
+        tracer.end(StageTracer.Stage.UNDISTORT, start);
+        return undistortedImage;
+    }
+
+    public MarkerSet detectMarkers(Mat undistortedImage, MatPool.Scope scope) {
+        List<Mat> corners = new ArrayList<Mat>();
+        Mat ids = scope.acquire();
+        long start = tracer.begin();
+        Aruco.detectMarkers(undistortedImage, getArucoDictionary(), corners, ids);
+        tracer.end(StageTracer.Stage.ARUCO_DETECT, start);
+        scope.trackAll(corners);
+        return new MarkerSet(corners, ids);
+    }
+
+    /**
+     * Number of markers in a fresh undistorted frame.
+     */
+    public int countMarkers() {
+        MatPool.Scope scope = matPool.openScope();
+        try {
+            Mat undistortedImage = captureUndistorted(scope);
+            return detectMarkers(undistortedImage, scope).size();
+        } finally {
+            scope.close();
+        }
+    }
+
+    /**
+     * Crop the boards of the given conceptual areas out of one undistorted frame.
+     *
+     * All markers are posed once and assigned to the areas by {@link AreaMarkerAssigner}, so
+     * a viewpoint can serve as many areas as it sees markers of; the crops go to
+     * {@link #detectAll} as one batch.
+     *
+     * @return one crop per area id, in the given order
+     */
+    public List<AreaCrop> cropAreas(Mat undistortedImage, MarkerSet markers, int[] conceptualAreaIds, Size resizeSize) {
+        List<AreaCrop> crops = new ArrayList<AreaCrop>();
+        for (int areaId : conceptualAreaIds) {
+            debugImages.saveDebug(undistortedImage, "area_" + areaId + "_raw.png");
+        }
+        if (markers.size() == 0) {
+            Log.w(TAG, "No ArUco markers detected for Areas " + Arrays.toString(conceptualAreaIds) + ".");
+            for (int areaId : conceptualAreaIds) {
+                crops.add(new AreaCrop(areaId, -1, null, null, null));
+            }
+            return crops;
+        }
+
+        MatPool.Scope scope = matPool.openScope();
+        try {
+            Mat rvecs = scope.acquire();
+            Mat tvecs = scope.acquire();
+            long poseStart = tracer.begin();
+            Aruco.estimatePoseSingleMarkers(markers.corners, MARKER_LENGTH, getNavCamMatrix(), getNavCamDistCoeffs(), rvecs, tvecs);
+            tracer.end(StageTracer.Stage.POSE_ESTIMATION, poseStart);
+
+            int count = markers.size();
+            int[] markerIds = new int[count];
+            double[][] positions = new double[count][];
+            for (int i = 0; i < count; i++) {
+                markerIds[i] = (int) markers.ids.get(i, 0)[0];
+                if (i < tvecs.rows()) {
+                    double[] tvec = tvecs.get(i, 0);
+                    positions[i] = tvec != null && tvec.length >= 3 ? tvec : null;
+                }
+            }
+
+            int[] assigned = markerAssigner.assign(markerIds, positions, conceptualAreaIds);
+            MissionLog.event(MissionLog.Event.MARKERS, markerIds.length, conceptualAreaIds.length, 0f);
+            if (MissionLog.isLoggable(Log.DEBUG)) {
+                MissionLog.d(TAG, "Markers {} for Areas {}: {}", Arrays.toString(markerIds),
+                        Arrays.toString(conceptualAreaIds), Arrays.toString(assigned));
+            }
+            for (int a = 0; a < conceptualAreaIds.length; a++) {
+                int areaId = conceptualAreaIds[a];
+                int marker = assigned[a];
+                if (marker == AreaMarkerAssigner.NO_MARKER) {
+                    Log.w(TAG, "No marker for Area " + areaId + ".");
+                    crops.add(new AreaCrop(areaId, -1, null, null, null));
+                    continue;
+                }
+                crops.add(cropArea(undistortedImage, markers.corners.get(marker), markerIds[marker],
+                        scope.track(rvecs.row(marker)), scope.track(tvecs.row(marker)), resizeSize, areaId));
+            }
+            return crops;
+        } finally {
+            scope.close();
+        }
+    }
+
+    /**
+     * Marker-relative crop of the target frame, or the whole enhanced frame without a usable
+     * marker.
+     *
+     * @return YOLO input owned by the caller, or null on failure
+     */
+    public Mat cropTarget(Mat targetImage, MarkerSet markers, Size resizeSize) {
+        debugImages.saveDebug(targetImage, "target_astronaut_raw.png");
+
+        if (markers.corners.isEmpty()) {
+            Log.w(TAG, "No ArUco markers detected in target image for cropping. Applying simpler enhancement.");
+            return enhanceTargetImage(targetImage, resizeSize);
+        }
+        // areaId=0 for target, no table entry: the closest marker the table does not know is used
+        AreaCrop crop = cropAreas(targetImage, markers, new int[]{0}, resizeSize).get(0);
+        // The target is a single frame, nothing to track
+        matPool.release(crop.gray);
+        if (crop.image == null) {
+            // E.g. only area markers (101..104) in view, which are never used for the target
+            Log.w(TAG, "No target crop from " + markers.size() + " markers. Applying simpler enhancement.");
+            return enhanceTargetImage(targetImage, resizeSize);
+        }
+        return crop.image;
+    }
+
+    /**
+     * Full target recognition on an undistorted frame.
+     *
+     * @return the first treasure type found, or "unknown"
+     */
+    public String recognizeTarget(Mat targetImage, Size resizeSize) {
+        MatPool.Scope scope = matPool.openScope();
+        try {
+            Log.i(TAG, "Processing target image from astronaut");
+
+            MarkerSet markers = detectMarkers(targetImage, scope);
+            Mat processedTarget = cropTarget(targetImage, markers, resizeSize);
+
+            if (processedTarget != null) {
+                scope.track(processedTarget);
+                Log.i(TAG, "Target image processing successful.");
+
+                ItemDetection detected = detect(processedTarget, "target", 0.3f);
+
+                Log.i(TAG, "Target - Landmark quantities: " + detected.landmarkQuantities);
+                Log.i(TAG, "Target - Treasure types: " + detected.treasureTypes);
+
+                if (!detected.treasureTypes.isEmpty()) {
+                    String targetTreasure = detected.treasureTypes.iterator().next();
+                    Log.i(TAG, "Target treasure detected: " + targetTreasure);
+                    return targetTreasure;
+                }
+            } else {
+                Log.w(TAG, "Target image processing failed.");
+            }
+
+            Log.w(TAG, "No treasure detected in target image.");
+            return "unknown";
+
+        } catch (Exception e) {
+            Log.e(TAG, "Error processing target image: " + e.getMessage());
+            return "unknown";
+        } finally {
+            scope.close();
+        }
+    }
+
+    /**
+     * Run YOLO on a model input with the mission's NMS thresholds.
+     *
+     * @param imageType "lost" or "target"
+     */
+    public ItemDetection detect(Mat image, String imageType, float conf) {
+        return detect(image, imageType, conf, STANDARD_NMS_THRESHOLD, OVERLAP_NMS_THRESHOLD);
+    }
+
+    public ItemDetection detect(Mat image, String imgtype, float conf,
+                                float standard_nms_threshold, float overlap_nms_threshold) {
+        return toItemDetection(detectResult(image, imgtype, conf, standard_nms_threshold, overlap_nms_threshold));
+    }
+
+    private YOLODetectionService.EnhancedDetectionResult detectResult(Mat image, String imgtype, float conf,
+                                                                      float standard_nms_threshold,
+                                                                      float overlap_nms_threshold) {
+        try {
+            MissionLog.d(TAG, "Starting YOLO detection - type: {}, conf: {}", imgtype, conf);
+
+            YOLODetectionService yoloService = getDetector();
+
+            return yoloService.DetectfromcvImage(
+                    image, imgtype, conf, standard_nms_threshold, overlap_nms_threshold
+            );
+        } catch (Exception e) {
+            Log.e(TAG, "Error in detect: " + e.getMessage(), e);
+            return new YOLODetectionService.EnhancedDetectionResult();
+        }
+    }
+
+    private ItemDetection toItemDetection(YOLODetectionService.EnhancedDetectionResult result) {
+        try {
+            // Name views of the compact result, handed over without another copy
+            Map<String, Integer> landmarkQuantities = result.getLandmarkNameCounts();
+            Set<String> treasureTypes = result.getTreasureNames();
+            String highestConfLandmarkName = result.getHighestConfidenceLandmarkName();
+
+            float[] classConfidences = new float[YOLODetectionService.getClassCount()];
+            for (int classId = 0; classId < classConfidences.length; classId++) {
+                classConfidences[classId] = result.getConfidence(classId);
+            }
+
+            MissionLog.d(TAG, "YOLO - Landmark quantities: {}", landmarkQuantities);
+            MissionLog.d(TAG, "YOLO - Treasure types: {}", treasureTypes);
+            if (highestConfLandmarkName != null) {
+                MissionLog.d(TAG, "YOLO - Highest Confidence Landmark: {}", highestConfLandmarkName);
+            }
+
+            return new ItemDetection(landmarkQuantities, treasureTypes, highestConfLandmarkName, classConfidences);
+
+        } catch (Exception e) {
+            Log.e(TAG, "Error in detect: " + e.getMessage(), e);
+            return ItemDetection.empty();
+        }
+    }
+
+    /**
+     * Detect the area crops of one frame of a burst, like {@link #detectAll}. With tracking
+     * on, an area whose tracker follows its keyframe into this frame reuses the keyframe's
+     * detection without inference, flagged {@link ItemDetection#tracked}; the other crops are
+     * detected and become their area's keyframe.
+     *
+     * @return one detection per crop, in order; empty for a crop without image
+     */
+    public List<ItemDetection> detectAreas(List<AreaCrop> crops, String imageType, float conf) {
+        ItemDetection[] detections = new ItemDetection[crops.size()];
+        List<Integer> pending = new ArrayList<Integer>();
+        List<Mat> images = new ArrayList<Mat>();
+        for (int i = 0; i < crops.size(); i++) {
+            AreaCrop crop = crops.get(i);
+            if (crop.image == null) {
+                detections[i] = ItemDetection.empty();
+                continue;
+            }
+            DetectionTracker tracker = getTracker(crop.areaId);
+            ItemDetection tracked = tracker != null ? tracker.track(crop.gray) : null;
+            if (tracked != null) {
+                MissionLog.d(TAG, "Area {} tracked from its keyframe", crop.areaId);
+                detections[i] = tracked.asTracked();
+            } else {
+                pending.add(i);
+                images.add(crop.image);
+            }
+        }
+
+        List<YOLODetectionService.EnhancedDetectionResult> results = detectResults(images, imageType, conf);
+        for (int k = 0; k < pending.size(); k++) {
+            AreaCrop crop = crops.get(pending.get(k));
+            ItemDetection detection = toItemDetection(results.get(k));
+            DetectionTracker tracker = getTracker(crop.areaId);
+            if (tracker != null) {
+                tracker.setKeyframe(crop.gray, results.get(k), detection);
+            }
+            detections[pending.get(k)] = detection;
+        }
+        return Arrays.asList(detections);
+    }
+
+    /**
+     * @return the area's tracker, null while tracking is off
+     */
+    private DetectionTracker getTracker(int areaId) {
+        if (trackMaxFrames == 0) {
+            return null;
+        }
+        DetectionTracker tracker = trackers.get(areaId);
+        if (tracker == null) {
+            tracker = new DetectionTracker(areaId, trackMinCorrelation, trackMinIou, trackMinKeyframeConfidence,
+                    trackMaxFrames);
+            trackers.put(areaId, tracker);
+        }
+        return tracker;
+    }
+
+    private void releaseTrackers() {
+        int keyframes = 0;
+        int tracked = 0;
+        for (DetectionTracker tracker : trackers.values()) {
+            keyframes += tracker.getKeyframeCount();
+            tracked += tracker.getTrackedCount();
+            tracker.release();
+        }
+        if (!trackers.isEmpty()) {
+            Log.i(TAG, "Tracking: " + keyframes + " keyframes detected, " + tracked + " frames tracked");
+        }
+        trackers.clear();
+    }
+
+    /**
+     * Run YOLO on several model inputs at once, e.g. Areas 2 and 3 cropped from the same
+     * frame. The first runs on the calling thread, the others on worker threads, up to the
+     * detector's pool size in parallel.
+     *
+     * @param images model inputs; a null entry gives an empty detection
+     * @return one detection per image, in order
+     */
+    public List<ItemDetection> detectAll(List<Mat> images, String imageType, float conf) {
+        List<ItemDetection> detections = new ArrayList<ItemDetection>(images.size());
+        for (YOLODetectionService.EnhancedDetectionResult result : detectResults(images, imageType, conf)) {
+            detections.add(toItemDetection(result));
+        }
+        return detections;
+    }
+
+    private List<YOLODetectionService.EnhancedDetectionResult> detectResults(List<Mat> images, final String imageType,
+                                                                             final float conf) {
+        List<YOLODetectionService.EnhancedDetectionResult> results =
+                new ArrayList<YOLODetectionService.EnhancedDetectionResult>(images.size());
+        List<Future<YOLODetectionService.EnhancedDetectionResult>> pending =
+                new ArrayList<Future<YOLODetectionService.EnhancedDetectionResult>>();
+        if (images.size() > 1) {
+            ExecutorService executor = getDetectExecutor();
+            for (final Mat image : images.subList(1, images.size())) {
+                pending.add(executor.submit(new Callable<YOLODetectionService.EnhancedDetectionResult>() {
+                    @Override
+                    public YOLODetectionService.EnhancedDetectionResult call() {
+                        return image != null ? detectResult(image, imageType, conf,
+                                STANDARD_NMS_THRESHOLD, OVERLAP_NMS_THRESHOLD)
+                                : new YOLODetectionService.EnhancedDetectionResult();
+                    }
+                }));
+            }
+        }
+
+        if (!images.isEmpty()) {
+            Mat first = images.get(0);
+            results.add(first != null ? detectResult(first, imageType, conf,
+                    STANDARD_NMS_THRESHOLD, OVERLAP_NMS_THRESHOLD)
+                    : new YOLODetectionService.EnhancedDetectionResult());
+        }
+        for (Future<YOLODetectionService.EnhancedDetectionResult> future : pending) {
+            try {
+                results.add(future.get());
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                results.add(new YOLODetectionService.EnhancedDetectionResult());
+            } catch (ExecutionException e) {
+                Log.e(TAG, "Error in parallel detect: " + e.getCause(), e.getCause());
+                results.add(new YOLODetectionService.EnhancedDetectionResult());
+            }
+        }
+        return results;
+    }
+
+    private synchronized ExecutorService getDetectExecutor() {
+        if (detectExecutor == null) {
+            int workers = Math.max(1, getDetector().getPoolSize() - 1);
+            detectExecutor = Executors.newFixedThreadPool(workers, new ThreadFactory() {
+                private int count = 0;
+
+                @Override
+                public Thread newThread(Runnable runnable) {
+                    Thread thread = new Thread(runnable, "yolo-detect-" + (++count));
+                    thread.setDaemon(true);
+                    return thread;
+                }
+            });
+        }
+        return detectExecutor;
+    }
+
+    /**
+     * The detector, created on first use. A detector whose model failed to load is not kept,
+     * so the next call tries again.
+     */
+    private synchronized YOLODetectionService getDetector() {
+        if (detector == null) {
+            YOLODetectionService created = detectorFactory.create();
+            created.setTracer(tracer);
+            if (!created.isInitialized()) {
+                created.close();
+                return created;
+            }
+            detector = created;
+        }
+        return detector;
+    }
+
+    /**
+     * Free native resources: pending debug images, the trackers, the detector, the quality
+     * gate, cached intrinsics and every pooled Mat.
+     *
+     * @param debugFlushMillis how long pending debug images may still be written
+     */
+    public void release(long debugFlushMillis) {
+        debugImages.shutdown(debugFlushMillis);
+        releaseTrackers();
+        enhancementStage.release();
+        if (qualityGate != null) {
+            qualityGate.release();
+            qualityGate = null;
+        }
+        synchronized (this) {
+            if (detectExecutor != null) {
+                detectExecutor.shutdown();
+                detectExecutor = null;
+            }
+            if (detector != null) {
+                // Waits for detections still running on the executor
+                detector.close();
+                detector = null;
+            }
+        }
+        if (navCamMatrix != null) {
+            navCamMatrix.release();
+            navCamMatrix = null;
+        }
+        if (navCamDistCoeffs != null) {
+            navCamDistCoeffs.release();
+            navCamDistCoeffs = null;
+        }
+        matPool.clear();
+    }
+
+    private Mat enhanceTargetImage(Mat image, Size resizeSize) {
+        long stageStart = tracer.begin();
+        MatPool.Scope scope = matPool.openScope();
+        try {
+            PreprocessProfile profile = targetProfile;
+            Size warpSize = profile.getWarpSize(resizeSize);
+
+            // NavCam frames are single channel already, toGray only converts when needed
+            Mat grayImage = PreprocessProfiles.toGray(image, scope.acquire());
+            Mat resized = scope.acquire(warpSize, CvType.CV_8UC1);
+            Imgproc.resize(grayImage, resized, warpSize);
+
+            Mat enhanced = scope.acquire(resizeSize, CvType.CV_8UC1);
+            profile.apply(resized, scope.acquire(), enhanced, resizeSize);
+
+            debugImages.saveFinal(enhanced, "target_astronaut_enhanced.png");
+
+            return scope.detach(enhanced);
+
+        } catch (Exception e) {
+            Log.e(TAG, "Error enhancing target image: " + e.getMessage());
+            return null;
+        } finally {
+            scope.close();
+            tracer.end(StageTracer.Stage.CROP_ENHANCE, stageStart);
+        }
+    }
+
+    /**
+     * Crop one area board relative to its marker.
+     *
+     * @return the crop; its image is null when the crop failed
+     */
+    private AreaCrop cropArea(Mat image, Mat corners, int markerId, Mat rvec, Mat tvec, Size resizeSize, int areaId) {
+        MatPool.Scope scope = matPool.openScope();
+        Mat gray = trackMaxFrames > 0 ? new Mat() : null;
+        try {
+            MissionLog.d(TAG, "Processing Area {} with marker ID {}", areaId, markerId);
+            Mat cameraMatrix = getNavCamMatrix();
+            Mat distCoeffs = getNavCamDistCoeffs();
+
+            // The annotated frame is only drawn when debug images are kept
+            if (debugImages.getLevel() == DebugImageWriter.Level.ALL) {
+                Mat imageWithFrame = scope.acquire(image.size(), CvType.CV_8UC3);
+                if (image.channels() == 1) {
+                    Imgproc.cvtColor(image, imageWithFrame, Imgproc.COLOR_GRAY2RGB);
+                } else {
+                    image.copyTo(imageWithFrame);
+                }
+                Mat markerId1x1 = scope.acquire(1, 1, CvType.CV_32S);
+                markerId1x1.put(0, 0, markerId);
+                Aruco.drawDetectedMarkers(imageWithFrame, Collections.singletonList(corners), markerId1x1);
+                Calib3d.drawFrameAxes(imageWithFrame, cameraMatrix, distCoeffs, rvec, tvec, 0.1f);
+
+                String markerFilename = "area_" + areaId + "_marker_0_with_frame.png";
+                debugImages.saveDebug(imageWithFrame, markerFilename);
+                MissionLog.d(TAG, "Marker image queued as {}", markerFilename);
+            }
+
+            // Translation from camera to marker, used by the mission to refine the report point
+            double[] offset = new double[3];
+            tvec.get(0, 0, offset);
+
+            Mat cropped = processCropRegion(image, cameraMatrix, distCoeffs, rvec, tvec, resizeSize, areaId, gray);
+            if (gray != null && (cropped == null || gray.empty())) {
+                gray.release();
+                gray = null;
+            }
+            return new AreaCrop(areaId, markerId, cropped, offset, gray);
+        } catch (Exception e) {
+            Log.e(TAG, "Error in cropArea for Area " + areaId + ": " + e.getMessage(), e);
+            if (gray != null) {
+                gray.release();
+            }
+            return new AreaCrop(areaId, -1, null, null, null);
+        } finally {
+            scope.close();
+        }
+    }
+
+    /**
+     * @param grayOut receives the warped board before enhancement when it has the model
+     *                input's geometry, otherwise left untouched; may be null
+     */
+    private Mat processCropRegion(Mat image, Mat cameraMatrix, Mat distCoeffs, Mat rvec, Mat tvec, Size resizeSize,
+                                  int areaId, Mat grayOut) {
+        MatPool.Scope scope = matPool.openScope();
+        try {
+            // Define the 3D coordinates of the target cropping region relative to the AR tag.
+            // These points form a rectangle in the plane of the AR tag.
+            org.opencv.core.Point3[] cropCorners3D = {
+                    new org.opencv.core.Point3(-0.0265, 0.0420, 0),    // Top-left of the target area
+                    new org.opencv.core.Point3(-0.2385, 0.0420, 0),   // Top-right
+                    new org.opencv.core.Point3(-0.2385, -0.1170, 0),  // Bottom-right
+                    new org.opencv.core.Point3(-0.0265, -0.1170, 0)   // Bottom-left
+            };
+
+            MatOfPoint3f cropCornersMat = scope.track(new MatOfPoint3f(cropCorners3D));
+            MatOfPoint2f cropCorners2D = scope.track(new MatOfPoint2f());
+
+            MatOfDouble distCoeffsDouble = scope.track(new MatOfDouble(distCoeffs.rows(), distCoeffs.cols()));
+            distCoeffs.copyTo(distCoeffsDouble);
+
+            // Project these 3D points onto the 2D image plane using the camera pose and intrinsics
+            Calib3d.projectPoints(cropCornersMat, rvec, tvec, cameraMatrix, distCoeffsDouble, cropCorners2D);
+            org.opencv.core.Point[] cropPoints2D = cropCorners2D.toArray();
+
+            if (cropPoints2D.length == 4) {
+                return cropEnhanceAndBinarize(image, cropPoints2D, resizeSize, areaId, grayOut);
+            }
+
+            return null;
+
+        } catch (Exception e) {
+            Log.e(TAG, "Error in processCropRegion for Area " + areaId + ": " + e.getMessage(), e);
+            return null;
+        } finally {
+            scope.close();
+        }
+    }
+
+    private Mat cropEnhanceAndBinarize(Mat image, org.opencv.core.Point[] cropPoints2D, Size resizeSize, int areaId,
+                                       Mat grayOut) {
+        long stageStart = tracer.begin();
+        MatPool.Scope scope = matPool.openScope();
+        try {
+            // NavCam frames are single channel already, toGray only converts when needed
+            Mat grayImage = PreprocessProfiles.toGray(image, scope.acquire());
+
+            // Warp straight to the profile's working size (the model resolution, or its 4:3
+            // part when letterboxed); enhancing a 640x480 warp that is downscaled afterwards
+            // threw away 3/4 of the work
+            PreprocessProfile profile = areaProfile;
+            Size warpSize = profile.getWarpSize(resizeSize);
+            org.opencv.core.Point[] dstPointsArray = {
+                    new org.opencv.core.Point(0, 0),
+                    new org.opencv.core.Point(warpSize.width, 0),
+                    new org.opencv.core.Point(warpSize.width, warpSize.height),
+                    new org.opencv.core.Point(0, warpSize.height)
+            };
+
+            MatOfPoint2f srcPoints = scope.track(new MatOfPoint2f(cropPoints2D));
+            MatOfPoint2f dstPoints = scope.track(new MatOfPoint2f(dstPointsArray));
+
+            Mat perspectiveTransform = scope.track(Imgproc.getPerspectiveTransform(srcPoints, dstPoints));
+            Mat warpedImage = scope.acquire(warpSize, CvType.CV_8UC1);
+            Imgproc.warpPerspective(grayImage, warpedImage, perspectiveTransform, warpSize);
+
+            Mat claheOutput = scope.acquire();
+            Mat finalImage = scope.acquire(resizeSize, CvType.CV_8UC1);
+            profile.apply(warpedImage, claheOutput, finalImage, resizeSize);
+            MissionLog.d(TAG, "Area {} preprocessed with profile {}", areaId, profile.getName());
+            // A letterboxed warp does not line up with the model input's boxes
+            if (grayOut != null && warpSize.equals(resizeSize)) {
+                warpedImage.copyTo(grayOut);
+            }
+
+            if (areaId > 0) {
+                debugImages.saveDebug(warpedImage, "area_" + areaId + "_warped.png");
+                debugImages.saveDebug(claheOutput, "area_" + areaId + "_clahe.png");
+                debugImages.saveFinal(finalImage, "area_" + areaId + "_final.png");
+            } else {
+                debugImages.saveDebug(warpedImage, "target_warped.png");
+                debugImages.saveDebug(claheOutput, "target_clahe.png");
+                debugImages.saveFinal(finalImage, "target_final.png");
+            }
+
+            return scope.detach(finalImage);
+
+        } catch (Exception e) {
+            Log.e(TAG, "Error in cropEnhanceAndBinarize for Area " + areaId + ": " + e.getMessage(), e);
+            return null;
+        } finally {
+            scope.close();
+            tracer.end(StageTracer.Stage.CROP_ENHANCE, stageStart);
+        }
+    }
+
+    private Mat getNavCamMatrix() {
+        if (navCamMatrix == null) {
+            loadNavCamIntrinsics();
+        }
+        return navCamMatrix;
+    }
+
+    private Mat getNavCamDistCoeffs() {
+        if (navCamDistCoeffs == null) {
+            loadNavCamIntrinsics();
+        }
+        return navCamDistCoeffs;
+    }
+
+    private void loadNavCamIntrinsics() {
+        double[][] intrinsics = navCam.getNavCamIntrinsics();
+        navCamMatrix = new Mat(3, 3, CvType.CV_64F);
+        navCamDistCoeffs = new Mat(1, 5, CvType.CV_64F);
+        navCamMatrix.put(0, 0, intrinsics[0]);
+        navCamDistCoeffs.put(0, 0, intrinsics[1]);
+    }
+
+    private Dictionary getArucoDictionary() {
+        if (arucoDictionary == null) {
+            arucoDictionary = Aruco.getPredefinedDictionary(Aruco.DICT_5X5_250);
+        }
+        return arucoDictionary;
+    }
+}
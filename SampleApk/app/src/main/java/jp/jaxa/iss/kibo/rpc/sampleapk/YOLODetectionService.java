@@ -7,20 +7,52 @@ import org.opencv.core.*;
 import org.opencv.imgproc.Imgproc;
 
 import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
 import java.nio.FloatBuffer;
 import java.util.*;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
 
 /**
  * Enhanced YOLO Object Detection Service with intelligent NMS
  * Matches functionality of Python yoloraw_postprocessing.py
+ *
+ * Thread-safe: detections run on a small pool of ONNX Runtime sessions, each with its own
+ * input/output tensors, so several crops can be inferred at once. Sessions beyond the first
+ * are created when concurrent callers need them; a caller finding the pool exhausted waits
+ * for a session to come back.
+ *
+ * With a {@link TileLayout} set, crops larger than a tile are inferred tile by tile at
+ * native scale instead of being resized into the model input as a whole; the tiles run in
+ * parallel on the pool and their boxes are merged by a cross-tile NMS before the usual
+ * treasure / landmark rules.
  */
 public class YOLODetectionService {
     private static final String TAG = "YOLODetectionService";
     private static final String MODEL_NAME = "best.onnx";
+    // Static INT8 (QDQ) model from YOLO/quantize_int8.py, used instead of MODEL_NAME when packaged
+    private static final String QUANTIZED_MODEL_NAME = "best_int8.onnx";
+    private static final String INPUT_NAME = "images";
+    // Extra inputs of a fused model (YOLO/fuse_pre_post.py), which outputs [N, 6] detections
+    private static final String FUSED_CONF_INPUT = "conf_threshold";
+    private static final String FUSED_IOU_INPUT = "iou_threshold";
     private static final int INPUT_SIZE = 320;
+    private static final Size MODEL_INPUT_SIZE = new Size(INPUT_SIZE, INPUT_SIZE);
     private static final float DEFAULT_CONF_THRESHOLD = 0.3f;
     private static final float DEFAULT_STANDARD_NMS_THRESHOLD = 0.45f;
     private static final float DEFAULT_OVERLAP_NMS_THRESHOLD = 0.8f;
+    // Areas 2 and 3 are seen from the same point and inferred together
+    static final int DEFAULT_POOL_SIZE = 2;
+    // A box of one tile is dropped when a more confident box of the same class from another
+    // tile covers this much of it: the tile that cuts an object off gives a truncated box
+    private static final float TILE_MERGE_THRESHOLD = 0.6f;
 
     // Class definitions matching Python code
     private static final String[] CLASS_NAMES = {
@@ -38,29 +70,112 @@ public class YOLODetectionService {
     // shell,
     // treasure_box
 
+    // Process-wide environment shared with every other ORT user, never closed here
     private OrtEnvironment env;
-    private OrtSession session;
     private Context context;
-    private boolean isInitialized = false;
+    private volatile boolean isInitialized = false;
+    private String modelName;
+    // uint8 NHWC input with normalisation and NMS inside the graph
+    private boolean fusedModel = false;
+    private int fusedChannels = 3;
+    private volatile StageTracer tracer = StageTracer.disabled();
+    // Results of recent near-identical model inputs, null when off
+    private volatile DetectionCache detectionCache;
+    // Tiled inference of large crops, null when off
+    private volatile TileLayout tileLayout;
+    // Runs the extra tiles of a tiled detection, created on first use
+    private ExecutorService tileExecutor;
+
+    // Session pool: slots holds every session created, idleSlots those not running
+    private final int poolSize;
+    private final List<InferenceSlot> slots = new ArrayList<InferenceSlot>();
+    private final BlockingQueue<InferenceSlot> idleSlots = new LinkedBlockingQueue<InferenceSlot>();
+    private String modelPath;
+    private OrtSession.SessionOptions sessionOptions;
+    private boolean ownsSessionOptions;
+    private boolean closed = false;
 
     public YOLODetectionService(Context context) {
+        this(context, DEFAULT_POOL_SIZE);
+    }
+
+    /**
+     * @param poolSize maximum number of concurrent detections, each on its own session
+     */
+    public YOLODetectionService(Context context, int poolSize) {
         this.context = context;
-        initializeModel();
+        this.poolSize = Math.max(1, poolSize);
+        initializeModel(null, null);
+    }
+
+    /**
+     * Load the model from a file instead of the APK assets (desktop harnesses).
+     */
+    public YOLODetectionService(File modelFile) {
+        this(modelFile, null);
+    }
+
+    /**
+     * Load the model from a file with custom session options, e.g. to compare optimization
+     * levels or thread counts on the desktop. Null options mean the defaults used on the robot.
+     */
+    public YOLODetectionService(File modelFile, OrtSession.SessionOptions sessionOptions) {
+        this(modelFile, sessionOptions, DEFAULT_POOL_SIZE);
+    }
+
+    /**
+     * @param sessionOptions options for every session of the pool, owned by the caller and
+     *                       kept open until {@link #close}; null for the robot defaults
+     * @param poolSize       maximum number of concurrent detections
+     */
+    public YOLODetectionService(File modelFile, OrtSession.SessionOptions sessionOptions, int poolSize) {
+        this.context = null;
+        this.poolSize = Math.max(1, poolSize);
+        initializeModel(modelFile, sessionOptions);
+    }
+
+    /**
+     * Post-processing only, no model is loaded (desktop benchmarks).
+     */
+    YOLODetectionService() {
+        this.context = null;
+        this.poolSize = 1;
     }
 
-    private void initializeModel() {
+    private void initializeModel(File modelFile, OrtSession.SessionOptions sessionOptions) {
         try {
             Log.i(TAG, "Initializing YOLO model...");
 
             env = OrtEnvironment.getEnvironment();
-            File modelFile = copyAssetToFile(MODEL_NAME);
-
-            OrtSession.SessionOptions sessionOptions = new OrtSession.SessionOptions();
-            sessionOptions.setOptimizationLevel(OrtSession.SessionOptions.OptLevel.BASIC_OPT);
+            if (modelFile == null) {
+                modelFile = copyPreferredModel();
+            }
 
-            session = env.createSession(modelFile.getAbsolutePath(), sessionOptions);
+            if (sessionOptions == null) {
+                sessionOptions = new OrtSession.SessionOptions();
+                ownsSessionOptions = true;
+                // QDQ pairs are only fused into integer kernels from the extended level on,
+                // with BASIC_OPT an INT8 model runs as dequantize + FP32 and gains nothing
+                sessionOptions.setOptimizationLevel(isQuantizedModel(modelFile)
+                        ? OrtSession.SessionOptions.OptLevel.EXTENDED_OPT
+                        : OrtSession.SessionOptions.OptLevel.BASIC_OPT);
+                // Split the cores between the sessions that may run at once, ORT's default of
+                // one thread per core for every session oversubscribes the CPU
+                sessionOptions.setIntraOpNumThreads(intraOpThreads(poolSize));
+            }
+            this.sessionOptions = sessionOptions;
+            this.modelPath = modelFile.getAbsolutePath();
+
+            // The first session is created up front: it validates the model and tells its type
+            InferenceSlot first = new InferenceSlot(env.createSession(modelPath, sessionOptions));
+            slots.add(first);
+            idleSlots.add(first);
+            modelName = modelFile.getName();
+            detectFusedModel(first.session);
             isInitialized = true;
-            Log.i(TAG, "YOLO model initialized successfully");
+            Log.i(TAG, "YOLO model initialized successfully: " + modelName
+                    + (fusedModel ? " (fused, " + fusedChannels + " channel uint8 input)" : "")
+                    + ", up to " + poolSize + " sessions");
 
         } catch (Exception e) {
             Log.e(TAG, "Failed to initialize YOLO model: " + e.getMessage(), e);
@@ -68,6 +183,95 @@ public class YOLODetectionService {
         }
     }
 
+    public void setTracer(StageTracer tracer) {
+        this.tracer = tracer != null ? tracer : StageTracer.disabled();
+    }
+
+    /**
+     * Reuse results of near-identical inputs, see {@link DetectionCache}; null turns it off.
+     */
+    public void setDetectionCache(DetectionCache detectionCache) {
+        this.detectionCache = detectionCache;
+    }
+
+    public DetectionCache getDetectionCache() {
+        return detectionCache;
+    }
+
+    /**
+     * Infer crops larger than a tile tile by tile, see {@link TileLayout}; null turns it off
+     * and crops are resized into the model input whole again.
+     */
+    public void setTileLayout(TileLayout tileLayout) {
+        this.tileLayout = tileLayout;
+    }
+
+    public TileLayout getTileLayout() {
+        return tileLayout;
+    }
+
+    static int intraOpThreads(int poolSize) {
+        return Math.max(1, Runtime.getRuntime().availableProcessors() / Math.max(1, poolSize));
+    }
+
+    /**
+     * Take an idle session, create one while the pool is below its size, else wait.
+     */
+    private InferenceSlot acquireSlot() throws OrtException, InterruptedException {
+        InferenceSlot slot = idleSlots.poll();
+        if (slot == null) {
+            synchronized (slots) {
+                if (!closed && slots.size() < poolSize) {
+                    slot = new InferenceSlot(env.createSession(modelPath, sessionOptions));
+                    slots.add(slot);
+                    Log.i(TAG, "Created session " + slots.size() + "/" + poolSize);
+                    return slot;
+                }
+            }
+            slot = idleSlots.take();
+        }
+        synchronized (slots) {
+            if (closed) {
+                // Hand it back to close(), which is waiting for every slot
+                idleSlots.add(slot);
+                throw new IllegalStateException("YOLO service closed");
+            }
+        }
+        return slot;
+    }
+
+    private void releaseSlot(InferenceSlot slot) {
+        idleSlots.add(slot);
+    }
+
+    private void detectFusedModel(OrtSession session) throws OrtException {
+        NodeInfo input = session.getInputInfo().get(INPUT_NAME);
+        if (input != null && input.getInfo() instanceof TensorInfo) {
+            TensorInfo info = (TensorInfo) input.getInfo();
+            long[] shape = info.getShape();
+            if (info.type == OnnxJavaType.UINT8 && shape.length == 4) {
+                fusedModel = true;
+                fusedChannels = (int) shape[3];
+            }
+        }
+    }
+
+    /**
+     * The INT8 model when it was packaged into the assets, else the FP32 one.
+     */
+    private File copyPreferredModel() throws IOException {
+        try {
+            return copyAssetToFile(QUANTIZED_MODEL_NAME);
+        } catch (FileNotFoundException e) {
+            Log.i(TAG, QUANTIZED_MODEL_NAME + " not packaged, using " + MODEL_NAME);
+            return copyAssetToFile(MODEL_NAME);
+        }
+    }
+
+    static boolean isQuantizedModel(File modelFile) {
+        return modelFile.getName().endsWith("_int8.onnx");
+    }
+
     private File copyAssetToFile(String assetName) throws IOException {
         InputStream inputStream = context.getAssets().open(assetName);
         File outputFile = new File(context.getFilesDir(), assetName);
@@ -106,42 +310,254 @@ public class YOLODetectionService {
         }
 
         try {
-            Log.i(TAG, "Starting detection for image type: " + imageType);
-
-            // Preprocess image
-            Mat preprocessedImage = preprocessImage(image);
-            float[][][][] inputData = matToFloatArray(preprocessedImage);
-
-            // Run inference to get raw tensor
-            Map<String, OnnxTensor> inputMap = new HashMap<String, OnnxTensor>();
-            OnnxTensor inputTensor = OnnxTensor.createTensor(env, inputData);
-            inputMap.put("images", inputTensor);
-
-            OrtSession.Result result = session.run(inputMap);
-            OnnxTensor outputTensor = (OnnxTensor) result.get(0);
-            float[][][] rawOutput = (float[][][]) outputTensor.getValue();
-
-            // Apply intelligent post-processing pipeline
-            EnhancedDetectionResult detectionResult = yoloPostprocessPipeline(
-                    rawOutput, confThreshold, standardNmsThreshold, overlapNmsThreshold,
-                    INPUT_SIZE, imageType, image.width(), image.height());
+            MissionLog.d(TAG, "Starting detection for image type: {}", imageType);
+
+            DetectionCache cache = detectionCache;
+            long[] inputHash = null;
+            if (cache != null) {
+                inputHash = DetectionCache.hash(image);
+                EnhancedDetectionResult cached = cache.get(inputHash, imageType, confThreshold,
+                        standardNmsThreshold, overlapNmsThreshold, image.width(), image.height());
+                if (cached != null) {
+                    MissionLog.d(TAG, "Detection cache hit for {} image", imageType);
+                    return cached;
+                }
+            }
 
-            // Clean up
-            inputTensor.close();
-            result.close();
-            preprocessedImage.release();
+            EnhancedDetectionResult detectionResult;
+            TileLayout layout = tileLayout;
+            List<Rect> tiles = layout != null ? layout.tiles(image.width(), image.height()) : null;
+            if (tiles != null && tiles.size() > 1) {
+                detectionResult = detectTiled(image, tiles, confThreshold, standardNmsThreshold,
+                        overlapNmsThreshold, imageType);
+            } else if (fusedModel) {
+                // The graph already thresholded and suppressed per class, at the looser of the
+                // two NMS thresholds so the Java constraints below still see every candidate
+                float[][] detections = runFusedInference(image, confThreshold,
+                        Math.max(standardNmsThreshold, overlapNmsThreshold));
+
+                long stageStart = tracer.begin();
+                detectionResult = fusedPostprocess(detections, confThreshold, standardNmsThreshold,
+                        overlapNmsThreshold, imageType, image.width(), image.height());
+                tracer.end(StageTracer.Stage.POSTPROCESS, stageStart);
+            } else {
+                // The raw output lives in the slot's pinned tensor until its next run
+                InferenceSlot slot = acquireSlot();
+                try {
+                    slot.runPinned(image);
+
+                    // Apply intelligent post-processing pipeline
+                    long stageStart = tracer.begin();
+                    detectionResult = yoloPostprocessPipeline(
+                            slot.outputBuffer, slot.outputShape, slot.proposals,
+                            confThreshold, standardNmsThreshold, overlapNmsThreshold,
+                            INPUT_SIZE, imageType, image.width(), image.height());
+                    tracer.end(StageTracer.Stage.POSTPROCESS, stageStart);
+                } finally {
+                    releaseSlot(slot);
+                }
+            }
 
-            Log.i(TAG, String.format("Detection completed for %s image", imageType));
-            detectionResult.logResults(TAG);
+            MissionLog.d(TAG, "Detection completed for {} image", imageType);
+            if (cache != null) {
+                cache.put(inputHash, imageType, confThreshold, standardNmsThreshold, overlapNmsThreshold,
+                        image.width(), image.height(), detectionResult);
+            }
+            if (MissionLog.isLoggable(Log.DEBUG)) {
+                detectionResult.logResults(TAG);
+            }
 
             return detectionResult;
 
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            Log.w(TAG, "Detection interrupted while waiting for a session");
+            return new EnhancedDetectionResult();
         } catch (Exception e) {
             Log.e(TAG, "Detection failed: " + e.getMessage(), e);
             return new EnhancedDetectionResult();
         }
     }
 
+    /**
+     * Infer each tile at native scale, the first on the calling thread and the others on
+     * worker threads, up to the pool size at once, then merge their boxes in crop pixels.
+     */
+    private EnhancedDetectionResult detectTiled(final Mat image, List<Rect> tiles, final float confThreshold,
+                                                float standardNmsThreshold, float overlapNmsThreshold,
+                                                String imageType) throws OrtException, InterruptedException {
+        // Same NMS threshold for a fused graph as in the whole-crop path
+        final float fusedIouThreshold = Math.max(standardNmsThreshold, overlapNmsThreshold);
+        List<Future<List<DetectionCandidate>>> pending = new ArrayList<Future<List<DetectionCandidate>>>();
+        ExecutorService executor = getTileExecutor();
+        for (final Rect tile : tiles.subList(1, tiles.size())) {
+            pending.add(executor.submit(new Callable<List<DetectionCandidate>>() {
+                @Override
+                public List<DetectionCandidate> call() throws Exception {
+                    return detectTile(image, tile, confThreshold, fusedIouThreshold);
+                }
+            }));
+        }
+
+        List<List<DetectionCandidate>> perTile = new ArrayList<List<DetectionCandidate>>(tiles.size());
+        try {
+            perTile.add(detectTile(image, tiles.get(0), confThreshold, fusedIouThreshold));
+            for (Future<List<DetectionCandidate>> future : pending) {
+                perTile.add(future.get());
+            }
+        } catch (ExecutionException e) {
+            throw new IllegalStateException("Tile detection failed: " + e.getCause(), e.getCause());
+        } finally {
+            for (Future<List<DetectionCandidate>> future : pending) {
+                future.cancel(false);
+            }
+        }
+
+        long stageStart = tracer.begin();
+        List<DetectionCandidate> candidates = mergeTileCandidates(perTile, TILE_MERGE_THRESHOLD);
+        MissionLog.d(TAG, "{} tiles gave {} candidates after cross-tile NMS", tiles.size(), candidates.size());
+        EnhancedDetectionResult result = constrainCandidates(candidates, imageType, standardNmsThreshold,
+                overlapNmsThreshold);
+        tracer.end(StageTracer.Stage.POSTPROCESS, stageStart);
+        return result;
+    }
+
+    /**
+     * @return the tile's candidates above the threshold, in crop pixels
+     */
+    private List<DetectionCandidate> detectTile(Mat image, Rect tile, float confThreshold, float fusedIouThreshold)
+            throws OrtException, InterruptedException {
+        Mat region = image.submat(tile);
+        try {
+            if (fusedModel) {
+                float[][] detections = runFusedInference(region, confThreshold, fusedIouThreshold);
+                return fusedCandidates(detections, confThreshold, tile.width, tile.height, tile.x, tile.y);
+            }
+            InferenceSlot slot = acquireSlot();
+            try {
+                slot.runPinned(region);
+                readProposals(slot.outputBuffer, slot.outputShape, slot.proposals);
+                return extractCandidates(slot.proposals, confThreshold, INPUT_SIZE,
+                        tile.width, tile.height, tile.x, tile.y);
+            } finally {
+                releaseSlot(slot);
+            }
+        } finally {
+            region.release();
+        }
+    }
+
+    /**
+     * Cross-tile NMS. An object on a seam is detected by every tile that sees it, and the
+     * tiles that cut it off give truncated boxes, which overlap the full box too little for
+     * IoU. Per class, a box is dropped when a more confident box from another tile covers more
+     * than {@code threshold} of the smaller of the two. Boxes of the same tile are left to the
+     * usual NMS, so within a tile the rules see what they would for a whole crop.
+     *
+     * @param perTile candidates of each tile, in crop pixels
+     */
+    List<DetectionCandidate> mergeTileCandidates(List<List<DetectionCandidate>> perTile, float threshold) {
+        final List<DetectionCandidate> all = new ArrayList<DetectionCandidate>();
+        List<Integer> tileOf = new ArrayList<Integer>();
+        for (int tile = 0; tile < perTile.size(); tile++) {
+            for (DetectionCandidate candidate : perTile.get(tile)) {
+                all.add(candidate);
+                tileOf.add(tile);
+            }
+        }
+        Integer[] order = new Integer[all.size()];
+        for (int i = 0; i < order.length; i++) {
+            order[i] = i;
+        }
+        Arrays.sort(order, new Comparator<Integer>() {
+            @Override
+            public int compare(Integer a, Integer b) {
+                return Float.compare(all.get(b).confidence, all.get(a).confidence);
+            }
+        });
+
+        boolean[] suppressed = new boolean[order.length];
+        List<DetectionCandidate> kept = new ArrayList<DetectionCandidate>();
+        for (int i = 0; i < order.length; i++) {
+            if (suppressed[i]) {
+                continue;
+            }
+            DetectionCandidate current = all.get(order[i]);
+            kept.add(current);
+            for (int j = i + 1; j < order.length; j++) {
+                DetectionCandidate other = all.get(order[j]);
+                if (!suppressed[j] && other.classId == current.classId
+                        && !tileOf.get(order[j]).equals(tileOf.get(order[i]))
+                        && intersectionOverSmaller(current, other) > threshold) {
+                    suppressed[j] = true;
+                }
+            }
+        }
+        return kept;
+    }
+
+    private synchronized ExecutorService getTileExecutor() {
+        if (tileExecutor == null) {
+            tileExecutor = Executors.newFixedThreadPool(poolSize, new ThreadFactory() {
+                private int count = 0;
+
+                @Override
+                public Thread newThread(Runnable runnable) {
+                    Thread thread = new Thread(runnable, "yolo-tile-" + (++count));
+                    thread.setDaemon(true);
+                    return thread;
+                }
+            });
+        }
+        return tileExecutor;
+    }
+
+    /**
+     * Preprocess and run the model, returning the raw output tensor ([1, 15, 2100])
+     * (package-private for recording benchmark tensors)
+     */
+    float[][][] runInference(Mat image) throws OrtException, InterruptedException {
+        if (fusedModel) {
+            throw new IllegalStateException("A fused model has no raw output tensor");
+        }
+        InferenceSlot slot = acquireSlot();
+        try {
+            slot.runPinned(image);
+            int features = (int) slot.outputShape[1];
+            int anchors = (int) slot.outputShape[2];
+            float[][][] output = new float[1][features][anchors];
+            for (int f = 0; f < features; f++) {
+                slot.outputBuffer.position(f * anchors);
+                slot.outputBuffer.get(output[0][f]);
+            }
+            slot.outputBuffer.rewind();
+            return output;
+        } finally {
+            releaseSlot(slot);
+        }
+    }
+
+    /**
+     * Run a fused model: the resized image goes in as uint8 NHWC, the graph casts, normalises
+     * and applies NonMaxSuppression. The inputs are long-lived tensors rewritten in place, the
+     * output has a data dependent row count and is copied out.
+     *
+     * @return detections, one [cx, cy, w, h, score, classId] row each, in model input pixels
+     */
+    float[][] runFusedInference(Mat image, float confThreshold, float iouThreshold)
+            throws OrtException, InterruptedException {
+        InferenceSlot slot = acquireSlot();
+        try {
+            return slot.runFused(image, confThreshold, iouThreshold);
+        } finally {
+            releaseSlot(slot);
+        }
+    }
+
+    private static FloatBuffer directFloatBuffer(int size) {
+        return ByteBuffer.allocateDirect(size * 4).order(ByteOrder.nativeOrder()).asFloatBuffer();
+    }
+
     /**
      * Convenience method with default parameters
      */
@@ -160,6 +576,31 @@ public class YOLODetectionService {
         return result.getAllQuantities();
     }
 
+    public boolean isInitialized() {
+        return isInitialized;
+    }
+
+    /**
+     * Maximum number of detections that run at once.
+     */
+    public int getPoolSize() {
+        return poolSize;
+    }
+
+    /**
+     * True for a model from YOLO/fuse_pre_post.py (uint8 input, detections output).
+     */
+    public boolean isFusedModel() {
+        return fusedModel;
+    }
+
+    /**
+     * File name of the loaded model, e.g. best.onnx or best_int8.onnx; null before loading.
+     */
+    public String getModelName() {
+        return modelName;
+    }
+
     /**
      * Get class names array for external use
      * * @return Array of class names
@@ -168,6 +609,17 @@ public class YOLODetectionService {
         return CLASS_NAMES.clone();
     }
 
+    public static int getClassCount() {
+        return CLASS_NAMES.length;
+    }
+
+    /**
+     * Whether a class ID is one of the treasures (crystal, diamond, emerald)
+     */
+    public static boolean isTreasure(int classId) {
+        return TREASURE_IDS.contains(classId);
+    }
+
     /**
      * Get class name by ID
      * * @param classId Class ID (0-based)
@@ -182,17 +634,18 @@ public class YOLODetectionService {
 
     /**
      * Enhanced post-processing pipeline matching Python logic
+     * (package-private, like the NMS helpers below, for the desktop JMH benchmarks)
      */
-    private EnhancedDetectionResult yoloPostprocessPipeline(float[][][] rawTensor,
-                                                            float confThreshold,
-                                                            float standardNmsThreshold,
-                                                            float overlapNmsThreshold,
-                                                            int imgSize,
-                                                            String imgType,
-                                                            int originalWidth,
-                                                            int originalHeight) {
-        Log.i(TAG, String.format("Raw tensor shape: [%d, %d, %d]",
-                rawTensor.length, rawTensor[0].length, rawTensor[0][0].length));
+    EnhancedDetectionResult yoloPostprocessPipeline(float[][][] rawTensor,
+                                                    float confThreshold,
+                                                    float standardNmsThreshold,
+                                                    float overlapNmsThreshold,
+                                                    int imgSize,
+                                                    String imgType,
+                                                    int originalWidth,
+                                                    int originalHeight) {
+        MissionLog.d(TAG, "Raw tensor shape: [{}, {}, {}]",
+                rawTensor.length, rawTensor[0].length, rawTensor[0][0].length);
 
         // ====================================================================
         // CRITICAL FIX: Transpose tensor from [1, 15, 2100] to [1, 2100, 15]
@@ -205,7 +658,7 @@ public class YOLODetectionService {
         // Check if we need to transpose (matches Python logic)
         if (rawTensor[0].length < rawTensor[0][0].length) {
             // Need to transpose from [15, 2100] to [2100, 15]
-            Log.i(TAG, "Transposing tensor from [15, 2100] to [2100, 15]");
+            MissionLog.d(TAG, "Transposing tensor from [15, 2100] to [2100, 15]");
 
             numDetections = rawTensor[0][0].length; // 2100
             numFeatures = rawTensor[0].length; // 15
@@ -221,37 +674,93 @@ public class YOLODetectionService {
 
         } else {
             // Already in correct format [2100, 15]
-            Log.i(TAG, "Tensor already in correct format");
+            MissionLog.d(TAG, "Tensor already in correct format");
             processed = rawTensor[0];
             numDetections = processed.length;
             numFeatures = processed[0].length;
         }
 
-        Log.i(TAG, String.format("Processing %d detection proposals with %d features each",
-                numDetections, numFeatures));
+        return postprocessProposals(processed, numDetections, numFeatures, confThreshold,
+                standardNmsThreshold, overlapNmsThreshold, imgSize, imgType, originalWidth, originalHeight);
+    }
 
-        // Log min/max for each FEATURE across all detections (matches Python Layer
-        // 0-14)
-        Log.i(TAG, "Feature min/max values across all detections:");
-        for (int featIdx = 0; featIdx < numFeatures; featIdx++) {
-            float minValue = Float.MAX_VALUE;
-            float maxValue = Float.MIN_VALUE;
+    /**
+     * Same pipeline on the pinned output buffer: proposals are transposed straight out of
+     * native memory into a reused array, with no intermediate [1, 15, 2100] copy.
+     *
+     * @param proposals scratch of [detections][features] for the given shape
+     */
+    EnhancedDetectionResult yoloPostprocessPipeline(FloatBuffer rawOutput,
+                                                    long[] shape,
+                                                    float[][] proposals,
+                                                    float confThreshold,
+                                                    float standardNmsThreshold,
+                                                    float overlapNmsThreshold,
+                                                    int imgSize,
+                                                    String imgType,
+                                                    int originalWidth,
+                                                    int originalHeight) {
+        readProposals(rawOutput, shape, proposals);
+        return postprocessProposals(proposals, proposals.length, proposals[0].length, confThreshold,
+                standardNmsThreshold, overlapNmsThreshold, imgSize, imgType, originalWidth, originalHeight);
+    }
 
-            // Find min/max for this feature across all detections
-            for (int detIdx = 0; detIdx < numDetections; detIdx++) {
-                float value = processed[detIdx][featIdx];
-                minValue = Math.min(minValue, value);
-                maxValue = Math.max(maxValue, value);
+    /**
+     * Transpose the pinned output into proposals[detection][feature].
+     */
+    private static void readProposals(FloatBuffer rawOutput, long[] shape, float[][] proposals) {
+        // [1, features, detections] as exported, or already [1, detections, features]
+        boolean channelsFirst = shape[1] < shape[2];
+        int numDetections = (int) (channelsFirst ? shape[2] : shape[1]);
+        int numFeatures = (int) (channelsFirst ? shape[1] : shape[2]);
+        for (int det = 0; det < numDetections; det++) {
+            float[] proposal = proposals[det];
+            for (int feat = 0; feat < numFeatures; feat++) {
+                proposal[feat] = channelsFirst
+                        ? rawOutput.get(feat * numDetections + det)
+                        : rawOutput.get(det * numFeatures + feat);
             }
-
-            // This should now match Python's "Layer X: min=..., max=..."
-            Log.i(TAG, String.format("Layer %d: min=%.6f, max=%.6f",
-                    featIdx, minValue, maxValue));
         }
+    }
 
-        List<DetectionCandidate> candidates = new ArrayList<DetectionCandidate>();
+    private EnhancedDetectionResult postprocessProposals(float[][] processed,
+                                                         int numDetections,
+                                                         int numFeatures,
+                                                         float confThreshold,
+                                                         float standardNmsThreshold,
+                                                         float overlapNmsThreshold,
+                                                         int imgSize,
+                                                         String imgType,
+                                                         int originalWidth,
+                                                         int originalHeight) {
+        MissionLog.d(TAG, "Processing {} detection proposals with {} features each",
+                numDetections, numFeatures);
+
+        // Log min/max for each FEATURE across all detections (matches Python Layer
+        // 0-14); a pass over every proposal, so only at VERBOSE
+        if (MissionLog.isLoggable(Log.VERBOSE)) {
+            logFeatureRanges(processed, numDetections, numFeatures);
+        }
 
         // Step 1: Extract all detection candidates above confidence threshold
+        List<DetectionCandidate> candidates = extractCandidates(processed, confThreshold, imgSize,
+                originalWidth, originalHeight, 0, 0);
+
+        MissionLog.d(TAG, "Total detection candidates: {}", candidates.size());
+
+        return constrainCandidates(candidates, imgType, standardNmsThreshold, overlapNmsThreshold);
+    }
+
+    /**
+     * Candidates above the threshold, scaled from the model input back to the image (or
+     * tile) size and moved by the tile's offset in the crop.
+     */
+    private List<DetectionCandidate> extractCandidates(float[][] processed, float confThreshold, int imgSize,
+                                                       int originalWidth, int originalHeight,
+                                                       int offsetX, int offsetY) {
+        List<DetectionCandidate> candidates = new ArrayList<DetectionCandidate>();
+        float scaleX = (float) originalWidth / imgSize;
+        float scaleY = (float) originalHeight / imgSize;
         for (int i = 0; i < processed.length; i++) {
             float[] prediction = processed[i];
 
@@ -270,23 +779,72 @@ public class YOLODetectionService {
 
                 if (classScore > confThreshold) {
                     // Scale coordinates back to original image size
-                    float scaleX = (float) originalWidth / imgSize;
-                    float scaleY = (float) originalHeight / imgSize;
-
-                    float scaledCenterX = centerX * scaleX;
-                    float scaledCenterY = centerY * scaleY;
-                    float scaledWidth = width * scaleX;
-                    float scaledHeight = height * scaleY;
-
                     candidates.add(new DetectionCandidate(
-                            scaledCenterX, scaledCenterY, scaledWidth, scaledHeight,
+                            offsetX + centerX * scaleX, offsetY + centerY * scaleY,
+                            width * scaleX, height * scaleY,
                             classScore, classId));
                 }
             }
         }
+        return candidates;
+    }
+
+    private void logFeatureRanges(float[][] processed, int numDetections, int numFeatures) {
+        MissionLog.v(TAG, "Feature min/max values across all detections:");
+        for (int featIdx = 0; featIdx < numFeatures; featIdx++) {
+            float minValue = Float.MAX_VALUE;
+            float maxValue = Float.MIN_VALUE;
+
+            // Find min/max for this feature across all detections
+            for (int detIdx = 0; detIdx < numDetections; detIdx++) {
+                float value = processed[detIdx][featIdx];
+                minValue = Math.min(minValue, value);
+                maxValue = Math.max(maxValue, value);
+            }
+
+            // This should now match Python's "Layer X: min=..., max=..."
+            MissionLog.v(TAG, "Layer {}: min={}, max={}", featIdx, minValue, maxValue);
+        }
+    }
+
+    /**
+     * Post-processing of a fused model's output: only scaling and the image type constraints
+     * are left, thresholding and per-class NMS already ran in the graph.
+     */
+    EnhancedDetectionResult fusedPostprocess(float[][] detections,
+                                             float confThreshold,
+                                             float standardNmsThreshold,
+                                             float overlapNmsThreshold,
+                                             String imgType,
+                                             int originalWidth,
+                                             int originalHeight) {
+        List<DetectionCandidate> candidates = fusedCandidates(detections, confThreshold,
+                originalWidth, originalHeight, 0, 0);
+        MissionLog.d(TAG, "Fused model detections: {}", candidates.size());
+
+        return constrainCandidates(candidates, imgType, standardNmsThreshold, overlapNmsThreshold);
+    }
 
-        Log.i(TAG, String.format("Total detection candidates: %d", candidates.size()));
+    private List<DetectionCandidate> fusedCandidates(float[][] detections, float confThreshold,
+                                                     int originalWidth, int originalHeight,
+                                                     int offsetX, int offsetY) {
+        float scaleX = (float) originalWidth / INPUT_SIZE;
+        float scaleY = (float) originalHeight / INPUT_SIZE;
+        List<DetectionCandidate> candidates = new ArrayList<DetectionCandidate>(detections.length);
+        for (float[] detection : detections) {
+            int classId = (int) detection[5];
+            if (detection[4] > confThreshold && classId >= 0 && classId < CLASS_NAMES.length) {
+                candidates.add(new DetectionCandidate(offsetX + detection[0] * scaleX, offsetY + detection[1] * scaleY,
+                        detection[2] * scaleX, detection[3] * scaleY, detection[4], classId));
+            }
+        }
+        return candidates;
+    }
 
+    private EnhancedDetectionResult constrainCandidates(List<DetectionCandidate> candidates,
+                                                        String imgType,
+                                                        float standardNmsThreshold,
+                                                        float overlapNmsThreshold) {
         // Step 2: Separate treasure and landmark candidates
         List<DetectionCandidate> treasureCandidates = new ArrayList<DetectionCandidate>();
         List<DetectionCandidate> landmarkCandidates = new ArrayList<DetectionCandidate>();
@@ -299,12 +857,16 @@ public class YOLODetectionService {
             }
         }
 
-        Log.i(TAG, String.format("Treasure candidates: %d, Landmark candidates: %d",
-                treasureCandidates.size(), landmarkCandidates.size()));
+        MissionLog.event(MissionLog.Event.CANDIDATES, treasureCandidates.size(), landmarkCandidates.size(), 0f);
+        MissionLog.d(TAG, "Treasure candidates: {}, Landmark candidates: {}",
+                treasureCandidates.size(), landmarkCandidates.size());
 
         // Step 3: Apply image type constraints with intelligent NMS
-        return applyImageTypeConstraints(treasureCandidates, landmarkCandidates,
+        long nmsStart = tracer.begin();
+        EnhancedDetectionResult constrained = applyImageTypeConstraints(treasureCandidates, landmarkCandidates,
                 imgType, standardNmsThreshold, overlapNmsThreshold);
+        tracer.end(StageTracer.Stage.NMS, nmsStart);
+        return constrained;
     }
 
     private EnhancedDetectionResult applyImageTypeConstraints(List<DetectionCandidate> treasureCandidates,
@@ -313,23 +875,21 @@ public class YOLODetectionService {
                                                               float standardNmsThreshold,
                                                               float overlapNmsThreshold) {
         List<FinalDetection> finalDetections = new ArrayList<FinalDetection>();
-        Map<Integer, Integer> treasureQuantities = new HashMap<Integer, Integer>();
-        Map<Integer, Integer> landmarkQuantities = new HashMap<Integer, Integer>();
-        Map<Integer, Integer> allQuantities = new HashMap<Integer, Integer>();
+        int[] counts = new int[CLASS_NAMES.length];
 
         // New variable to store the highest confidence landmark
         FinalDetection highestConfLandmarkResult = null;
 
         if ("target".equals(imgType)) {
-            Log.i(TAG, "TARGET ITEM logic - applying STANDARD NMS");
+            MissionLog.d(TAG, "TARGET ITEM logic - applying STANDARD NMS");
 
             // Apply standard NMS to both treasures and landmarks
             List<FinalDetection> treasureFinal = applyStandardNMS(treasureCandidates, standardNmsThreshold);
             List<FinalDetection> landmarkFinal = applyStandardNMS(landmarkCandidates, standardNmsThreshold);
 
             // Count quantities after NMS
-            countQuantities(treasureFinal, treasureQuantities, allQuantities);
-            countQuantities(landmarkFinal, landmarkQuantities, allQuantities);
+            countQuantities(treasureFinal, counts);
+            countQuantities(landmarkFinal, counts);
 
             // Java 7 compatible sort
             Collections.sort(treasureFinal, new Comparator<FinalDetection>() {
@@ -348,16 +908,16 @@ public class YOLODetectionService {
             // Select exactly 1 treasure + 2 different landmark types
             if (!treasureFinal.isEmpty() && landmarkFinal.size() >= 2) {
                 finalDetections.add(treasureFinal.get(0));
-                Log.i(TAG, String.format("Selected treasure: %s (conf: %.3f)",
-                        CLASS_NAMES[treasureFinal.get(0).classId], treasureFinal.get(0).confidence));
+                logSelection(MissionLog.Event.TREASURE_SELECTED, "Selected treasure",
+                        treasureFinal.get(0).classId, treasureFinal.get(0).confidence);
 
                 Set<Integer> selectedLandmarkClasses = new HashSet<Integer>();
                 for (FinalDetection landmark : landmarkFinal) {
                     if (!selectedLandmarkClasses.contains(landmark.classId)) {
                         finalDetections.add(landmark);
                         selectedLandmarkClasses.add(landmark.classId);
-                        Log.i(TAG, String.format("Selected landmark: %s (conf: %.3f)",
-                                CLASS_NAMES[landmark.classId], landmark.confidence));
+                        logSelection(MissionLog.Event.LANDMARK_SELECTED, "Selected landmark",
+                                landmark.classId, landmark.confidence);
 
                         if (selectedLandmarkClasses.size() == 2)
                             break;
@@ -366,18 +926,18 @@ public class YOLODetectionService {
             }
 
         } else if ("lost".equals(imgType)) {
-            Log.i(TAG, "LOST ITEM logic - applying INTELLIGENT NMS");
+            MissionLog.d(TAG, "LOST ITEM logic - applying INTELLIGENT NMS");
 
             if (!treasureCandidates.isEmpty()) {
                 // Case 1: 1 landmark + 1 treasure
-                Log.i(TAG, "Case 1: Treasure + Landmark detected");
+                MissionLog.d(TAG, "Case 1: Treasure + Landmark detected");
 
                 List<FinalDetection> treasureFinal = applyStandardNMS(treasureCandidates, standardNmsThreshold);
                 List<FinalDetection> landmarkFinal = applyLandmarkIntelligentNMS(landmarkCandidates,
                         overlapNmsThreshold);
 
-                countQuantities(treasureFinal, treasureQuantities, allQuantities);
-                countQuantities(landmarkFinal, landmarkQuantities, allQuantities);
+                countQuantities(treasureFinal, counts);
+                countQuantities(landmarkFinal, counts);
 
                 // Java 7 compatible sort
                 Collections.sort(treasureFinal, new Comparator<FinalDetection>() {
@@ -395,15 +955,15 @@ public class YOLODetectionService {
 
                 if (!treasureFinal.isEmpty()) {
                     finalDetections.add(treasureFinal.get(0));
-                    Log.i(TAG, String.format("Selected treasure: %s (conf: %.3f)",
-                            CLASS_NAMES[treasureFinal.get(0).classId], treasureFinal.get(0).confidence));
+                    logSelection(MissionLog.Event.TREASURE_SELECTED, "Selected treasure",
+                            treasureFinal.get(0).classId, treasureFinal.get(0).confidence);
                 }
 
                 if (!landmarkFinal.isEmpty()) {
                     FinalDetection bestLandmark = landmarkFinal.get(0);
                     finalDetections.add(bestLandmark);
-                    Log.i(TAG, String.format("Selected landmark: %s (conf: %.3f)",
-                            CLASS_NAMES[bestLandmark.classId], bestLandmark.confidence));
+                    logSelection(MissionLog.Event.LANDMARK_SELECTED, "Selected landmark",
+                            bestLandmark.classId, bestLandmark.confidence);
 
                     // 儲存最高信心 landmark 結果
                     highestConfLandmarkResult = bestLandmark;
@@ -425,18 +985,18 @@ public class YOLODetectionService {
                     finalDetections.add(fallback);
                     highestConfLandmarkResult = fallback; // 儲存 fallback 結果
 
-                    Log.i(TAG, String.format("Fallback landmark selected: %s (conf: %.3f)",
-                            CLASS_NAMES[best.classId], best.confidence));
+                    logSelection(MissionLog.Event.LANDMARK_FALLBACK, "Fallback landmark selected",
+                            best.classId, best.confidence);
                 }
 
 
             } else {
                 // Case 2: Only landmarks
-                Log.i(TAG, "Case 2: Only landmarks detected");
+                MissionLog.d(TAG, "Case 2: Only landmarks detected");
 
                 List<FinalDetection> landmarkFinal = applyLandmarkIntelligentNMS(landmarkCandidates,
                         overlapNmsThreshold);
-                countQuantities(landmarkFinal, landmarkQuantities, allQuantities);
+                countQuantities(landmarkFinal, counts);
 
                 // Java 7 compatible sort
                 Collections.sort(landmarkFinal, new Comparator<FinalDetection>() {
@@ -449,8 +1009,8 @@ public class YOLODetectionService {
                 if (!landmarkFinal.isEmpty()) {
                     FinalDetection bestLandmark = landmarkFinal.get(0);
                     finalDetections.add(bestLandmark);
-                    Log.i(TAG, String.format("Selected landmark: %s (conf: %.3f)",
-                            CLASS_NAMES[bestLandmark.classId], bestLandmark.confidence));
+                    logSelection(MissionLog.Event.LANDMARK_SELECTED, "Selected landmark",
+                            bestLandmark.classId, bestLandmark.confidence);
 
                     // 儲存最高信心 landmark 結果
                     highestConfLandmarkResult = bestLandmark;
@@ -472,17 +1032,24 @@ public class YOLODetectionService {
                     finalDetections.add(fallback);
                     highestConfLandmarkResult = fallback; // 儲存 fallback 結果
 
-                    Log.i(TAG, String.format("Fallback landmark selected: %s (conf: %.3f)",
-                            CLASS_NAMES[best.classId], best.confidence));
+                    logSelection(MissionLog.Event.LANDMARK_FALLBACK, "Fallback landmark selected",
+                            best.classId, best.confidence);
                 }
 
             }
         }
 
-        return new EnhancedDetectionResult(finalDetections, allQuantities, treasureQuantities, landmarkQuantities, highestConfLandmarkResult);
+        return new EnhancedDetectionResult(finalDetections, counts, highestConfLandmarkResult);
+    }
+
+    private static void logSelection(MissionLog.Event event, String what, int classId, float confidence) {
+        MissionLog.event(event, classId, 0, confidence);
+        if (MissionLog.isLoggable(Log.DEBUG)) {
+            MissionLog.d(TAG, "{}: {} (conf: {})", what, CLASS_NAMES[classId], confidence);
+        }
     }
 
-    private List<FinalDetection> applyStandardNMS(List<DetectionCandidate> candidates, float nmsThreshold) {
+    List<FinalDetection> applyStandardNMS(List<DetectionCandidate> candidates, float nmsThreshold) {
         if (candidates.size() <= 1) {
             return convertToFinalDetections(candidates);
         }
@@ -519,13 +1086,13 @@ public class YOLODetectionService {
         return convertToFinalDetections(kept);
     }
 
-    private List<FinalDetection> applyLandmarkIntelligentNMS(List<DetectionCandidate> candidates,
-                                                             float overlapThreshold) {
+    List<FinalDetection> applyLandmarkIntelligentNMS(List<DetectionCandidate> candidates,
+                                                     float overlapThreshold) {
         if (candidates.size() <= 1) {
             return convertToFinalDetections(candidates);
         }
 
-        Log.i(TAG, String.format("Applying intelligent NMS to %d landmark detections", candidates.size()));
+        MissionLog.d(TAG, "Applying intelligent NMS to {} landmark detections", candidates.size());
 
         // Find highest confidence detection and its class (Java 7 compatible)
         DetectionCandidate highest = null;
@@ -543,8 +1110,8 @@ public class YOLODetectionService {
             return new ArrayList<FinalDetection>();
 
         int selectedClass = highest.classId;
-        Log.i(TAG, String.format("Selected class: %d (%s) with confidence: %.3f",
-                selectedClass, CLASS_NAMES[selectedClass], highest.confidence));
+        MissionLog.d(TAG, "Selected class: {} ({}) with confidence: {}",
+                selectedClass, CLASS_NAMES[selectedClass], highest.confidence);
 
         // Filter to only detections of the selected class
         List<DetectionCandidate> sameClassCandidates = new ArrayList<DetectionCandidate>();
@@ -554,14 +1121,15 @@ public class YOLODetectionService {
             }
         }
 
-        Log.i(TAG, String.format("Detections of selected class: %d/%d",
-                sameClassCandidates.size(), candidates.size()));
+        MissionLog.d(TAG, "Detections of selected class: {}/{}",
+                sameClassCandidates.size(), candidates.size());
 
         // Apply standard NMS with overlap threshold to same-class detections
         List<FinalDetection> result = applyStandardNMS(sameClassCandidates, overlapThreshold);
 
-        Log.i(TAG, String.format("Landmarks kept after intelligent NMS: %d/%d of class %s",
-                result.size(), sameClassCandidates.size(), CLASS_NAMES[selectedClass]));
+        MissionLog.event(MissionLog.Event.LANDMARK_NMS, result.size(), sameClassCandidates.size(), highest.confidence);
+        MissionLog.d(TAG, "Landmarks kept after intelligent NMS: {}/{} of class {}",
+                result.size(), sameClassCandidates.size(), CLASS_NAMES[selectedClass]);
 
         return result;
     }
@@ -576,22 +1144,13 @@ public class YOLODetectionService {
         return result;
     }
 
-    private void countQuantities(List<FinalDetection> detections,
-                                 Map<Integer, Integer> specificQuantities,
-                                 Map<Integer, Integer> allQuantities) {
+    private void countQuantities(List<FinalDetection> detections, int[] counts) {
         for (FinalDetection detection : detections) {
-            // Using getOrDefault requires Java 8. For Java 7, check if key exists.
-            Integer specificCount = specificQuantities.get(detection.classId);
-            specificQuantities.put(detection.classId,
-                    (specificCount == null ? 0 : specificCount) + 1);
-
-            Integer allCount = allQuantities.get(detection.classId);
-            allQuantities.put(detection.classId,
-                    (allCount == null ? 0 : allCount) + 1);
+            counts[detection.classId]++;
         }
     }
 
-    private float calculateIoU(DetectionCandidate a, DetectionCandidate b) {
+    float calculateIoU(DetectionCandidate a, DetectionCandidate b) {
         float x1_a = a.centerX - a.width / 2;
         float y1_a = a.centerY - a.height / 2;
         float x2_a = a.centerX + a.width / 2;
@@ -619,29 +1178,42 @@ public class YOLODetectionService {
         return intersectionArea / unionArea;
     }
 
-    private Mat preprocessImage(Mat image) {
-        Mat processedImage = new Mat();
-
-        // Convert to RGB if needed
-        if (image.channels() == 1) {
-            Imgproc.cvtColor(image, processedImage, Imgproc.COLOR_GRAY2RGB);
-        } else if (image.channels() == 4) {
-            Imgproc.cvtColor(image, processedImage, Imgproc.COLOR_BGRA2RGB);
-        } else if (image.channels() == 3) {
-            Imgproc.cvtColor(image, processedImage, Imgproc.COLOR_BGR2RGB);
-        } else {
-            image.copyTo(processedImage);
+    /**
+     * Intersection over the area of the smaller box, 1 when one box contains the other.
+     */
+    static float intersectionOverSmaller(DetectionCandidate a, DetectionCandidate b) {
+        float width = Math.min(a.centerX + a.width / 2, b.centerX + b.width / 2)
+                - Math.max(a.centerX - a.width / 2, b.centerX - b.width / 2);
+        float height = Math.min(a.centerY + a.height / 2, b.centerY + b.height / 2)
+                - Math.max(a.centerY - a.height / 2, b.centerY - b.height / 2);
+        if (width <= 0 || height <= 0) {
+            return 0.0f;
         }
+        return width * height / Math.min(a.width * a.height, b.width * b.height);
+    }
 
-        // Resize to model input size
-        Mat resizedImage = new Mat();
-        Imgproc.resize(processedImage, resizedImage, new Size(INPUT_SIZE, INPUT_SIZE));
-
-        processedImage.release();
-        return resizedImage;
+    /**
+     * Write an RGB model-size image into a float input buffer as normalised NCHW: one bulk
+     * read out of the Mat into pixels and one bulk write of planes into the direct buffer.
+     */
+    static void fillInputBuffer(Mat image, byte[] pixels, float[] planes, FloatBuffer buffer) {
+        int planeSize = INPUT_SIZE * INPUT_SIZE;
+        image.get(0, 0, pixels);
+        for (int i = 0, p = 0; i < planeSize; i++, p += 3) {
+            planes[i] = (pixels[p] & 0xFF) / 255.0f;
+            planes[planeSize + i] = (pixels[p + 1] & 0xFF) / 255.0f;
+            planes[2 * planeSize + i] = (pixels[p + 2] & 0xFF) / 255.0f;
+        }
+        buffer.rewind();
+        buffer.put(planes);
+        buffer.rewind();
     }
 
-    private float[][][][] matToFloatArray(Mat image) {
+    /**
+     * Per-pixel conversion the detector used before fillInputBuffer, kept as the baseline
+     * for the desktop benchmarks.
+     */
+    float[][][][] matToFloatArray(Mat image) {
         float[][][][] inputData = new float[1][3][INPUT_SIZE][INPUT_SIZE];
 
         for (int y = 0; y < INPUT_SIZE; y++) {
@@ -658,19 +1230,215 @@ public class YOLODetectionService {
         return inputData;
     }
 
+    /**
+     * Close every session once its running detection, if any, has finished. Later detections
+     * return an empty result. The shared OrtEnvironment stays open for other users.
+     */
     public void close() {
+        int sessions;
+        synchronized (slots) {
+            if (closed) {
+                return;
+            }
+            closed = true;
+            // Detections starting from now return early, running ones finish first
+            isInitialized = false;
+            sessions = slots.size();
+        }
+        DetectionCache cache = detectionCache;
+        if (cache != null) {
+            Log.i(TAG, "Detection cache: " + cache.getHits() + " hits, " + cache.getMisses() + " misses");
+        }
+        synchronized (this) {
+            if (tileExecutor != null) {
+                // Tiles still running hold a session, the loop below waits for them
+                tileExecutor.shutdown();
+                tileExecutor = null;
+            }
+        }
         try {
-            if (session != null) {
-                session.close();
+            for (int i = 0; i < sessions; i++) {
+                idleSlots.take().close();
             }
-            if (env != null) {
-                env.close();
+            if (ownsSessionOptions && sessionOptions != null) {
+                sessionOptions.close();
             }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            Log.w(TAG, "Interrupted while closing YOLO sessions");
         } catch (Exception e) {
             Log.e(TAG, "Error closing YOLO service: " + e.getMessage(), e);
         }
     }
 
+    private static void closeTensor(OnnxTensor tensor) {
+        if (tensor != null) {
+            tensor.close();
+        }
+    }
+
+    /**
+     * One session with the tensors and scratch it runs on, used by one detection at a time.
+     * Tensors are created on the first run and rewritten in place afterwards.
+     */
+    private class InferenceSlot {
+        final OrtSession session;
+
+        FloatBuffer inputBuffer;
+        OnnxTensor inputTensor;
+        Map<String, OnnxTensor> inputs;
+        // Raw output of the float model, written by ORT straight into outputBuffer
+        FloatBuffer outputBuffer;
+        OnnxTensor outputTensor;
+        long[] outputShape;
+        Map<String, OnnxTensor> pinnedOutputs;
+        float[][] proposals;
+        // Fused model inputs
+        ByteBuffer fusedInputBuffer;
+        FloatBuffer confBuffer;
+        FloatBuffer iouBuffer;
+        OnnxTensor confTensor;
+        OnnxTensor iouTensor;
+        // Heap scratch reused between runs
+        final Mat convertedImage = new Mat();
+        final Mat resizedImage = new Mat();
+        byte[] inputPixels;
+        float[] inputPlanes;
+
+        InferenceSlot(OrtSession session) {
+            this.session = session;
+        }
+
+        /**
+         * Preprocess into the input tensor and run the model into the pinned output tensor,
+         * whose direct buffer then holds the raw output. Steady state allocates neither
+         * tensors nor an output copy.
+         */
+        void runPinned(Mat image) throws OrtException {
+            long stageStart = tracer.begin();
+            if (inputTensor == null) {
+                allocateTensors();
+            }
+            fillInputBuffer(preprocessImage(image), inputPixels, inputPlanes, inputBuffer);
+            tracer.end(StageTracer.Stage.PREPROCESS, stageStart);
+
+            stageStart = tracer.begin();
+            OrtSession.Result result = session.run(inputs, pinnedOutputs);
+            // Closing the result leaves the pinned output tensor open
+            result.close();
+            tracer.end(StageTracer.Stage.SESSION_RUN, stageStart);
+        }
+
+        float[][] runFused(Mat image, float confThreshold, float iouThreshold) throws OrtException {
+            long stageStart = tracer.begin();
+            if (inputTensor == null) {
+                allocateFusedTensors();
+            }
+            Mat resized = preprocessFusedImage(image);
+            resized.get(0, 0, inputPixels);
+            fusedInputBuffer.put(inputPixels);
+            fusedInputBuffer.rewind();
+            confBuffer.put(0, confThreshold);
+            iouBuffer.put(0, iouThreshold);
+            tracer.end(StageTracer.Stage.PREPROCESS, stageStart);
+
+            stageStart = tracer.begin();
+            OrtSession.Result result = session.run(inputs);
+            try {
+                return (float[][]) ((OnnxTensor) result.get(0)).getValue();
+            } finally {
+                result.close();
+                tracer.end(StageTracer.Stage.SESSION_RUN, stageStart);
+            }
+        }
+
+        private void allocateTensors() throws OrtException {
+            int inputSize = 3 * INPUT_SIZE * INPUT_SIZE;
+            inputPixels = new byte[inputSize];
+            inputPlanes = new float[inputSize];
+            inputBuffer = directFloatBuffer(inputSize);
+            inputTensor = OnnxTensor.createTensor(env, inputBuffer, new long[]{1, 3, INPUT_SIZE, INPUT_SIZE});
+            inputs = Collections.singletonMap(INPUT_NAME, inputTensor);
+
+            Map.Entry<String, NodeInfo> output = session.getOutputInfo().entrySet().iterator().next();
+            outputShape = ((TensorInfo) output.getValue().getInfo()).getShape();
+            int outputSize = 1;
+            for (long dim : outputShape) {
+                if (dim <= 0) {
+                    throw new OrtException("Output " + output.getKey() + " has a dynamic shape "
+                            + Arrays.toString(outputShape) + ", it cannot be pinned");
+                }
+                outputSize *= (int) dim;
+            }
+            outputBuffer = directFloatBuffer(outputSize);
+            outputTensor = OnnxTensor.createTensor(env, outputBuffer, outputShape);
+            pinnedOutputs = Collections.singletonMap(output.getKey(), outputTensor);
+            // [1, features, detections] as exported, or already [1, detections, features]
+            boolean channelsFirst = outputShape[1] < outputShape[2];
+            proposals = channelsFirst
+                    ? new float[(int) outputShape[2]][(int) outputShape[1]]
+                    : new float[(int) outputShape[1]][(int) outputShape[2]];
+        }
+
+        private void allocateFusedTensors() throws OrtException {
+            inputPixels = new byte[INPUT_SIZE * INPUT_SIZE * fusedChannels];
+            fusedInputBuffer = ByteBuffer.allocateDirect(inputPixels.length);
+            inputTensor = OnnxTensor.createTensor(env, fusedInputBuffer,
+                    new long[]{1, INPUT_SIZE, INPUT_SIZE, fusedChannels}, OnnxJavaType.UINT8);
+            confBuffer = directFloatBuffer(1);
+            iouBuffer = directFloatBuffer(1);
+            confTensor = OnnxTensor.createTensor(env, confBuffer, new long[]{1});
+            iouTensor = OnnxTensor.createTensor(env, iouBuffer, new long[]{1});
+
+            Map<String, OnnxTensor> fusedInputs = new HashMap<String, OnnxTensor>();
+            fusedInputs.put(INPUT_NAME, inputTensor);
+            fusedInputs.put(FUSED_CONF_INPUT, confTensor);
+            fusedInputs.put(FUSED_IOU_INPUT, iouTensor);
+            inputs = fusedInputs;
+        }
+
+        /**
+         * RGB, resized to the model input. The returned Mat belongs to the slot.
+         */
+        private Mat preprocessImage(Mat image) {
+            Mat processedImage = convertedImage;
+
+            // Convert to RGB if needed
+            if (image.channels() == 1) {
+                Imgproc.cvtColor(image, processedImage, Imgproc.COLOR_GRAY2RGB);
+            } else if (image.channels() == 4) {
+                Imgproc.cvtColor(image, processedImage, Imgproc.COLOR_BGRA2RGB);
+            } else if (image.channels() == 3) {
+                Imgproc.cvtColor(image, processedImage, Imgproc.COLOR_BGR2RGB);
+            } else {
+                image.copyTo(processedImage);
+            }
+
+            // Resize to model input size
+            Imgproc.resize(processedImage, resizedImage, MODEL_INPUT_SIZE);
+            return resizedImage;
+        }
+
+        private Mat preprocessFusedImage(Mat image) {
+            if (fusedChannels != 1) {
+                // Same channel handling as the float path, only the scaling moved into the graph
+                return preprocessImage(image);
+            }
+            Imgproc.resize(PreprocessProfiles.toGray(image, convertedImage), resizedImage, MODEL_INPUT_SIZE);
+            return resizedImage;
+        }
+
+        void close() throws OrtException {
+            closeTensor(inputTensor);
+            closeTensor(outputTensor);
+            closeTensor(confTensor);
+            closeTensor(iouTensor);
+            convertedImage.release();
+            resizedImage.release();
+            session.close();
+        }
+    }
+
     // Helper classes
     public static class DetectionCandidate {
         public final float centerX, centerY, width, height;
@@ -710,103 +1478,172 @@ public class YOLODetectionService {
         }
     }
 
+    /**
+     * Result of one detection. Counts are kept per class id in a fixed array and class
+     * membership in two bitmasks; the name keyed views are only built when asked for, so a
+     * detection allocates little beyond its final boxes.
+     */
     public static class EnhancedDetectionResult {
-        private List<FinalDetection> detections;
-        private Map<Integer, Integer> allQuantities;
-        private Map<Integer, Integer> treasureQuantities;
-        private Map<Integer, Integer> landmarkQuantities;
-        // 修改 1: 新增最高信心 landmark 記錄
-        private FinalDetection highestConfidenceLandmark = null;
+        private final List<FinalDetection> detections;
+        private final int[] counts;
+        // Best confidence per class among the final detections
+        private final float[] confidences;
+        private final int treasureBits;
+        private final int landmarkBits;
+        private final FinalDetection highestConfidenceLandmark;
+
+        // Built lazily and published without a lock; results are shared across threads, a
+        // racing first call at worst builds an equal view twice
+        private volatile Map<String, Integer> landmarkNames;
+        private volatile Set<String> treasureNames;
 
         public EnhancedDetectionResult() {
-            this.detections = new ArrayList<FinalDetection>();
-            this.allQuantities = new HashMap<Integer, Integer>();
-            this.treasureQuantities = new HashMap<Integer, Integer>();
-            this.landmarkQuantities = new HashMap<Integer, Integer>();
-        }
-
-        public EnhancedDetectionResult(List<FinalDetection> detections,
-                                       Map<Integer, Integer> allQuantities,
-                                       Map<Integer, Integer> treasureQuantities,
-                                       Map<Integer, Integer> landmarkQuantities,
-                                       // 修改 1: 接受 highestConfidenceLandmark
-                                       FinalDetection highestConfidenceLandmark) {
-            this.detections = detections;
-            this.allQuantities = allQuantities;
-            this.treasureQuantities = treasureQuantities;
-            this.landmarkQuantities = landmarkQuantities;
-            // 修改 1: 賦值 highestConfidenceLandmark
+            this(Collections.<FinalDetection>emptyList(), new int[CLASS_NAMES.length], null);
+        }
+
+        /**
+         * @param counts per class id counts after NMS, owned by the result afterwards
+         */
+        EnhancedDetectionResult(List<FinalDetection> detections, int[] counts,
+                                FinalDetection highestConfidenceLandmark) {
+            this.detections = Collections.unmodifiableList(detections);
+            this.counts = counts;
             this.highestConfidenceLandmark = highestConfidenceLandmark;
+            this.confidences = new float[CLASS_NAMES.length];
+            for (FinalDetection detection : detections) {
+                confidences[detection.classId] = Math.max(confidences[detection.classId], detection.confidence);
+            }
+            int treasures = 0;
+            int landmarks = 0;
+            for (int classId = 0; classId < counts.length; classId++) {
+                if (counts[classId] > 0) {
+                    if (TREASURE_IDS.contains(classId)) {
+                        treasures |= 1 << classId;
+                    } else if (LANDMARK_IDS.contains(classId)) {
+                        landmarks |= 1 << classId;
+                    }
+                }
+            }
+            this.treasureBits = treasures;
+            this.landmarkBits = landmarks;
         }
 
         public List<FinalDetection> getDetections() {
             return detections;
         }
 
-        public Map<Integer, Integer> getAllQuantities() {
-            return allQuantities;
+        /**
+         * @return detections of a class after NMS, 0 for unknown ids
+         */
+        public int getCount(int classId) {
+            return classId >= 0 && classId < counts.length ? counts[classId] : 0;
+        }
+
+        /**
+         * @return best confidence of a class among the final detections, 0 if none
+         */
+        public float getConfidence(int classId) {
+            return classId >= 0 && classId < confidences.length ? confidences[classId] : 0f;
+        }
+
+        /**
+         * @return bit classId set for every treasure class counted
+         */
+        public int getTreasureBits() {
+            return treasureBits;
         }
 
-        public Map<Integer, Integer> getTreasureQuantities() {
-            return treasureQuantities;
+        /**
+         * @return bit classId set for every landmark class counted
+         */
+        public int getLandmarkBits() {
+            return landmarkBits;
         }
 
-        public Map<Integer, Integer> getLandmarkQuantities() {
-            return landmarkQuantities;
+        public boolean hasTreasure(int classId) {
+            return classId >= 0 && classId < Integer.SIZE && (treasureBits & 1 << classId) != 0;
         }
 
-        // 修改 1: 新增 getter 方法
         public FinalDetection getHighestConfidenceLandmark() {
             return highestConfidenceLandmark;
         }
 
         /**
-         * Get result in Python-like format
-         * * @return Map containing quantities with class names as keys
+         * @return class name of the highest confidence landmark, null if there is none
          */
-        public Map<String, Object> getPythonLikeResult() {
-            Map<String, Object> result = new HashMap<String, Object>();
+        public String getHighestConfidenceLandmarkName() {
+            return highestConfidenceLandmark != null ? CLASS_NAMES[highestConfidenceLandmark.classId] : null;
+        }
 
-            // Convert all quantities to use class names
-            Map<String, Integer> allQuantitiesNamed = new HashMap<String, Integer>();
-            for (Map.Entry<Integer, Integer> entry : allQuantities.entrySet()) {
-                allQuantitiesNamed.put(CLASS_NAMES[entry.getKey()], entry.getValue());
+        /**
+         * Landmark counts by class name, built on the first call.
+         */
+        public Map<String, Integer> getLandmarkNameCounts() {
+            Map<String, Integer> view = landmarkNames;
+            if (view == null) {
+                Map<String, Integer> named = new HashMap<String, Integer>();
+                for (int classId = 0; classId < counts.length; classId++) {
+                    if ((landmarkBits & 1 << classId) != 0) {
+                        named.put(CLASS_NAMES[classId], counts[classId]);
+                    }
+                }
+                view = Collections.unmodifiableMap(named);
+                landmarkNames = view;
             }
+            return view;
+        }
 
-            // Convert treasure quantities to use class names
-            Map<String, Integer> treasureQuantitiesNamed = new HashMap<String, Integer>();
-            for (Map.Entry<Integer, Integer> entry : treasureQuantities.entrySet()) {
-                treasureQuantitiesNamed.put(CLASS_NAMES[entry.getKey()], entry.getValue());
+        /**
+         * Treasure class names, built on the first call.
+         */
+        public Set<String> getTreasureNames() {
+            Set<String> view = treasureNames;
+            if (view == null) {
+                Set<String> named = new HashSet<String>();
+                for (int classId = 0; classId < counts.length; classId++) {
+                    if ((treasureBits & 1 << classId) != 0) {
+                        named.add(CLASS_NAMES[classId]);
+                    }
+                }
+                view = Collections.unmodifiableSet(named);
+                treasureNames = view;
             }
+            return view;
+        }
 
-            // Convert landmark quantities to use class names
-            Map<String, Integer> landmarkQuantitiesNamed = new HashMap<String, Integer>();
-            for (Map.Entry<Integer, Integer> entry : landmarkQuantities.entrySet()) {
-                landmarkQuantitiesNamed.put(CLASS_NAMES[entry.getKey()], entry.getValue());
+        /**
+         * Counts of every class by id, as a new map.
+         */
+        public Map<Integer, Integer> getAllQuantities() {
+            Map<Integer, Integer> quantities = new HashMap<Integer, Integer>();
+            for (int classId = 0; classId < counts.length; classId++) {
+                if (counts[classId] > 0) {
+                    quantities.put(classId, counts[classId]);
+                }
             }
+            return quantities;
+        }
 
-            result.put("all_quantities", allQuantitiesNamed);
-            result.put("treasure_quantities", treasureQuantitiesNamed);
-            result.put("landmark_quantities", landmarkQuantitiesNamed);
-
-            // 修改 3: 加入最高信心 landmark 名稱
+        public void logResults(String tag) {
+            StringBuilder text = new StringBuilder("Total detections: ").append(detections.size());
+            appendCounts(text.append(", treasures: "), treasureBits);
+            appendCounts(text.append(", landmarks: "), landmarkBits);
             if (highestConfidenceLandmark != null) {
-                result.put("highest_conf_landmark", CLASS_NAMES[highestConfidenceLandmark.classId]);
+                text.append(", highest confidence landmark: ").append(CLASS_NAMES[highestConfidenceLandmark.classId]);
             }
-
-            return result;
+            Log.i(tag, text.toString());
         }
 
-        public void logResults(String tag) {
-            Log.i(tag, String.format("Total detections: %d", detections.size()));
-
-            Map<String, Object> pythonResult = getPythonLikeResult();
-            Log.i(tag, "All quantities: " + pythonResult.get("all_quantities"));
-            Log.i(tag, "Treasure quantities: " + pythonResult.get("treasure_quantities"));
-            Log.i(tag, "Landmark quantities: " + pythonResult.get("landmark_quantities"));
-            if (pythonResult.containsKey("highest_conf_landmark")) {
-                Log.i(tag, "Highest confidence landmark: " + pythonResult.get("highest_conf_landmark"));
+        private void appendCounts(StringBuilder text, int bits) {
+            text.append('{');
+            boolean first = true;
+            for (int classId = 0; classId < counts.length; classId++) {
+                if ((bits & 1 << classId) != 0) {
+                    text.append(first ? "" : ", ").append(CLASS_NAMES[classId]).append('=').append(counts[classId]);
+                    first = false;
+                }
             }
+            text.append('}');
         }
     }
-}
\ No newline at end of file
+}
@@ -0,0 +1,251 @@
+package jp.jaxa.iss.kibo.rpc.sampleapk;
+
+import android.util.Log;
+
+import org.opencv.core.Core;
+import org.opencv.core.CvType;
+import org.opencv.core.Mat;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.FloatBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Throughput of the YOLO post-processing on [1, 15, 2100] output tensors, without a model.
+ *
+ * density = sparse / medium / dense generates synthetic tensors with that many object
+ * clusters, each a few overlapping anchors as YOLO produces them. density = recorded (not in
+ * the default set, pass -p density=recorded -p tensorDir=...) cycles through the .f32 files
+ * written by {@link TensorRecorder}.
+ *
+ * Run with -prof gc (the :desktop:jmh task does) for the allocation rate per operation.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class PostprocessBenchmark {
+    private static final int CHANNELS = 15;
+    private static final int ANCHORS = 2100;
+    private static final int IMG_SIZE = 320;
+    // Mission call: vision.detect(image, "lost", 0.5f) on 320 px crops
+    private static final float CONF_THRESHOLD = 0.5f;
+    private static final float STANDARD_NMS_THRESHOLD = 0.45f;
+    private static final float OVERLAP_NMS_THRESHOLD = 0.8f;
+    private static final int[] TREASURE_CLASSES = {3, 4, 5};
+    private static final int[] LANDMARK_CLASSES = {0, 1, 2, 6, 7, 8, 9, 10};
+
+    @Param({"sparse", "medium", "dense"})
+    public String density;
+
+    @Param({"tensors"})
+    public String tensorDir;
+
+    private YOLODetectionService detector;
+    private float[][][][] tensors;
+    private int next;
+
+    // Candidates above CONF_THRESHOLD of the first tensor, as Step 1 of the pipeline extracts them
+    private List<YOLODetectionService.DetectionCandidate> treasureCandidates;
+    private List<YOLODetectionService.DetectionCandidate> landmarkCandidates;
+    private YOLODetectionService.DetectionCandidate iouA;
+    private YOLODetectionService.DetectionCandidate iouB;
+
+    private Mat modelInput;
+    private byte[] inputPixels;
+    private float[] inputPlanes;
+    private FloatBuffer inputBuffer;
+
+    @Setup(Level.Trial)
+    public void setUp() throws IOException {
+        // The pipeline logs every call; keep the formatting cost, drop the console output
+        Log.setMinLevel(Log.WARN);
+        DesktopOpenCv.load();
+        detector = new YOLODetectionService();
+
+        if ("recorded".equals(density)) {
+            tensors = loadRecorded(new File(tensorDir));
+        } else {
+            tensors = new float[8][][][];
+            Random random = new Random(42);
+            for (int i = 0; i < tensors.length; i++) {
+                tensors[i] = synthesize(random, clustersFor(density));
+            }
+        }
+
+        treasureCandidates = new ArrayList<YOLODetectionService.DetectionCandidate>();
+        landmarkCandidates = new ArrayList<YOLODetectionService.DetectionCandidate>();
+        extractCandidates(tensors[0], treasureCandidates, landmarkCandidates);
+        iouA = new YOLODetectionService.DetectionCandidate(160, 160, 60, 40, 0.9f, 3);
+        iouB = new YOLODetectionService.DetectionCandidate(175, 150, 55, 45, 0.8f, 3);
+
+        modelInput = new Mat(IMG_SIZE, IMG_SIZE, CvType.CV_8UC3);
+        Core.randu(modelInput, 0, 256);
+        inputPixels = new byte[3 * IMG_SIZE * IMG_SIZE];
+        inputPlanes = new float[3 * IMG_SIZE * IMG_SIZE];
+        inputBuffer = ByteBuffer.allocateDirect(inputPlanes.length * 4).order(ByteOrder.nativeOrder()).asFloatBuffer();
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        modelInput.release();
+    }
+
+    @Benchmark
+    public YOLODetectionService.EnhancedDetectionResult postprocessLost() {
+        return detector.yoloPostprocessPipeline(nextTensor(), CONF_THRESHOLD, STANDARD_NMS_THRESHOLD,
+                OVERLAP_NMS_THRESHOLD, IMG_SIZE, "lost", IMG_SIZE, IMG_SIZE);
+    }
+
+    @Benchmark
+    public YOLODetectionService.EnhancedDetectionResult postprocessTarget() {
+        return detector.yoloPostprocessPipeline(nextTensor(), CONF_THRESHOLD, STANDARD_NMS_THRESHOLD,
+                OVERLAP_NMS_THRESHOLD, IMG_SIZE, "target", IMG_SIZE, IMG_SIZE);
+    }
+
+    @Benchmark
+    public List<YOLODetectionService.FinalDetection> standardNms() {
+        // applyStandardNMS sorts its argument in place
+        return detector.applyStandardNMS(
+                new ArrayList<YOLODetectionService.DetectionCandidate>(treasureCandidates), STANDARD_NMS_THRESHOLD);
+    }
+
+    @Benchmark
+    public List<YOLODetectionService.FinalDetection> landmarkIntelligentNms() {
+        return detector.applyLandmarkIntelligentNMS(
+                new ArrayList<YOLODetectionService.DetectionCandidate>(landmarkCandidates), OVERLAP_NMS_THRESHOLD);
+    }
+
+    @Benchmark
+    public float calculateIoU() {
+        return detector.calculateIoU(iouA, iouB);
+    }
+
+    @Benchmark
+    public float[][][][] matToFloatArray() {
+        return detector.matToFloatArray(modelInput);
+    }
+
+    @Benchmark
+    public void fillInputBuffer() {
+        YOLODetectionService.fillInputBuffer(modelInput, inputPixels, inputPlanes, inputBuffer);
+    }
+
+    private float[][][] nextTensor() {
+        float[][][] tensor = tensors[next];
+        next = (next + 1) % tensors.length;
+        return tensor;
+    }
+
+    private static int clustersFor(String density) {
+        if ("sparse".equals(density)) {
+            return 2;
+        }
+        if ("medium".equals(density)) {
+            return 8;
+        }
+        if ("dense".equals(density)) {
+            return 30;
+        }
+        throw new IllegalArgumentException("Unknown density: " + density);
+    }
+
+    /**
+     * Background anchors with low scores plus {@code clusters} objects, each seen by 3-8
+     * neighbouring anchors with jittered boxes and scores above the confidence threshold.
+     * Clusters alternate between treasure and landmark classes.
+     */
+    static float[][][] synthesize(Random random, int clusters) {
+        float[][][] tensor = new float[1][CHANNELS][ANCHORS];
+        for (int a = 0; a < ANCHORS; a++) {
+            tensor[0][0][a] = random.nextFloat() * IMG_SIZE;
+            tensor[0][1][a] = random.nextFloat() * IMG_SIZE;
+            tensor[0][2][a] = 10 + random.nextFloat() * 60;
+            tensor[0][3][a] = 10 + random.nextFloat() * 60;
+            for (int c = 4; c < CHANNELS; c++) {
+                tensor[0][c][a] = random.nextFloat() * 0.05f;
+            }
+        }
+        int anchor = 0;
+        for (int k = 0; k < clusters; k++) {
+            int classId = k % 2 == 0
+                    ? TREASURE_CLASSES[random.nextInt(TREASURE_CLASSES.length)]
+                    : LANDMARK_CLASSES[random.nextInt(LANDMARK_CLASSES.length)];
+            float cx = 30 + random.nextFloat() * (IMG_SIZE - 60);
+            float cy = 30 + random.nextFloat() * (IMG_SIZE - 60);
+            float w = 20 + random.nextFloat() * 50;
+            float h = 20 + random.nextFloat() * 50;
+            int members = 3 + random.nextInt(6);
+            for (int m = 0; m < members && anchor < ANCHORS; m++, anchor += 7) {
+                tensor[0][0][anchor] = cx + (random.nextFloat() - 0.5f) * 4;
+                tensor[0][1][anchor] = cy + (random.nextFloat() - 0.5f) * 4;
+                tensor[0][2][anchor] = w * (0.9f + random.nextFloat() * 0.2f);
+                tensor[0][3][anchor] = h * (0.9f + random.nextFloat() * 0.2f);
+                tensor[0][4 + classId][anchor] = 0.55f + random.nextFloat() * 0.4f;
+            }
+        }
+        return tensor;
+    }
+
+    private static float[][][][] loadRecorded(File dir) throws IOException {
+        File[] files = dir.listFiles();
+        List<float[][][]> loaded = new ArrayList<float[][][]>();
+        if (files != null) {
+            Arrays.sort(files);
+            for (File file : files) {
+                if (file.getName().endsWith(TensorRecorder.EXTENSION)) {
+                    loaded.add(TensorRecorder.read(file));
+                }
+            }
+        }
+        if (loaded.isEmpty()) {
+            throw new IOException("No " + TensorRecorder.EXTENSION + " tensors in " + dir.getAbsolutePath()
+                    + " (record them with TensorRecorder)");
+        }
+        return loaded.toArray(new float[loaded.size()][][][]);
+    }
+
+    private static void extractCandidates(float[][][] tensor,
+                                          List<YOLODetectionService.DetectionCandidate> treasures,
+                                          List<YOLODetectionService.DetectionCandidate> landmarks) {
+        int anchors = tensor[0][0].length;
+        for (int a = 0; a < anchors; a++) {
+            for (int c = 4; c < tensor[0].length; c++) {
+                float score = tensor[0][c][a];
+                if (score <= CONF_THRESHOLD) {
+                    continue;
+                }
+                int classId = c - 4;
+                YOLODetectionService.DetectionCandidate candidate = new YOLODetectionService.DetectionCandidate(
+                        tensor[0][0][a], tensor[0][1][a], tensor[0][2][a], tensor[0][3][a], score, classId);
+                if (Arrays.binarySearch(TREASURE_CLASSES, classId) >= 0) {
+                    treasures.add(candidate);
+                } else {
+                    landmarks.add(candidate);
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,14 @@
+package android.content;
+
+import android.content.res.AssetManager;
+
+import java.io.File;
+
+/**
+ * Desktop stand-in for the parts of android.content.Context used by the vision code.
+ */
+public abstract class Context {
+    public abstract AssetManager getAssets();
+
+    public abstract File getFilesDir();
+}
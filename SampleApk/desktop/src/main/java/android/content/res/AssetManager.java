@@ -0,0 +1,21 @@
+package android.content.res;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * Desktop stand-in for android.content.res.AssetManager, serves files from a directory.
+ */
+public class AssetManager {
+    private final File root;
+
+    public AssetManager(File root) {
+        this.root = root;
+    }
+
+    public InputStream open(String fileName) throws IOException {
+        return new FileInputStream(new File(root, fileName));
+    }
+}
@@ -0,0 +1,73 @@
+package android.util;
+
+/**
+ * Desktop stand-in for android.util.Log, prints to stdout/stderr.
+ * Messages below {@link #setMinLevel(int)} (INFO by default) are dropped.
+ */
+public final class Log {
+    public static final int VERBOSE = 2;
+    public static final int DEBUG = 3;
+    public static final int INFO = 4;
+    public static final int WARN = 5;
+    public static final int ERROR = 6;
+
+    private static volatile int minLevel = INFO;
+
+    private Log() {
+    }
+
+    /**
+     * Desktop only: drop messages below the given level.
+     */
+    public static void setMinLevel(int level) {
+        minLevel = level;
+    }
+
+    public static boolean isLoggable(String tag, int level) {
+        return level >= minLevel;
+    }
+
+    public static int v(String tag, String msg) {
+        return println(VERBOSE, tag, msg, null);
+    }
+
+    public static int d(String tag, String msg) {
+        return println(DEBUG, tag, msg, null);
+    }
+
+    public static int i(String tag, String msg) {
+        return println(INFO, tag, msg, null);
+    }
+
+    public static int w(String tag, String msg) {
+        return println(WARN, tag, msg, null);
+    }
+
+    public static int w(String tag, String msg, Throwable tr) {
+        return println(WARN, tag, msg, tr);
+    }
+
+    public static int e(String tag, String msg) {
+        return println(ERROR, tag, msg, null);
+    }
+
+    public static int e(String tag, String msg, Throwable tr) {
+        return println(ERROR, tag, msg, tr);
+    }
+
+    private static int println(int level, String tag, String msg, Throwable tr) {
+        if (level < minLevel) {
+            return 0;
+        }
+        String line = "VDIWE".charAt(level - VERBOSE) + "/" + tag + ": " + msg;
+        if (level >= WARN) {
+            System.err.println(line);
+            if (tr != null) {
+                tr.printStackTrace();
+            }
+        } else {
+            System.out.println(line);
+        }
+        return line.length();
+    }
+}
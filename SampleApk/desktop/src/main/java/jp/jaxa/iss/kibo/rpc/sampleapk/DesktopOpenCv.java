@@ -0,0 +1,77 @@
+package jp.jaxa.iss.kibo.rpc.sampleapk;
+
+import org.bytedeco.javacpp.Loader;
+import org.bytedeco.opencv.opencv_java;
+import org.opencv.core.Mat;
+import org.opencv.imgcodecs.Imgcodecs;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Desktop helpers shared by the harnesses: native OpenCV loading and frame directory listing.
+ */
+public final class DesktopOpenCv {
+    private static boolean loaded = false;
+
+    private DesktopOpenCv() {
+    }
+
+    /**
+     * Load the bytedeco OpenCV natives backing the org.opencv.* classes. Call before any Mat use.
+     */
+    public static synchronized void load() {
+        if (!loaded) {
+            Loader.load(opencv_java.class);
+            loaded = true;
+        }
+    }
+
+    /**
+     * PNG/JPEG files of a directory, sorted by name.
+     */
+    public static List<File> listImages(File dir) {
+        List<File> images = new ArrayList<File>();
+        File[] files = dir.listFiles();
+        if (files == null) {
+            return images;
+        }
+        Arrays.sort(files);
+        for (File file : files) {
+            String name = file.getName().toLowerCase();
+            if (file.isFile() && (name.endsWith(".png") || name.endsWith(".jpg") || name.endsWith(".jpeg"))) {
+                images.add(file);
+            }
+        }
+        return images;
+    }
+
+    /**
+     * Read an image as single channel, like NavCam frames.
+     *
+     * @return the image, or null if it cannot be decoded
+     */
+    public static Mat readGray(File file) {
+        Mat image = Imgcodecs.imread(file.getAbsolutePath(), Imgcodecs.IMREAD_GRAYSCALE);
+        if (image.empty()) {
+            image.release();
+            return null;
+        }
+        return image;
+    }
+
+    /**
+     * Value at the given percentile (0..100) of an unsorted sample, nearest rank.
+     */
+    public static long percentile(long[] samples, int count, double percent) {
+        if (count == 0) {
+            return 0;
+        }
+        long[] sorted = Arrays.copyOf(samples, count);
+        Arrays.sort(sorted);
+        int rank = (int) Math.ceil(percent / 100.0 * count) - 1;
+        return sorted[Math.max(0, Math.min(count - 1, rank))];
+    }
+}
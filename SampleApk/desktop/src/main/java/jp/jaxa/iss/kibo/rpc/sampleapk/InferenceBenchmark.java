@@ -0,0 +1,280 @@
+package jp.jaxa.iss.kibo.rpc.sampleapk;
+
+import ai.onnxruntime.OrtException;
+import ai.onnxruntime.OrtSession;
+import android.util.Log;
+
+import org.opencv.core.Mat;
+import org.opencv.imgcodecs.Imgcodecs;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileReader;
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryMXBean;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * End-to-end latency of {@link YOLODetectionService#DetectfromcvImage} on the desktop, i.e.
+ * preprocessing, ONNX Runtime and post-processing exactly as the robot runs them.
+ *
+ * Reports:
+ * - cold start: session creation and the first detection
+ * - warm latency percentiles over repeated passes of the images, with a per-stage split
+ * - throughput with 1..N threads sharing one detector and its session pool
+ * - peak resident memory and peak native memory (RSS minus committed Java heap), Linux only
+ *
+ * Session options come from system properties so they can be compared without code changes:
+ * -Dort.optLevel=none|basic|extended|all (default basic, as on the robot),
+ * -Dort.poolSize=N (default 2, as on the robot) and -Dort.intraOpThreads=N (default: the
+ * cores split between the pool's sessions, as on the robot).
+ *
+ * Usage: InferenceBenchmark [images dir, YOLO/runs/detect/predict] [model, YOLO/best.onnx]
+ *        [warm passes, 20] [max threads, cores] [color|gray, color]
+ */
+public class InferenceBenchmark {
+    private static final String DEFAULT_IMAGES = "YOLO/runs/detect/predict";
+    private static final String DEFAULT_MODEL = "YOLO/best.onnx";
+    private static final int DEFAULT_PASSES = 20;
+    private static final String IMAGE_TYPE = "lost";
+    private static final float CONF_THRESHOLD = 0.5f;
+    private static final float STANDARD_NMS_THRESHOLD = 0.45f;
+    private static final float OVERLAP_NMS_THRESHOLD = 0.8f;
+    private static final long MEMORY_SAMPLE_MILLIS = 5;
+
+    public static void main(String[] args) throws Exception {
+        DesktopOpenCv.load();
+        Log.setMinLevel(Log.WARN);
+
+        File imagesDir = new File(args.length > 0 ? args[0] : DEFAULT_IMAGES);
+        File modelFile = new File(args.length > 1 ? args[1] : DEFAULT_MODEL);
+        int passes = args.length > 2 ? Integer.parseInt(args[2]) : DEFAULT_PASSES;
+        int maxThreads = args.length > 3 ? Integer.parseInt(args[3]) : Runtime.getRuntime().availableProcessors();
+        boolean gray = args.length > 4 && "gray".equals(args[4]);
+
+        List<Mat> images = loadImages(imagesDir, gray);
+        if (images.isEmpty()) {
+            System.err.println("No images in " + imagesDir);
+            System.exit(1);
+        }
+
+        MemorySampler memory = new MemorySampler();
+        memory.start();
+
+        long loadStart = System.nanoTime();
+        int poolSize = Integer.getInteger("ort.poolSize", YOLODetectionService.DEFAULT_POOL_SIZE);
+        OrtSession.SessionOptions options = sessionOptions(poolSize);
+        YOLODetectionService detector = new YOLODetectionService(modelFile, options, poolSize);
+        long loadNanos = System.nanoTime() - loadStart;
+        if (!detector.isInitialized()) {
+            System.err.println("Cannot load model " + modelFile);
+            System.exit(1);
+        }
+        try {
+            long firstStart = System.nanoTime();
+            detect(detector, images.get(0));
+            long firstNanos = System.nanoTime() - firstStart;
+
+            System.out.println(String.format("Model %s, %d %s images from %s, optLevel %s, %d sessions x %d intraOpThreads",
+                    modelFile, images.size(), gray ? "gray" : "color", imagesDir,
+                    System.getProperty("ort.optLevel", "basic"), poolSize, intraOpThreads(poolSize)));
+            System.out.println(String.format("Cold start: session %.1f ms, first detection %.1f ms",
+                    loadNanos / 1e6, firstNanos / 1e6));
+
+            measureLatency(detector, images, passes);
+            measureThroughput(detector, images, passes, maxThreads);
+        } finally {
+            detector.close();
+            options.close();
+            memory.stop();
+            for (Mat image : images) {
+                image.release();
+            }
+        }
+        memory.report();
+    }
+
+    private static void measureLatency(YOLODetectionService detector, List<Mat> images, int passes) {
+        StageTracer tracer = new StageTracer(1);
+        detector.setTracer(tracer);
+        LatencyStats total = new LatencyStats("detect");
+        for (int pass = 0; pass < passes; pass++) {
+            for (Mat image : images) {
+                long start = System.nanoTime();
+                detect(detector, image);
+                total.add(System.nanoTime() - start);
+            }
+        }
+        detector.setTracer(null);
+
+        System.out.println();
+        System.out.println(String.format("Warm latency over %d detections: p50 %.2f ms, p95 %.2f ms, p99 %.2f ms, max %.2f ms",
+                total.count(), total.percentile(50) / 1e6, total.percentile(95) / 1e6,
+                total.percentile(99) / 1e6, total.max() / 1e6));
+        StageTracer.Stage[] stages = {
+                StageTracer.Stage.PREPROCESS, StageTracer.Stage.SESSION_RUN, StageTracer.Stage.POSTPROCESS
+        };
+        for (StageTracer.Stage stage : stages) {
+            long count = tracer.getCount(stage);
+            if (count > 0) {
+                System.out.println(String.format("  %-12s mean %.2f ms", stage, tracer.getTotalNanos(stage) / 1e6 / count));
+            }
+        }
+    }
+
+    private static void measureThroughput(final YOLODetectionService detector, final List<Mat> images,
+                                          int passes, int maxThreads) throws InterruptedException {
+        System.out.println();
+        System.out.println(String.format("%-8s %12s %12s %10s", "threads", "detections", "wall", "det/s"));
+        for (int threads = 1; threads <= maxThreads; threads++) {
+            final int perThread = Math.max(1, passes * images.size() / threads);
+            final CountDownLatch startGate = new CountDownLatch(1);
+            final CountDownLatch done = new CountDownLatch(threads);
+            final AtomicInteger completed = new AtomicInteger();
+            for (int t = 0; t < threads; t++) {
+                final int offset = t;
+                Thread worker = new Thread(new Runnable() {
+                    @Override
+                    public void run() {
+                        try {
+                            startGate.await();
+                            for (int i = 0; i < perThread; i++) {
+                                detect(detector, images.get((offset + i) % images.size()));
+                                completed.incrementAndGet();
+                            }
+                        } catch (InterruptedException e) {
+                            Thread.currentThread().interrupt();
+                        } finally {
+                            done.countDown();
+                        }
+                    }
+                }, "bench-" + t);
+                worker.start();
+            }
+            long start = System.nanoTime();
+            startGate.countDown();
+            done.await();
+            long wall = System.nanoTime() - start;
+            System.out.println(String.format("%-8d %12d %10.0fms %10.1f",
+                    threads, completed.get(), wall / 1e6, completed.get() / (wall / 1e9)));
+        }
+    }
+
+    private static void detect(YOLODetectionService detector, Mat image) {
+        detector.DetectfromcvImage(image, IMAGE_TYPE, CONF_THRESHOLD, STANDARD_NMS_THRESHOLD, OVERLAP_NMS_THRESHOLD);
+    }
+
+    private static int intraOpThreads(int poolSize) {
+        return Integer.getInteger("ort.intraOpThreads", YOLODetectionService.intraOpThreads(poolSize));
+    }
+
+    private static OrtSession.SessionOptions sessionOptions(int poolSize) throws OrtException {
+        OrtSession.SessionOptions options = new OrtSession.SessionOptions();
+        String level = System.getProperty("ort.optLevel", "basic");
+        if ("none".equals(level)) {
+            options.setOptimizationLevel(OrtSession.SessionOptions.OptLevel.NO_OPT);
+        } else if ("extended".equals(level)) {
+            options.setOptimizationLevel(OrtSession.SessionOptions.OptLevel.EXTENDED_OPT);
+        } else if ("all".equals(level)) {
+            options.setOptimizationLevel(OrtSession.SessionOptions.OptLevel.ALL_OPT);
+        } else {
+            options.setOptimizationLevel(OrtSession.SessionOptions.OptLevel.BASIC_OPT);
+        }
+        options.setIntraOpNumThreads(intraOpThreads(poolSize));
+        return options;
+    }
+
+    private static List<Mat> loadImages(File dir, boolean gray) {
+        List<Mat> images = new ArrayList<Mat>();
+        for (File file : DesktopOpenCv.listImages(dir)) {
+            Mat image = Imgcodecs.imread(file.getAbsolutePath(),
+                    gray ? Imgcodecs.IMREAD_GRAYSCALE : Imgcodecs.IMREAD_COLOR);
+            if (image.empty()) {
+                image.release();
+            } else {
+                images.add(image);
+            }
+        }
+        return images;
+    }
+
+    /**
+     * Polls /proc/self/status for the peak of resident memory minus committed Java heap,
+     * which is what OpenCV and ONNX Runtime allocate natively (plus JVM overhead).
+     */
+    private static class MemorySampler implements Runnable {
+        private final MemoryMXBean memoryBean = ManagementFactory.getMemoryMXBean();
+        private final Thread thread = new Thread(this, "memory-sampler");
+        private volatile boolean running = true;
+        private long baselineNativeKb = -1;
+        private long peakNativeKb = -1;
+        private long peakHeapUsedKb = 0;
+
+        void start() {
+            baselineNativeKb = nativeKb();
+            thread.setDaemon(true);
+            thread.start();
+        }
+
+        void stop() throws InterruptedException {
+            running = false;
+            thread.join();
+        }
+
+        @Override
+        public void run() {
+            while (running) {
+                long nativeKb = nativeKb();
+                peakNativeKb = Math.max(peakNativeKb, nativeKb);
+                peakHeapUsedKb = Math.max(peakHeapUsedKb, memoryBean.getHeapMemoryUsage().getUsed() / 1024);
+                try {
+                    Thread.sleep(MEMORY_SAMPLE_MILLIS);
+                } catch (InterruptedException e) {
+                    return;
+                }
+            }
+        }
+
+        void report() {
+            long peakRssKb = readStatusKb("VmHWM");
+            System.out.println();
+            if (peakRssKb < 0 || baselineNativeKb < 0) {
+                System.out.println("Peak memory: /proc/self/status not available");
+                return;
+            }
+            System.out.println(String.format("Peak RSS %.1f MB, peak native %.1f MB (%.1f MB above start), peak heap used %.1f MB",
+                    peakRssKb / 1024.0, peakNativeKb / 1024.0, (peakNativeKb - baselineNativeKb) / 1024.0,
+                    peakHeapUsedKb / 1024.0));
+        }
+
+        private long nativeKb() {
+            long rssKb = readStatusKb("VmRSS");
+            return rssKb < 0 ? -1 : rssKb - memoryBean.getHeapMemoryUsage().getCommitted() / 1024;
+        }
+
+        private static long readStatusKb(String key) {
+            try {
+                BufferedReader reader = new BufferedReader(new FileReader("/proc/self/status"));
+                try {
+                    String line;
+                    while ((line = reader.readLine()) != null) {
+                        if (line.startsWith(key + ":")) {
+                            return Long.parseLong(line.substring(key.length() + 1).replace("kB", "").trim());
+                        }
+                    }
+                } finally {
+                    reader.close();
+                }
+            } catch (IOException e) {
+                return -1;
+            } catch (NumberFormatException e) {
+                return -1;
+            }
+            return -1;
+        }
+    }
+}
@@ -0,0 +1,64 @@
+package jp.jaxa.iss.kibo.rpc.sampleapk;
+
+import java.util.Arrays;
+
+/**
+ * Growable list of nanosecond samples with percentile summaries, for the desktop harnesses.
+ */
+public class LatencyStats {
+    private final String name;
+    private long[] samples = new long[64];
+    private int count = 0;
+
+    public LatencyStats(String name) {
+        this.name = name;
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    public void add(long nanos) {
+        if (count == samples.length) {
+            samples = Arrays.copyOf(samples, count * 2);
+        }
+        samples[count++] = nanos;
+    }
+
+    public int count() {
+        return count;
+    }
+
+    public long percentile(double percent) {
+        return DesktopOpenCv.percentile(samples, count, percent);
+    }
+
+    public long max() {
+        return percentile(100);
+    }
+
+    public double meanNanos() {
+        if (count == 0) {
+            return 0;
+        }
+        long sum = 0;
+        for (int i = 0; i < count; i++) {
+            sum += samples[i];
+        }
+        return (double) sum / count;
+    }
+
+    public static String header() {
+        return String.format("%-18s %7s %10s %10s %10s %10s %10s",
+                "stage", "count", "mean", "p50", "p95", "max", "total");
+    }
+
+    /**
+     * One table row in milliseconds, matching {@link #header()}.
+     */
+    public String row() {
+        return String.format("%-18s %7d %8.2fms %8.2fms %8.2fms %8.2fms %8.0fms",
+                name, count, meanNanos() / 1e6, percentile(50) / 1e6, percentile(95) / 1e6,
+                max() / 1e6, meanNanos() * count / 1e6);
+    }
+}
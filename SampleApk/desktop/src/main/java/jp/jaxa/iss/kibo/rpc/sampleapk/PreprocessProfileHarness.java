@@ -0,0 +1,278 @@
+package jp.jaxa.iss.kibo.rpc.sampleapk;
+
+import android.util.Log;
+
+import org.opencv.core.Core;
+import org.opencv.core.CvType;
+import org.opencv.core.Mat;
+import org.opencv.core.Size;
+import org.opencv.imgproc.Imgproc;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.TreeSet;
+
+/**
+ * Replays saved crops through every {@link PreprocessProfile} and reports preprocessing and
+ * detection latency next to agreement with a reference profile.
+ *
+ * Input is a directory of gray crops as saved by the mission (area_N_warped.png, target_warped.png,
+ * target_astronaut_raw.png ...). Already enhanced images (_clahe, _binary, _final) are skipped.
+ * Each crop is resized to the profile's warp size, which stands in for the profile's own warp.
+ *
+ * A frame agrees with the reference when it yields the same treasure set and the same
+ * highest-confidence landmark, i.e. the two things the mission reports. The model inputs
+ * are also compared pixel by pixel with the reference's, which tells binarizations apart
+ * without a trained model.
+ *
+ * Profiles use the ADAPTIVE enhancement path like the mission; the binarized profile is also
+ * run with the AUTO and FAST paths (binarized/auto, binarized/fast) to check them against it.
+ *
+ * Usage: PreprocessProfileHarness &lt;frames dir&gt; [model, YOLO/best.onnx] [reference profile, binarized] [repeats, 20]
+ */
+public class PreprocessProfileHarness {
+    private static final String TAG = "PreprocessProfileHarness";
+    private static final Size MODEL_SIZE = new Size(320, 320);
+    private static final String DEFAULT_MODEL = "YOLO/best.onnx";
+    private static final int DEFAULT_REPEATS = 20;
+
+    private static class Frame {
+        final String name;
+        final Mat gray;
+        final String imageType;
+
+        Frame(String name, Mat gray) {
+            this.name = name;
+            this.gray = gray;
+            this.imageType = name.startsWith("target") ? "target" : "lost";
+        }
+    }
+
+    private static class ProfileReport {
+        final String profileName;
+        final long[] preprocessNanos;
+        final long[] detectNanos;
+        final String[] signatures;
+        // Share of model input pixels equal to the reference's, per frame
+        final double[] pixelAgreement;
+        int preprocessCount = 0;
+        int detectCount = 0;
+
+        ProfileReport(String profileName, int frames, int repeats) {
+            this.profileName = profileName;
+            this.preprocessNanos = new long[frames * repeats];
+            this.detectNanos = new long[frames];
+            this.signatures = new String[frames];
+            this.pixelAgreement = new double[frames];
+        }
+    }
+
+    private static class Variant {
+        final String name;
+        final PreprocessProfile profile;
+
+        Variant(String name, PreprocessProfile profile) {
+            this.name = name;
+            this.profile = profile;
+        }
+    }
+
+    public static void main(String[] args) {
+        if (args.length < 1) {
+            System.err.println("Usage: PreprocessProfileHarness <frames dir> [model] [reference profile] [repeats]");
+            System.exit(2);
+        }
+        DesktopOpenCv.load();
+
+        File framesDir = new File(args[0]);
+        File modelFile = new File(args.length > 1 ? args[1] : DEFAULT_MODEL);
+        String referenceName = args.length > 2 ? args[2] : PreprocessProfiles.BINARIZED;
+        int repeats = args.length > 3 ? Integer.parseInt(args[3]) : DEFAULT_REPEATS;
+
+        List<Frame> frames = loadFrames(framesDir);
+        if (frames.isEmpty()) {
+            System.err.println("No usable frames in " + framesDir);
+            System.exit(1);
+        }
+
+        // The detector logs every tensor layer at INFO, keep the report readable
+        Log.setMinLevel(Log.WARN);
+        YOLODetectionService detector = new YOLODetectionService(modelFile);
+        if (!detector.isInitialized()) {
+            System.err.println("Cannot load model " + modelFile);
+            System.exit(1);
+        }
+        EnhancementStage stage = new EnhancementStage(EnhancementStage.Mode.ADAPTIVE);
+        EnhancementStage autoStage = new EnhancementStage(EnhancementStage.Mode.AUTO);
+        EnhancementStage fastStage = new EnhancementStage(EnhancementStage.Mode.FAST);
+        List<Variant> variants = new ArrayList<Variant>();
+        for (String name : PreprocessProfiles.getNames()) {
+            variants.add(new Variant(name, PreprocessProfiles.byName(name, stage)));
+        }
+        variants.add(new Variant(PreprocessProfiles.BINARIZED + "/auto",
+                PreprocessProfiles.byName(PreprocessProfiles.BINARIZED, autoStage)));
+        variants.add(new Variant(PreprocessProfiles.BINARIZED + "/fast",
+                PreprocessProfiles.byName(PreprocessProfiles.BINARIZED, fastStage)));
+
+        Variant referenceVariant = null;
+        for (Variant variant : variants) {
+            if (variant.name.equals(referenceName)) {
+                referenceVariant = variant;
+            }
+        }
+        if (referenceVariant == null) {
+            System.err.println("Unknown reference profile " + referenceName + ", agreement not reported");
+        }
+
+        List<Mat> referenceInputs = new ArrayList<Mat>();
+        try {
+            // Session warm-up, the first run pays for graph optimisation and allocations
+            detector.DetectfromcvImage(frames.get(0).gray, frames.get(0).imageType);
+
+            // The reference runs first and keeps its model inputs for the pixel comparison
+            ProfileReport reference = referenceVariant != null
+                    ? run(referenceVariant, frames, detector, repeats, null, referenceInputs) : null;
+            List<ProfileReport> reports = new ArrayList<ProfileReport>();
+            for (Variant variant : variants) {
+                reports.add(variant == referenceVariant ? reference
+                        : run(variant, frames, detector, repeats, reference != null ? referenceInputs : null, null));
+            }
+            print(reports, reference, frames);
+            System.out.println();
+            // Every repeat goes through the stage, the share is per crop
+            int autoRuns = autoStage.getFastCount() + autoStage.getAdaptiveCount();
+            System.out.println(String.format("binarized/auto took the FAST path on %.0f%% of the crops",
+                    autoRuns > 0 ? 100.0 * autoStage.getFastCount() / autoRuns : 0.0));
+        } finally {
+            detector.close();
+            stage.release();
+            autoStage.release();
+            fastStage.release();
+            for (Frame frame : frames) {
+                frame.gray.release();
+            }
+            for (Mat input : referenceInputs) {
+                input.release();
+            }
+        }
+    }
+
+    private static List<Frame> loadFrames(File dir) {
+        List<Frame> frames = new ArrayList<Frame>();
+        for (File file : DesktopOpenCv.listImages(dir)) {
+            String name = file.getName();
+            if (name.contains("_clahe") || name.contains("_binary") || name.contains("_final")
+                    || name.contains("_enhanced")) {
+                continue;
+            }
+            Mat gray = DesktopOpenCv.readGray(file);
+            if (gray == null) {
+                System.err.println("Cannot decode " + name + ", skipped");
+                continue;
+            }
+            frames.add(new Frame(name, gray));
+        }
+        return frames;
+    }
+
+    /**
+     * @param referenceInputs the reference's model inputs to compare with, or null
+     * @param keepInputs      receives a copy of every model input, or null
+     */
+    private static ProfileReport run(Variant variant, List<Frame> frames, YOLODetectionService detector,
+                                     int repeats, List<Mat> referenceInputs, List<Mat> keepInputs) {
+        PreprocessProfile profile = variant.profile;
+        ProfileReport report = new ProfileReport(variant.name, frames.size(), repeats);
+        Size warpSize = profile.getWarpSize(MODEL_SIZE);
+        Mat warped = new Mat();
+        Mat enhanced = new Mat();
+        Mat modelInput = new Mat((int) MODEL_SIZE.height, (int) MODEL_SIZE.width, CvType.CV_8UC1);
+        Mat difference = new Mat();
+        try {
+            for (int f = 0; f < frames.size(); f++) {
+                Frame frame = frames.get(f);
+                for (int r = 0; r < repeats; r++) {
+                    long start = System.nanoTime();
+                    Imgproc.resize(frame.gray, warped, warpSize);
+                    profile.apply(warped, enhanced, modelInput, MODEL_SIZE);
+                    report.preprocessNanos[report.preprocessCount++] = System.nanoTime() - start;
+                }
+
+                long start = System.nanoTime();
+                YOLODetectionService.EnhancedDetectionResult result =
+                        detector.DetectfromcvImage(modelInput, frame.imageType);
+                report.detectNanos[report.detectCount++] = System.nanoTime() - start;
+                report.signatures[f] = signature(result);
+
+                if (referenceInputs != null) {
+                    Core.compare(modelInput, referenceInputs.get(f), difference, Core.CMP_NE);
+                    report.pixelAgreement[f] = 1.0 - Core.countNonZero(difference) / (double) modelInput.total();
+                } else {
+                    report.pixelAgreement[f] = 1.0;
+                }
+                if (keepInputs != null) {
+                    keepInputs.add(modelInput.clone());
+                }
+            }
+        } finally {
+            warped.release();
+            enhanced.release();
+            modelInput.release();
+            difference.release();
+        }
+        return report;
+    }
+
+    /**
+     * What the mission reports for a frame: treasure classes and the top landmark.
+     */
+    static String signature(YOLODetectionService.EnhancedDetectionResult result) {
+        TreeSet<String> treasures = new TreeSet<String>(result.getTreasureNames());
+        String landmark = result.getHighestConfidenceLandmarkName();
+        return treasures + " / " + (landmark != null ? landmark : "-");
+    }
+
+    private static void print(List<ProfileReport> reports, ProfileReport reference, List<Frame> frames) {
+        System.out.println();
+        System.out.println(String.format("%d frames, reference profile: %s",
+                frames.size(), reference != null ? reference.profileName : "none"));
+        System.out.println(String.format("%-22s %10s %10s %10s %10s %10s %10s",
+                "profile", "prep p50", "prep p95", "det p50", "det p95", "agree", "px agree"));
+        for (ProfileReport report : reports) {
+            int agreeing = 0;
+            double pixels = 0;
+            if (reference != null) {
+                for (int f = 0; f < frames.size(); f++) {
+                    if (report.signatures[f].equals(reference.signatures[f])) {
+                        agreeing++;
+                    }
+                    pixels += report.pixelAgreement[f];
+                }
+            }
+            System.out.println(String.format("%-22s %8.3fms %8.3fms %8.2fms %8.2fms %10s %10s",
+                    report.profileName,
+                    millis(DesktopOpenCv.percentile(report.preprocessNanos, report.preprocessCount, 50)),
+                    millis(DesktopOpenCv.percentile(report.preprocessNanos, report.preprocessCount, 95)),
+                    millis(DesktopOpenCv.percentile(report.detectNanos, report.detectCount, 50)),
+                    millis(DesktopOpenCv.percentile(report.detectNanos, report.detectCount, 95)),
+                    reference != null ? agreeing + "/" + frames.size() : "-",
+                    reference != null ? String.format("%.1f%%", 100 * pixels / frames.size()) : "-"));
+        }
+
+        System.out.println();
+        System.out.println("Per-frame results (treasures / top landmark):");
+        for (int f = 0; f < frames.size(); f++) {
+            System.out.println("  " + frames.get(f).name);
+            for (ProfileReport report : reports) {
+                boolean differs = reference != null && !report.signatures[f].equals(reference.signatures[f]);
+                System.out.println(String.format("    %-22s %s%s", report.profileName, report.signatures[f],
+                        differs ? "  *" : ""));
+            }
+        }
+    }
+
+    private static double millis(long nanos) {
+        return nanos / 1e6;
+    }
+}
@@ -0,0 +1,187 @@
+package jp.jaxa.iss.kibo.rpc.sampleapk;
+
+import ai.onnxruntime.OrtEnvironment;
+import android.util.Log;
+
+import org.opencv.core.Mat;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Accuracy vs latency of the INT8 model from YOLO/quantize_int8.py against the FP32 one.
+ *
+ * Both models run on the same model inputs (area_N_final.png / target_final.png from a run or
+ * a replay) with their default session options, as YOLODetectionService would pick them on
+ * the robot. Reported per model: size, session creation, warm detection p50/p95 and speedup;
+ * and for INT8: how many images give the same treasures / top landmark as FP32 (what the
+ * mission reports), and the raw output error on class scores and on boxes of confident anchors.
+ *
+ * Usage: QuantizationReport &lt;images dir&gt; [fp32 model, YOLO/best.onnx]
+ *        [int8 model, YOLO/best_int8.onnx] [repeats, 10]
+ */
+public class QuantizationReport {
+    private static final int FEATURE_BOX_END = 4;
+    // Anchors with an FP32 class score above this count for the box error
+    private static final float CONFIDENT_SCORE = 0.25f;
+
+    private static class Image {
+        final String name;
+        final Mat gray;
+        final String imageType;
+
+        Image(String name, Mat gray) {
+            this.name = name;
+            this.gray = gray;
+            this.imageType = name.startsWith("target") ? "target" : "lost";
+        }
+    }
+
+    private static class ModelRun {
+        final File file;
+        final LatencyStats detect = new LatencyStats("detect");
+        final List<String> signatures = new ArrayList<String>();
+        final List<float[][][]> outputs = new ArrayList<float[][][]>();
+        long loadNanos;
+
+        ModelRun(File file) {
+            this.file = file;
+        }
+    }
+
+    public static void main(String[] args) throws Exception {
+        if (args.length < 1) {
+            System.err.println("Usage: QuantizationReport <images dir> [fp32 model] [int8 model] [repeats]");
+            System.exit(2);
+        }
+        DesktopOpenCv.load();
+        Log.setMinLevel(Log.WARN);
+
+        File imagesDir = new File(args[0]);
+        ModelRun fp32 = new ModelRun(new File(args.length > 1 ? args[1] : "YOLO/best.onnx"));
+        ModelRun int8 = new ModelRun(new File(args.length > 2 ? args[2] : "YOLO/best_int8.onnx"));
+        int repeats = args.length > 3 ? Integer.parseInt(args[3]) : 10;
+
+        List<Image> images = new ArrayList<Image>();
+        for (File file : DesktopOpenCv.listImages(imagesDir)) {
+            Mat gray = DesktopOpenCv.readGray(file);
+            if (gray != null) {
+                images.add(new Image(file.getName(), gray));
+            }
+        }
+        if (images.isEmpty()) {
+            System.err.println("No images in " + imagesDir);
+            System.exit(1);
+        }
+        // Create the shared ORT environment up front so it is not billed to the first model's load
+        OrtEnvironment.getEnvironment();
+        try {
+            run(fp32, images, repeats);
+            run(int8, images, repeats);
+            print(fp32, int8, images);
+        } finally {
+            for (Image image : images) {
+                image.gray.release();
+            }
+        }
+    }
+
+    private static void run(ModelRun run, List<Image> images, int repeats) throws Exception {
+        long start = System.nanoTime();
+        YOLODetectionService detector = new YOLODetectionService(run.file);
+        run.loadNanos = System.nanoTime() - start;
+        if (!detector.isInitialized()) {
+            System.err.println("Cannot load model " + run.file);
+            System.exit(1);
+        }
+        try {
+            // Warm-up, the first run pays for allocations and kernel selection
+            detector.DetectfromcvImage(images.get(0).gray, images.get(0).imageType);
+            for (Image image : images) {
+                YOLODetectionService.EnhancedDetectionResult result = null;
+                for (int r = 0; r < repeats; r++) {
+                    start = System.nanoTime();
+                    result = detector.DetectfromcvImage(image.gray, image.imageType);
+                    run.detect.add(System.nanoTime() - start);
+                }
+                run.signatures.add(PreprocessProfileHarness.signature(result));
+                if (!detector.isFusedModel()) {
+                    run.outputs.add(detector.runInference(image.gray));
+                }
+            }
+        } finally {
+            detector.close();
+        }
+    }
+
+    private static void print(ModelRun fp32, ModelRun int8, List<Image> images) {
+        int agreeing = 0;
+        for (int i = 0; i < images.size(); i++) {
+            if (fp32.signatures.get(i).equals(int8.signatures.get(i))) {
+                agreeing++;
+            }
+        }
+
+        double scoreErrorSum = 0;
+        double scoreErrorMax = 0;
+        long scoreCount = 0;
+        double boxErrorSum = 0;
+        long boxCount = 0;
+        boolean rawOutputs = !fp32.outputs.isEmpty() && !int8.outputs.isEmpty();
+        for (int i = 0; rawOutputs && i < images.size(); i++) {
+            float[][] reference = fp32.outputs.get(i)[0];
+            float[][] quantized = int8.outputs.get(i)[0];
+            for (int a = 0; a < reference[0].length; a++) {
+                float bestScore = 0;
+                for (int f = FEATURE_BOX_END; f < reference.length; f++) {
+                    double error = Math.abs(reference[f][a] - quantized[f][a]);
+                    scoreErrorSum += error;
+                    scoreErrorMax = Math.max(scoreErrorMax, error);
+                    scoreCount++;
+                    bestScore = Math.max(bestScore, reference[f][a]);
+                }
+                if (bestScore > CONFIDENT_SCORE) {
+                    for (int f = 0; f < FEATURE_BOX_END; f++) {
+                        boxErrorSum += Math.abs(reference[f][a] - quantized[f][a]);
+                        boxCount++;
+                    }
+                }
+            }
+        }
+
+        double fp32Median = fp32.detect.percentile(50);
+        System.out.println();
+        System.out.println(String.format("%d images, %d timed detections per model", images.size(), fp32.detect.count()));
+        System.out.println(String.format("%-22s %8s %10s %10s %10s %8s",
+                "model", "size", "load", "det p50", "det p95", "speedup"));
+        for (ModelRun run : new ModelRun[]{fp32, int8}) {
+            System.out.println(String.format("%-22s %6.1fMB %8.0fms %8.2fms %8.2fms %7.2fx",
+                    run.file.getName(), run.file.length() / 1e6, run.loadNanos / 1e6,
+                    run.detect.percentile(50) / 1e6, run.detect.percentile(95) / 1e6,
+                    fp32Median / run.detect.percentile(50)));
+        }
+        System.out.println();
+        System.out.println(String.format("Same treasures / top landmark as FP32: %d/%d", agreeing, images.size()));
+        if (rawOutputs) {
+            System.out.println(String.format("Class score error: mean %.4f, max %.4f",
+                    scoreErrorSum / Math.max(1, scoreCount), scoreErrorMax));
+            System.out.println(String.format("Box error (px) on anchors scoring > %.2f in FP32: mean %.2f over %d values",
+                    CONFIDENT_SCORE, boxErrorSum / Math.max(1, boxCount), boxCount));
+        } else {
+            System.out.println("Raw output error not available for fused models");
+        }
+
+        if (agreeing == images.size()) {
+            return;
+        }
+        System.out.println();
+        System.out.println("Differing images (FP32 -> INT8):");
+        for (int i = 0; i < images.size(); i++) {
+            if (!fp32.signatures.get(i).equals(int8.signatures.get(i))) {
+                System.out.println(String.format("  %-30s %s -> %s", images.get(i).name,
+                        fp32.signatures.get(i), int8.signatures.get(i)));
+            }
+        }
+    }
+}
@@ -0,0 +1,105 @@
+package jp.jaxa.iss.kibo.rpc.sampleapk;
+
+import android.util.Log;
+
+import org.opencv.core.Mat;
+import org.opencv.imgcodecs.Imgcodecs;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileReader;
+import java.io.IOException;
+
+/**
+ * {@link NavCamSource} backed by saved frames instead of the Kibo api.
+ *
+ * getMatNavCam() returns a copy of the frame set with {@link #setFrame(Mat)}. Intrinsics are
+ * the simulator NavCam values unless an intrinsics.txt (9 camera matrix values on the first
+ * line, 5 distortion coefficients on the second) is found. Saved images go to an output
+ * directory, or nowhere.
+ */
+public class ReplayNavCamSource implements NavCamSource {
+    private static final String TAG = "ReplayNavCamSource";
+
+    // Values returned by api.getNavCamIntrinsics() in the simulator
+    private static final double[] SIM_CAMERA_MATRIX = {
+            523.105750, 0.0, 635.434258,
+            0.0, 534.765913, 500.335102,
+            0.0, 0.0, 1.0
+    };
+    private static final double[] SIM_DIST_COEFFS = {-0.164787, 0.020375, -0.001572, -0.000369, 0.0};
+
+    private final double[][] intrinsics;
+    private final File outputDir;
+    private Mat frame;
+
+    /**
+     * @param intrinsicsFile intrinsics.txt, or null / missing for the simulator values
+     * @param outputDir      where saveMatImage writes, null to drop the images
+     */
+    public ReplayNavCamSource(File intrinsicsFile, File outputDir) throws IOException {
+        this.intrinsics = intrinsicsFile != null && intrinsicsFile.isFile()
+                ? readIntrinsics(intrinsicsFile)
+                : new double[][]{SIM_CAMERA_MATRIX.clone(), SIM_DIST_COEFFS.clone()};
+        this.outputDir = outputDir;
+        if (outputDir != null && !outputDir.isDirectory() && !outputDir.mkdirs()) {
+            throw new IOException("Cannot create " + outputDir);
+        }
+    }
+
+    /**
+     * Frame served by the following getMatNavCam() calls; still owned by the caller.
+     */
+    public void setFrame(Mat frame) {
+        this.frame = frame;
+    }
+
+    @Override
+    public Mat getMatNavCam() {
+        if (frame == null) {
+            throw new IllegalStateException("No replay frame set");
+        }
+        return frame.clone();
+    }
+
+    @Override
+    public double[][] getNavCamIntrinsics() {
+        return new double[][]{intrinsics[0].clone(), intrinsics[1].clone()};
+    }
+
+    @Override
+    public void saveMatImage(Mat image, String name) {
+        if (outputDir == null) {
+            return;
+        }
+        if (!Imgcodecs.imwrite(new File(outputDir, name).getAbsolutePath(), image)) {
+            Log.w(TAG, "Failed to write " + name);
+        }
+    }
+
+    private static double[][] readIntrinsics(File file) throws IOException {
+        BufferedReader reader = new BufferedReader(new FileReader(file));
+        try {
+            double[] cameraMatrix = parseLine(reader.readLine(), 9, file);
+            double[] distCoeffs = parseLine(reader.readLine(), 5, file);
+            return new double[][]{cameraMatrix, distCoeffs};
+        } finally {
+            reader.close();
+        }
+    }
+
+    private static double[] parseLine(String line, int count, File file) throws IOException {
+        if (line == null) {
+            throw new IOException("Missing line in " + file);
+        }
+        String[] parts = line.trim().split("[\\s,]+");
+        if (parts.length != count) {
+            throw new IOException("Expected " + count + " values in " + file + ", got " + parts.length);
+        }
+        double[] values = new double[count];
+        for (int i = 0; i < count; i++) {
+            values[i] = Double.parseDouble(parts[i]);
+        }
+        return values;
+    }
+}
@@ -0,0 +1,396 @@
+package jp.jaxa.iss.kibo.rpc.sampleapk;
+
+import org.opencv.aruco.Aruco;
+import org.opencv.aruco.Dictionary;
+import org.opencv.calib3d.Calib3d;
+import org.opencv.core.Core;
+import org.opencv.core.CvType;
+import org.opencv.core.Mat;
+import org.opencv.core.Rect;
+import org.opencv.core.Scalar;
+import org.opencv.core.Size;
+import org.opencv.imgcodecs.Imgcodecs;
+import org.opencv.imgproc.Imgproc;
+
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Random;
+
+/**
+ * Generates synthetic mission scenes for load and scaling tests of the replay and benchmark
+ * harnesses.
+ *
+ * Each scene is a directory in the layout {@link VisionReplayHarness} reads:
+ * physical_point_0..2_undistorted.png (areas 1, 2 + 3, 4 as in runPlan1) and
+ * target_astronaut_raw.png. A frame shows one or two area boards, each with its
+ * DICT_5X5_250 marker (101..104, 100 for the astronaut) and item crops from
+ * YOLO/runs/detect/predict pasted inside the crop rectangle VisionPipeline.processCropRegion
+ * projects (x -0.2385..-0.0265 m, y -0.117..0.042 m from the marker centre). Boards are
+ * rendered through the simulator NavCam intrinsics at a random pose, then blurred, lit
+ * unevenly and given sensor noise.
+ *
+ * ground_truth.csv lists every board: scene, frame, area, marker, treasure, landmark, landmark
+ * count and the marker pose (rvec, tvec) in the camera frame.
+ *
+ * Usage: SceneGenerator &lt;output dir&gt; [scenes, 100] [seed, 1] [items dir, YOLO/runs/detect/predict]
+ */
+public class SceneGenerator {
+    private static final String DEFAULT_ITEMS = "YOLO/runs/detect/predict";
+    private static final int FRAME_WIDTH = 1280;
+    private static final int FRAME_HEIGHT = 960;
+
+    // Board geometry in the marker frame (m): x right, y up, marker centre at the origin
+    private static final double MARKER_LENGTH = 0.05;
+    private static final double CROP_LEFT = -0.2385;
+    private static final double CROP_RIGHT = -0.0265;
+    private static final double CROP_TOP = 0.042;
+    private static final double CROP_BOTTOM = -0.117;
+    private static final double BOARD_LEFT = -0.27;
+    private static final double BOARD_RIGHT = 0.05;
+    private static final double BOARD_TOP = 0.07;
+    private static final double BOARD_BOTTOM = -0.15;
+    // Spacing of the two boards seen from move point 1
+    private static final double PAIR_SPACING = 0.38;
+    private static final double PIXELS_PER_METER = 2000;
+
+    // Items are placed in a 4 x 3 grid inside the crop rectangle
+    private static final int GRID_COLUMNS = 4;
+    private static final int GRID_ROWS = 3;
+    private static final double ITEM_SIZE = 0.044;
+
+    private static final String[] TREASURES = {"crystal", "diamond", "emerald"};
+    private static final String[] LANDMARKS = {
+            "coin", "compass", "coral", "fossil", "key", "letter", "shell", "treasure_box"
+    };
+    private static final int ASTRONAUT_MARKER = 100;
+    // Same move point -> area layout as YourService.runPlan1; area N has marker 100 + N
+    private static final int[][] AREAS_BY_MOVE_POINT = {{1}, {2, 3}, {4}};
+
+    private final Random random;
+    private final Dictionary dictionary = Aruco.getPredefinedDictionary(Aruco.DICT_5X5_250);
+    private final Mat cameraMatrix = new Mat(3, 3, CvType.CV_64F);
+    private final File itemsDir;
+    private final Map<String, Mat> items = new HashMap<String, Mat>();
+
+    private static class Board {
+        final int areaId;
+        final int markerId;
+        final String treasure;
+        final String landmark;
+        final int landmarkCount;
+        final double offsetX;
+
+        Board(int areaId, int markerId, String treasure, String landmark, int landmarkCount, double offsetX) {
+            this.areaId = areaId;
+            this.markerId = markerId;
+            this.treasure = treasure;
+            this.landmark = landmark;
+            this.landmarkCount = landmarkCount;
+            this.offsetX = offsetX;
+        }
+    }
+
+    SceneGenerator(long seed, File itemsDir) throws IOException {
+        this.random = new Random(seed);
+        this.itemsDir = itemsDir;
+        // Frames count as undistorted, so only the simulator camera matrix is used
+        double[][] intrinsics = new ReplayNavCamSource(null, null).getNavCamIntrinsics();
+        cameraMatrix.put(0, 0, intrinsics[0]);
+    }
+
+    public static void main(String[] args) throws IOException {
+        if (args.length < 1) {
+            System.err.println("Usage: SceneGenerator <output dir> [scenes] [seed] [items dir]");
+            System.exit(2);
+        }
+        DesktopOpenCv.load();
+
+        File outputDir = new File(args[0]);
+        int scenes = args.length > 1 ? Integer.parseInt(args[1]) : 100;
+        long seed = args.length > 2 ? Long.parseLong(args[2]) : 1;
+        File itemsDir = new File(args.length > 3 ? args[3] : DEFAULT_ITEMS);
+        if (!outputDir.isDirectory() && !outputDir.mkdirs()) {
+            throw new IOException("Cannot create " + outputDir);
+        }
+
+        SceneGenerator generator = new SceneGenerator(seed, itemsDir);
+        PrintWriter groundTruth = new PrintWriter(new FileWriter(new File(outputDir, "ground_truth.csv")));
+        try {
+            groundTruth.println("scene,frame,area,marker,treasure,landmark,landmark_count,rx,ry,rz,tx,ty,tz");
+            for (int s = 0; s < scenes; s++) {
+                String sceneName = String.format(Locale.ROOT, "scene_%05d", s);
+                File sceneDir = new File(outputDir, sceneName);
+                if (!sceneDir.isDirectory() && !sceneDir.mkdirs()) {
+                    throw new IOException("Cannot create " + sceneDir);
+                }
+                generator.generateScene(sceneName, sceneDir, groundTruth);
+            }
+        } finally {
+            groundTruth.close();
+        }
+        if (groundTruth.checkError()) {
+            throw new IOException("Failed to write ground truth");
+        }
+        System.out.println("Generated " + scenes + " scenes (" + scenes * (AREAS_BY_MOVE_POINT.length + 1)
+                + " frames) in " + outputDir);
+    }
+
+    void generateScene(String sceneName, File sceneDir, PrintWriter groundTruth) throws IOException {
+        for (int point = 0; point < AREAS_BY_MOVE_POINT.length; point++) {
+            int[] areaIds = AREAS_BY_MOVE_POINT[point];
+            List<Board> boards = new ArrayList<Board>();
+            for (int i = 0; i < areaIds.length; i++) {
+                double offsetX = (i - (areaIds.length - 1) / 2.0) * PAIR_SPACING;
+                boards.add(randomBoard(areaIds[i], 100 + areaIds[i], 1 + random.nextInt(3), offsetX));
+            }
+            String frameName = "physical_point_" + point + "_undistorted.png";
+            renderFrame(boards, new File(sceneDir, frameName), sceneName, groundTruth);
+        }
+        // The astronaut shows one treasure and one landmark
+        List<Board> target = Collections.singletonList(randomBoard(0, ASTRONAUT_MARKER, 1, 0));
+        renderFrame(target, new File(sceneDir, "target_astronaut_raw.png"), sceneName, groundTruth);
+    }
+
+    private Board randomBoard(int areaId, int markerId, int landmarkCount, double offsetX) {
+        return new Board(areaId, markerId, TREASURES[random.nextInt(TREASURES.length)],
+                LANDMARKS[random.nextInt(LANDMARKS.length)], landmarkCount, offsetX);
+    }
+
+    private void renderFrame(List<Board> boards, File file, String sceneName, PrintWriter groundTruth)
+            throws IOException {
+        Mat frame = new Mat(FRAME_HEIGHT, FRAME_WIDTH, CvType.CV_8UC1);
+        Mat rvec = new Mat();
+        Mat tvec = new Mat(3, 1, CvType.CV_64F);
+        try {
+            fillBackground(frame);
+            randomPose(boards.size() > 1, rvec, tvec);
+            for (Board board : boards) {
+                Mat texture = renderBoard(board);
+                Mat homography = boardHomography(rvec, tvec, board.offsetX);
+                Imgproc.warpPerspective(texture, frame, homography, frame.size(),
+                        Imgproc.INTER_LINEAR, Core.BORDER_TRANSPARENT, new Scalar(0));
+                texture.release();
+                homography.release();
+
+                double[] r = {rvec.get(0, 0)[0], rvec.get(1, 0)[0], rvec.get(2, 0)[0]};
+                // Pose of this board's marker: the shared board plane shifted along its x axis
+                double[] t = markerTranslation(rvec, tvec, board.offsetX);
+                groundTruth.println(String.format(Locale.ROOT, "%s,%s,%d,%d,%s,%s,%d,%.5f,%.5f,%.5f,%.5f,%.5f,%.5f",
+                        sceneName, file.getName(), board.areaId, board.markerId, board.treasure,
+                        board.landmark, board.landmarkCount, r[0], r[1], r[2], t[0], t[1], t[2]));
+            }
+            degrade(frame);
+            if (!Imgcodecs.imwrite(file.getAbsolutePath(), frame)) {
+                throw new IOException("Cannot write " + file);
+            }
+        } finally {
+            frame.release();
+            rvec.release();
+            tvec.release();
+        }
+    }
+
+    /**
+     * Board texture: paper with the marker (plus quiet zone) and the items in the crop rectangle.
+     * Texture pixel (u, v) is board point (BOARD_LEFT + u / ppm, BOARD_TOP - v / ppm).
+     */
+    private Mat renderBoard(Board board) throws IOException {
+        int width = toPixels(BOARD_RIGHT - BOARD_LEFT);
+        int height = toPixels(BOARD_TOP - BOARD_BOTTOM);
+        Mat texture = new Mat(height, width, CvType.CV_8UC1, new Scalar(200 + random.nextInt(40)));
+
+        int markerPixels = toPixels(MARKER_LENGTH);
+        int quietZone = markerPixels / 5;
+        Mat marker = new Mat();
+        Aruco.drawMarker(dictionary, board.markerId, markerPixels, marker, 1);
+        Rect quietRect = new Rect(toU(-MARKER_LENGTH / 2) - quietZone, toV(MARKER_LENGTH / 2) - quietZone,
+                markerPixels + 2 * quietZone, markerPixels + 2 * quietZone);
+        texture.submat(quietRect).setTo(new Scalar(255));
+        marker.copyTo(texture.submat(new Rect(toU(-MARKER_LENGTH / 2), toV(MARKER_LENGTH / 2),
+                markerPixels, markerPixels)));
+        marker.release();
+
+        List<Integer> cells = new ArrayList<Integer>();
+        for (int c = 0; c < GRID_COLUMNS * GRID_ROWS; c++) {
+            cells.add(c);
+        }
+        Collections.shuffle(cells, random);
+        pasteItem(texture, board.treasure, cells.get(0));
+        for (int i = 0; i < board.landmarkCount; i++) {
+            pasteItem(texture, board.landmark, cells.get(1 + i));
+        }
+        return texture;
+    }
+
+    private void pasteItem(Mat texture, String itemName, int cell) throws IOException {
+        Mat item = items.get(itemName);
+        if (item == null) {
+            File file = new File(itemsDir, itemName + ".jpg");
+            item = DesktopOpenCv.readGray(file);
+            if (item == null) {
+                throw new IOException("Cannot read item image " + file);
+            }
+            items.put(itemName, item);
+        }
+        double cellWidth = (CROP_RIGHT - CROP_LEFT) / GRID_COLUMNS;
+        double cellHeight = (CROP_TOP - CROP_BOTTOM) / GRID_ROWS;
+        double size = ITEM_SIZE * (0.85 + 0.15 * random.nextDouble());
+        double slackX = Math.max(0, cellWidth - size);
+        double slackY = Math.max(0, cellHeight - size);
+        double left = CROP_LEFT + (cell % GRID_COLUMNS) * cellWidth + slackX * random.nextDouble();
+        double top = CROP_TOP - (cell / GRID_COLUMNS) * cellHeight - slackY * random.nextDouble();
+
+        int pixels = toPixels(size);
+        Mat resized = new Mat();
+        Imgproc.resize(item, resized, new Size(pixels, pixels), 0, 0, Imgproc.INTER_AREA);
+        resized.copyTo(texture.submat(new Rect(toU(left), toV(top), pixels, pixels)));
+        resized.release();
+    }
+
+    /**
+     * Marker pose in the camera frame: facing the camera from 0.45..0.75 m (0.8..1.0 m for two
+     * boards), tilted up to 20 degrees and rolled up to 10 degrees, with the crop centre near
+     * the image centre.
+     */
+    private void randomPose(boolean pair, Mat rvec, Mat tvec) {
+        // Frontal: marker x = camera x, marker y = -camera y, marker z = -camera z
+        Mat frontal = new Mat(3, 3, CvType.CV_64F);
+        frontal.put(0, 0, 1, 0, 0, 0, -1, 0, 0, 0, -1);
+        Mat perturbation = new Mat(3, 1, CvType.CV_64F);
+        perturbation.put(0, 0, Math.toRadians(uniform(-20, 20)), Math.toRadians(uniform(-20, 20)),
+                Math.toRadians(uniform(-10, 10)));
+        Mat perturbationMatrix = new Mat();
+        Calib3d.Rodrigues(perturbation, perturbationMatrix);
+        Mat rotation = new Mat();
+        Core.gemm(perturbationMatrix, frontal, 1, new Mat(), 0, rotation);
+        Calib3d.Rodrigues(rotation, rvec);
+
+        // Camera-frame position of the crop centre, then t = p - R * point
+        double distance = pair ? uniform(0.8, 1.0) : uniform(0.45, 0.75);
+        double[] aim = {uniform(-0.03, 0.03), uniform(-0.03, 0.03), distance};
+        double[] point = {(CROP_LEFT + CROP_RIGHT) / 2, (CROP_TOP + CROP_BOTTOM) / 2, 0};
+        for (int row = 0; row < 3; row++) {
+            double rotated = 0;
+            for (int col = 0; col < 3; col++) {
+                rotated += rotation.get(row, col)[0] * point[col];
+            }
+            tvec.put(row, 0, aim[row] - rotated);
+        }
+        frontal.release();
+        perturbation.release();
+        perturbationMatrix.release();
+        rotation.release();
+    }
+
+    /**
+     * Texture pixels to image pixels: K * [r1 r2 t'] * A, where A maps texture pixels to board
+     * plane metres and t' is the marker translation of a board shifted by offsetX.
+     */
+    private Mat boardHomography(Mat rvec, Mat tvec, double offsetX) {
+        Mat rotation = new Mat();
+        Calib3d.Rodrigues(rvec, rotation);
+        double[] t = markerTranslation(rvec, tvec, offsetX);
+        Mat extrinsic = new Mat(3, 3, CvType.CV_64F);
+        for (int row = 0; row < 3; row++) {
+            extrinsic.put(row, 0, rotation.get(row, 0)[0], rotation.get(row, 1)[0], t[row]);
+        }
+        Mat textureToBoard = new Mat(3, 3, CvType.CV_64F);
+        textureToBoard.put(0, 0,
+                1 / PIXELS_PER_METER, 0, BOARD_LEFT,
+                0, -1 / PIXELS_PER_METER, BOARD_TOP,
+                0, 0, 1);
+        Mat projection = new Mat();
+        Core.gemm(cameraMatrix, extrinsic, 1, new Mat(), 0, projection);
+        Mat homography = new Mat();
+        Core.gemm(projection, textureToBoard, 1, new Mat(), 0, homography);
+        rotation.release();
+        extrinsic.release();
+        textureToBoard.release();
+        projection.release();
+        return homography;
+    }
+
+    private static double[] markerTranslation(Mat rvec, Mat tvec, double offsetX) {
+        Mat rotation = new Mat();
+        Calib3d.Rodrigues(rvec, rotation);
+        double[] t = new double[3];
+        for (int row = 0; row < 3; row++) {
+            t[row] = tvec.get(row, 0)[0] + rotation.get(row, 0)[0] * offsetX;
+        }
+        rotation.release();
+        return t;
+    }
+
+    private void fillBackground(Mat frame) {
+        // Module wall: vertical brightness gradient
+        double top = uniform(60, 160);
+        double bottom = uniform(60, 160);
+        for (int y = 0; y < frame.rows(); y++) {
+            frame.row(y).setTo(new Scalar(top + (bottom - top) * y / frame.rows()));
+        }
+    }
+
+    /**
+     * Uneven lighting (a linear gain ramp in a random direction), defocus blur and sensor noise.
+     */
+    private void degrade(Mat frame) {
+        Mat gain = new Mat(frame.size(), CvType.CV_32F);
+        double angle = uniform(0, 2 * Math.PI);
+        double dx = Math.cos(angle) / frame.cols();
+        double dy = Math.sin(angle) / frame.rows();
+        double low = uniform(0.5, 0.9);
+        double high = uniform(1.0, 1.3);
+        float[] row = new float[frame.cols()];
+        for (int y = 0; y < frame.rows(); y++) {
+            for (int x = 0; x < frame.cols(); x++) {
+                double ramp = 0.5 + (x - frame.cols() / 2.0) * dx + (y - frame.rows() / 2.0) * dy;
+                row[x] = (float) (low + (high - low) * Math.max(0, Math.min(1, ramp)));
+            }
+            gain.put(y, 0, row);
+        }
+        Mat lit = new Mat();
+        frame.convertTo(lit, CvType.CV_32F);
+        Core.multiply(lit, gain, lit);
+        lit.convertTo(frame, CvType.CV_8UC1);
+
+        double sigma = uniform(0, 1.6);
+        if (sigma > 0.3) {
+            Imgproc.GaussianBlur(frame, frame, new Size(0, 0), sigma);
+        }
+        Mat noise = new Mat(frame.size(), CvType.CV_16S);
+        Core.randn(noise, 0, uniform(1, 5));
+        Mat noisy = new Mat();
+        frame.convertTo(noisy, CvType.CV_16S);
+        Core.add(noisy, noise, noisy);
+        noisy.convertTo(frame, CvType.CV_8UC1);
+
+        gain.release();
+        lit.release();
+        noise.release();
+        noisy.release();
+    }
+
+    private double uniform(double min, double max) {
+        return min + (max - min) * random.nextDouble();
+    }
+
+    private static int toPixels(double meters) {
+        return (int) Math.round(meters * PIXELS_PER_METER);
+    }
+
+    private static int toU(double x) {
+        return toPixels(x - BOARD_LEFT);
+    }
+
+    private static int toV(double y) {
+        return toPixels(BOARD_TOP - y);
+    }
+}
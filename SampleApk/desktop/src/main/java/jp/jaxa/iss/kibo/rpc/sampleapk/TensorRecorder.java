@@ -0,0 +1,108 @@
+package jp.jaxa.iss.kibo.rpc.sampleapk;
+
+import android.util.Log;
+
+import org.opencv.core.Mat;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
+/**
+ * Records raw YOLO output tensors for the post-processing benchmarks.
+ *
+ * Every image of a directory (e.g. area_N_final.png from a run) goes through
+ * preprocessing and the model; the [1, C, N] output is written to the output directory
+ * as &lt;image&gt;.f32: an int header (C, N) followed by C*N little-endian floats.
+ *
+ * Usage: TensorRecorder &lt;images dir&gt; &lt;output dir&gt; [model, YOLO/best.onnx]
+ */
+public class TensorRecorder {
+    public static final String EXTENSION = ".f32";
+
+    public static void main(String[] args) throws Exception {
+        if (args.length < 2) {
+            System.err.println("Usage: TensorRecorder <images dir> <output dir> [model]");
+            System.exit(2);
+        }
+        DesktopOpenCv.load();
+        Log.setMinLevel(Log.WARN);
+
+        File outputDir = new File(args[1]);
+        if (!outputDir.isDirectory() && !outputDir.mkdirs()) {
+            throw new IOException("Cannot create " + outputDir);
+        }
+        YOLODetectionService detector = new YOLODetectionService(new File(args.length > 2 ? args[2] : "YOLO/best.onnx"));
+        if (!detector.isInitialized()) {
+            System.err.println("Cannot load model");
+            System.exit(1);
+        }
+        try {
+            int written = 0;
+            for (File file : DesktopOpenCv.listImages(new File(args[0]))) {
+                Mat image = DesktopOpenCv.readGray(file);
+                if (image == null) {
+                    continue;
+                }
+                try {
+                    write(detector.runInference(image), new File(outputDir, file.getName() + EXTENSION));
+                    written++;
+                } finally {
+                    image.release();
+                }
+            }
+            System.out.println("Recorded " + written + " tensors to " + outputDir);
+        } finally {
+            detector.close();
+        }
+    }
+
+    public static void write(float[][][] tensor, File file) throws IOException {
+        int channels = tensor[0].length;
+        int anchors = tensor[0][0].length;
+        ByteBuffer buffer = ByteBuffer.allocate(8 + 4 * channels * anchors).order(ByteOrder.LITTLE_ENDIAN);
+        buffer.putInt(channels).putInt(anchors);
+        for (int c = 0; c < channels; c++) {
+            for (int a = 0; a < anchors; a++) {
+                buffer.putFloat(tensor[0][c][a]);
+            }
+        }
+        DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file)));
+        try {
+            out.write(buffer.array());
+        } finally {
+            out.close();
+        }
+    }
+
+    public static float[][][] read(File file) throws IOException {
+        byte[] bytes = new byte[(int) file.length()];
+        DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+        try {
+            in.readFully(bytes);
+        } finally {
+            in.close();
+        }
+        ByteBuffer buffer = ByteBuffer.wrap(bytes).order(ByteOrder.LITTLE_ENDIAN);
+        int channels = buffer.getInt();
+        int anchors = buffer.getInt();
+        if (buffer.remaining() != 4 * channels * anchors) {
+            throw new EOFException("Truncated tensor file " + file);
+        }
+        float[][][] tensor = new float[1][channels][anchors];
+        for (int c = 0; c < channels; c++) {
+            for (int a = 0; a < anchors; a++) {
+                tensor[0][c][a] = buffer.getFloat();
+            }
+        }
+        return tensor;
+    }
+}
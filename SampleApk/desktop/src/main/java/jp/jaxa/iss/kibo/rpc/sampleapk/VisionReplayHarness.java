@@ -0,0 +1,345 @@
+package jp.jaxa.iss.kibo.rpc.sampleapk;
+
+import android.util.Log;
+
+import org.opencv.core.Mat;
+import org.opencv.core.Size;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Runs the mission's vision path ({@link VisionPipeline}) on frames saved by a previous run,
+ * without the Kibo simulator.
+ *
+ * Expects physical_point_N_undistorted.png (one per move point) and target_astronaut_raw.png,
+ * as written by the debug image writer, in the frames directory or in each of its
+ * subdirectories (one scene each, as generated by {@link SceneGenerator}). Both are saved
+ * after undistortion, so undistort is only timed, its output is not used. Reports per-stage
+ * timings and what each area and the target were recognised as.
+ *
+ * Usage: VisionReplayHarness &lt;frames dir&gt; [model, YOLO/best.onnx] [debug image output dir] [passes, 1]
+ *
+ * An intrinsics.txt in the frames directory overrides the simulator NavCam intrinsics, see
+ * {@link ReplayNavCamSource}. Set -Dkibo.log=INFO to see the pipeline logs. With an output
+ * directory the {@link StageTracer} dump (same format as on the robot) is written there too.
+ * Every frame is scored by the mission's {@link FrameQualityGate}; a replay has nothing to
+ * re-capture, so rejected frames are only counted.
+ *
+ * -Dtile.size=N turns on the detector's tiled inference ({@link TileLayout}) with
+ * -Dtile.overlap=N pixels of overlap (default 64); area and target crops are then warped at
+ * -Dtile.crop=WxH (default 640x480) instead of the model input size. Replaying the same
+ * frames with and without it compares the YOLO timings and what each area was recognised as.
+ */
+public class VisionReplayHarness {
+    private static final Size MODEL_SIZE = new Size(320, 320);
+    private static final int DEFAULT_TILE_OVERLAP = 64;
+    private static final String DEFAULT_TILE_CROP = "640x480";
+    private static final String DEFAULT_MODEL = "YOLO/best.onnx";
+    private static final Pattern POINT_FRAME = Pattern.compile("physical_point_(\\d+)_undistorted\\.png");
+    private static final String TARGET_FRAME = "target_astronaut_raw.png";
+
+    // Same move point -> conceptual area layout as YourService.runPlan1
+    private static final int[][] AREAS_BY_MOVE_POINT = {{1}, {2, 3}, {4}};
+
+    private static class Scene {
+        final Map<Integer, File> pointFrames = new TreeMap<Integer, File>();
+        File targetFrame;
+
+        static Scene read(File dir) {
+            Scene scene = new Scene();
+            for (File file : DesktopOpenCv.listImages(dir)) {
+                Matcher matcher = POINT_FRAME.matcher(file.getName());
+                if (matcher.matches()) {
+                    scene.pointFrames.put(Integer.parseInt(matcher.group(1)), file);
+                } else if (TARGET_FRAME.equals(file.getName())) {
+                    scene.targetFrame = file;
+                }
+            }
+            return scene;
+        }
+
+        boolean isEmpty() {
+            return pointFrames.isEmpty() && targetFrame == null;
+        }
+    }
+
+    private final VisionPipeline vision;
+    private final ReplayNavCamSource navCam;
+    private final Map<String, LatencyStats> stages = new LinkedHashMap<String, LatencyStats>();
+    // Area and target crops are warped to this size
+    private final Size cropSize;
+
+    VisionReplayHarness(VisionPipeline vision, ReplayNavCamSource navCam, Size cropSize) {
+        this.vision = vision;
+        this.navCam = navCam;
+        this.cropSize = cropSize;
+        for (String stage : new String[]{"quality gate", "undistort", "aruco", "crop+enhance", "yolo", "frame total"}) {
+            stages.put(stage, new LatencyStats(stage));
+        }
+    }
+
+    public static void main(String[] args) throws IOException {
+        if (args.length < 1) {
+            System.err.println("Usage: VisionReplayHarness <frames dir> [model] [debug output dir] [passes]");
+            System.exit(2);
+        }
+        DesktopOpenCv.load();
+        Log.setMinLevel(logLevel(System.getProperty("kibo.log", "WARN")));
+
+        File framesDir = new File(args[0]);
+        final File modelFile = new File(args.length > 1 ? args[1] : DEFAULT_MODEL);
+        File outputDir = args.length > 2 && !args[2].isEmpty() ? new File(args[2]) : null;
+        int passes = args.length > 3 ? Integer.parseInt(args[3]) : 1;
+
+        YOLODetectionService probe = new YOLODetectionService(modelFile);
+        boolean modelOk = probe.isInitialized();
+        probe.close();
+        if (!modelOk) {
+            System.err.println("Cannot load model " + modelFile);
+            System.exit(1);
+        }
+
+        List<Scene> scenes = findScenes(framesDir);
+        if (scenes.isEmpty()) {
+            System.err.println("No " + POINT_FRAME.pattern() + " or " + TARGET_FRAME + " in " + framesDir
+                    + " or its subdirectories");
+            System.exit(1);
+        }
+
+        int tileSize = Integer.getInteger("tile.size", 0);
+        final TileLayout tileLayout = tileSize > 0
+                ? new TileLayout(tileSize, Integer.getInteger("tile.overlap", DEFAULT_TILE_OVERLAP)) : null;
+        Size cropSize = tileLayout != null ? parseSize(System.getProperty("tile.crop", DEFAULT_TILE_CROP)) : MODEL_SIZE;
+        if (tileLayout != null) {
+            System.out.println("Tiled inference: " + tileLayout + ", " + tileLayout.tiles((int) cropSize.width,
+                    (int) cropSize.height).size() + " tiles per " + (int) cropSize.width + "x"
+                    + (int) cropSize.height + " crop");
+        }
+
+        ReplayNavCamSource navCam = new ReplayNavCamSource(new File(framesDir, "intrinsics.txt"), outputDir);
+        VisionPipeline.DetectorFactory detectors = new VisionPipeline.DetectorFactory() {
+            @Override
+            public YOLODetectionService create() {
+                YOLODetectionService detector = new YOLODetectionService(modelFile);
+                detector.setTileLayout(tileLayout);
+                return detector;
+            }
+        };
+        VisionPipeline vision = new VisionPipeline(navCam, detectors,
+                outputDir != null ? DebugImageWriter.Level.ALL : DebugImageWriter.Level.NONE,
+                EnhancementStage.Mode.ADAPTIVE, PreprocessProfiles.BINARIZED, PreprocessProfiles.CLAHE);
+
+        StageTracer tracer = new StageTracer(4096);
+        vision.setTracer(tracer);
+        vision.setQualityGate(new FrameQualityGate(), 0);
+
+        VisionReplayHarness harness = new VisionReplayHarness(vision, navCam, cropSize);
+        try {
+            for (int pass = 0; pass < passes; pass++) {
+                // Per-frame results only make sense to read for a single scene
+                boolean print = pass == passes - 1 && scenes.size() == 1;
+                for (Scene scene : scenes) {
+                    for (Map.Entry<Integer, File> entry : scene.pointFrames.entrySet()) {
+                        harness.replayMovePoint(entry.getKey(), entry.getValue(), print);
+                    }
+                    if (scene.targetFrame != null) {
+                        harness.replayTarget(scene.targetFrame, print);
+                    }
+                }
+            }
+            if (scenes.size() > 1) {
+                System.out.println("Replayed " + scenes.size() + " scenes from " + framesDir);
+            }
+            harness.printStages(passes);
+            if (outputDir != null) {
+                File traceFile = new File(outputDir, "stage_trace.txt");
+                tracer.dump(traceFile);
+                System.out.println("Detailed stage trace: " + traceFile);
+            }
+        } finally {
+            vision.release(10000);
+        }
+    }
+
+    /**
+     * The frames directory itself if it holds frames, else each subdirectory that does
+     * (e.g. the scene_NNNNN directories written by {@link SceneGenerator}).
+     */
+    private static List<Scene> findScenes(File framesDir) {
+        List<Scene> scenes = new ArrayList<Scene>();
+        Scene single = Scene.read(framesDir);
+        if (!single.isEmpty()) {
+            scenes.add(single);
+            return scenes;
+        }
+        File[] children = framesDir.listFiles();
+        if (children == null) {
+            return scenes;
+        }
+        Arrays.sort(children);
+        for (File child : children) {
+            if (child.isDirectory()) {
+                Scene scene = Scene.read(child);
+                if (!scene.isEmpty()) {
+                    scenes.add(scene);
+                }
+            }
+        }
+        return scenes;
+    }
+
+    void replayMovePoint(int movePointIndex, File file, boolean print) {
+        if (movePointIndex < 0 || movePointIndex >= AREAS_BY_MOVE_POINT.length) {
+            System.err.println("No areas known for move point " + movePointIndex + ", skipped " + file.getName());
+            return;
+        }
+        int[] areaIds = AREAS_BY_MOVE_POINT[movePointIndex];
+
+        MatPool.Scope scope = vision.getMatPool().openScope();
+        try {
+            Mat frame = readFrame(file, scope);
+            if (frame == null) {
+                return;
+            }
+            long frameStart = System.nanoTime();
+            timeUndistort(scope);
+
+            long start = System.nanoTime();
+            VisionPipeline.MarkerSet markers = vision.detectMarkers(frame, scope);
+            stages.get("aruco").add(System.nanoTime() - start);
+
+            start = System.nanoTime();
+            List<VisionPipeline.AreaCrop> crops = vision.cropAreas(frame, markers, areaIds, cropSize);
+            stages.get("crop+enhance").add(System.nanoTime() - start);
+
+            List<String> lines = new ArrayList<String>();
+            for (VisionPipeline.AreaCrop crop : crops) {
+                if (crop.image == null) {
+                    lines.add(String.format("  area %d: no crop (%d markers in frame)", crop.areaId, markers.size()));
+                    continue;
+                }
+                scope.track(crop.image);
+                start = System.nanoTime();
+                VisionPipeline.ItemDetection detection = vision.detect(crop.image, "lost", 0.5f);
+                stages.get("yolo").add(System.nanoTime() - start);
+                lines.add(String.format("  area %d (marker %d): treasures %s, top landmark %s, landmarks %s",
+                        crop.areaId, crop.markerId, detection.treasureTypes,
+                        detection.highestConfidenceLandmark, detection.landmarkQuantities));
+            }
+            stages.get("frame total").add(System.nanoTime() - frameStart);
+
+            if (print) {
+                System.out.println(file.getName() + ":");
+                for (String line : lines) {
+                    System.out.println(line);
+                }
+            }
+        } finally {
+            scope.close();
+        }
+    }
+
+    void replayTarget(File file, boolean print) {
+        MatPool.Scope scope = vision.getMatPool().openScope();
+        try {
+            Mat frame = readFrame(file, scope);
+            if (frame == null) {
+                return;
+            }
+            long frameStart = System.nanoTime();
+            timeUndistort(scope);
+
+            long start = System.nanoTime();
+            VisionPipeline.MarkerSet markers = vision.detectMarkers(frame, scope);
+            stages.get("aruco").add(System.nanoTime() - start);
+
+            start = System.nanoTime();
+            Mat processed = scope.track(vision.cropTarget(frame, markers, cropSize));
+            stages.get("crop+enhance").add(System.nanoTime() - start);
+
+            String line;
+            if (processed == null) {
+                line = "  target: no model input";
+            } else {
+                start = System.nanoTime();
+                VisionPipeline.ItemDetection detection = vision.detect(processed, "target", 0.3f);
+                stages.get("yolo").add(System.nanoTime() - start);
+                line = String.format("  target (%d markers): treasures %s, landmarks %s",
+                        markers.size(), detection.treasureTypes, detection.landmarkQuantities);
+            }
+            stages.get("frame total").add(System.nanoTime() - frameStart);
+
+            if (print) {
+                System.out.println(file.getName() + ":");
+                System.out.println(line);
+            }
+        } finally {
+            scope.close();
+        }
+    }
+
+    private Mat readFrame(File file, MatPool.Scope scope) {
+        Mat frame = DesktopOpenCv.readGray(file);
+        if (frame == null) {
+            System.err.println("Cannot decode " + file.getName() + ", skipped");
+            return null;
+        }
+        navCam.setFrame(scope.track(frame));
+        return frame;
+    }
+
+    // Saved frames are already undistorted, only the cost of the stages is of interest
+    private void timeUndistort(MatPool.Scope scope) {
+        long start = System.nanoTime();
+        Mat raw = vision.capture(scope);
+        stages.get("quality gate").add(System.nanoTime() - start);
+        start = System.nanoTime();
+        vision.undistort(raw, scope);
+        stages.get("undistort").add(System.nanoTime() - start);
+    }
+
+    private void printStages(int passes) {
+        System.out.println();
+        System.out.println("Stage timings over " + passes + " pass(es), one detector per pipeline as on the robot:");
+        System.out.println(LatencyStats.header());
+        for (LatencyStats stats : stages.values()) {
+            System.out.println(stats.row());
+        }
+
+        StageTracer tracer = vision.getTracer();
+        System.out.println(String.format("Quality gate rejected %d of %d frames (mean sharpness %.1f, brightness %.1f, spread %.0f)",
+                tracer.getCount(StageTracer.Metric.FRAME_REJECTED), tracer.getCount(StageTracer.Metric.FRAME_SHARPNESS),
+                tracer.getMean(StageTracer.Metric.FRAME_SHARPNESS), tracer.getMean(StageTracer.Metric.FRAME_BRIGHTNESS),
+                tracer.getMean(StageTracer.Metric.FRAME_SPREAD)));
+    }
+
+    private static Size parseSize(String size) {
+        String[] parts = size.split("x");
+        if (parts.length != 2) {
+            throw new IllegalArgumentException("Size " + size + ", expected WxH");
+        }
+        return new Size(Integer.parseInt(parts[0]), Integer.parseInt(parts[1]));
+    }
+
+    private static int logLevel(String name) {
+        if ("VERBOSE".equals(name)) {
+            return Log.VERBOSE;
+        } else if ("DEBUG".equals(name)) {
+            return Log.DEBUG;
+        } else if ("INFO".equals(name)) {
+            return Log.INFO;
+        } else if ("ERROR".equals(name)) {
+            return Log.ERROR;
+        }
+        return Log.WARN;
+    }
+}
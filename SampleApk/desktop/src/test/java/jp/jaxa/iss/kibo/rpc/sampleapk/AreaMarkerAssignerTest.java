@@ -0,0 +1,103 @@
+package jp.jaxa.iss.kibo.rpc.sampleapk;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+public class AreaMarkerAssignerTest {
+    private static final int NONE = AreaMarkerAssigner.NO_MARKER;
+
+    private final AreaMarkerAssigner assigner = new AreaMarkerAssigner();
+
+    /**
+     * Camera-frame translation of a marker: x to the right, z the distance.
+     */
+    private static double[] at(double x, double z) {
+        return new double[]{x, 0, z};
+    }
+
+    @Test
+    public void knownIdsGoToTheirAreasWhateverTheirPosition() {
+        // Area 3's marker left of Area 2's and closer
+        int[] ids = {103, 102};
+        double[][] positions = {at(-0.2, 0.6), at(0.2, 0.8)};
+
+        assertArrayEquals(new int[]{1, 0}, assigner.assign(ids, positions, new int[]{2, 3}));
+    }
+
+    @Test
+    public void closestOfDuplicateIdsWins() {
+        int[] ids = {102, 102, 102};
+        double[][] positions = {at(0, 0.9), at(0.1, 0.5), at(-0.1, 0.7)};
+
+        assertArrayEquals(new int[]{1}, assigner.assign(ids, positions, new int[]{2}));
+    }
+
+    @Test
+    public void markerWithoutPoseIsIgnored() {
+        int[] ids = {102, 102};
+        double[][] positions = {null, at(0, 0.9)};
+
+        assertArrayEquals(new int[]{1}, assigner.assign(ids, positions, new int[]{2}));
+    }
+
+    @Test
+    public void unknownIdsFillOpenAreasClosestFirstThenLeftToRight() {
+        // The two closest unknown markers are 1 and 2; 1 is on the right
+        int[] ids = {7, 8, 9};
+        double[][] positions = {at(0.3, 0.6), at(-0.3, 0.7), at(0, 1.5)};
+
+        assertArrayEquals(new int[]{1, 0}, assigner.assign(ids, positions, new int[]{2, 3}));
+    }
+
+    @Test
+    public void unknownIdsOnlyFillAreasWithoutTheirOwnMarker() {
+        int[] ids = {9, 103};
+        double[][] positions = {at(0.4, 0.6), at(-0.4, 0.7)};
+
+        // Area 3 keeps its own marker although it is further and on the left
+        assertArrayEquals(new int[]{0, 1}, assigner.assign(ids, positions, new int[]{2, 3}));
+    }
+
+    @Test
+    public void fewerUnknownMarkersThanOpenAreasGoToTheLeftmostAreas() {
+        int[] ids = {9};
+        double[][] positions = {at(0.4, 0.6)};
+
+        assertArrayEquals(new int[]{0, NONE}, assigner.assign(ids, positions, new int[]{2, 3}));
+    }
+
+    @Test
+    public void knownMarkerOfAnAreaNotAskedForIsNeverUsed() {
+        int[] ids = {101, 104};
+        double[][] positions = {at(-0.2, 0.6), at(0.2, 0.6)};
+
+        assertArrayEquals(new int[]{NONE, NONE}, assigner.assign(ids, positions, new int[]{2, 3}));
+        // The target (area 0) is not in the table and only takes unknown markers
+        assertArrayEquals(new int[]{NONE}, assigner.assign(ids, positions, new int[]{0}));
+    }
+
+    @Test
+    public void targetTakesTheClosestUnknownMarker() {
+        int[] ids = {100, 102, 5};
+        double[][] positions = {at(0.1, 0.9), at(0, 0.3), at(-0.1, 0.5)};
+
+        assertArrayEquals(new int[]{2}, assigner.assign(ids, positions, new int[]{0}));
+    }
+
+    @Test
+    public void customTable() {
+        AreaMarkerAssigner custom = new AreaMarkerAssigner(new int[][]{{7, 1}, {8, 2}});
+
+        assertEquals(2, custom.areaOf(8));
+        assertEquals(-1, custom.areaOf(102));
+        assertArrayEquals(new int[]{1, 0},
+                custom.assign(new int[]{8, 7}, new double[][]{at(0, 1), at(0, 1)}, new int[]{1, 2}));
+    }
+
+    @Test
+    public void noMarkers() {
+        assertArrayEquals(new int[]{NONE, NONE}, assigner.assign(new int[0], new double[0][], new int[]{2, 3}));
+    }
+}
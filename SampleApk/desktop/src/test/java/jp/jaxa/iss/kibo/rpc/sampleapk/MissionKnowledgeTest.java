@@ -0,0 +1,199 @@
+package jp.jaxa.iss.kibo.rpc.sampleapk;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class MissionKnowledgeTest {
+    private static final String[] TREASURES = {"crystal", "diamond", "emerald"};
+
+    /**
+     * @param items class name, confidence pairs; treasures go to the treasure set, other
+     *              names are landmarks counted once
+     */
+    private static VisionPipeline.ItemDetection detection(String top, Object... items) {
+        Map<String, Integer> landmarks = new HashMap<String, Integer>();
+        Set<String> treasures = new HashSet<String>();
+        float[] confidences = new float[YOLODetectionService.getClassCount()];
+        List<String> treasureNames = Arrays.asList(TREASURES);
+        for (int i = 0; i < items.length; i += 2) {
+            String name = (String) items[i];
+            if (treasureNames.contains(name)) {
+                treasures.add(name);
+            } else {
+                landmarks.put(name, 1);
+            }
+            int classId = Arrays.asList(YOLODetectionService.getClassNames()).indexOf(name);
+            if (classId >= 0) {
+                confidences[classId] = (Float) items[i + 1];
+            }
+        }
+        return new VisionPipeline.ItemDetection(landmarks, treasures, top, confidences);
+    }
+
+    @Test
+    public void treasureBelongsToTheAreaWithTheHighestConfidence() {
+        MissionKnowledge knowledge = new MissionKnowledge(4);
+        knowledge.recordArea(1, detection(null, "crystal", 0.6f));
+        knowledge.recordArea(3, detection(null, "crystal", 0.8f));
+        knowledge.recordArea(2, detection(null, "crystal", 0.7f));
+
+        assertEquals(3, knowledge.areaOfTreasure("crystal"));
+        assertEquals(MissionKnowledge.NO_AREA, knowledge.areaOfTreasure("diamond"));
+        assertEquals(MissionKnowledge.NO_AREA, knowledge.areaOfTreasure("not a class"));
+    }
+
+    @Test
+    public void equalConfidenceGoesToTheLowestArea() {
+        MissionKnowledge knowledge = new MissionKnowledge(4);
+        knowledge.recordArea(4, detection(null, "emerald", 0.5f));
+        knowledge.recordArea(2, detection(null, "emerald", 0.5f));
+        knowledge.recordArea(3, detection(null, "emerald", 0.5f));
+
+        assertEquals(2, knowledge.areaOfTreasure("emerald"));
+    }
+
+    @Test
+    public void bitmasksAndCountsPerArea() {
+        MissionKnowledge knowledge = new MissionKnowledge(4);
+        knowledge.recordArea(1, detection("coin", "crystal", 0.9f, "coin", 0.8f, "key", 0.4f));
+        knowledge.recordArea(2, detection(null, "shell", 0.7f));
+
+        assertEquals(new HashSet<String>(Arrays.asList("crystal")), knowledge.getTreasureNames(1));
+        assertTrue(knowledge.getTreasureNames(2).isEmpty());
+        Map<String, Integer> area1 = new LinkedHashMap<String, Integer>();
+        area1.put("coin", 1);
+        area1.put("key", 1);
+        assertEquals(area1, knowledge.getLandmarkQuantities(1));
+        assertEquals(0.8f, knowledge.getConfidence(1, knowledge.classId("coin")), 0f);
+
+        assertEquals(new HashSet<String>(Arrays.asList("crystal")), knowledge.getFoundTreasures());
+        // The top landmark stands for area 1, all landmarks for area 2 without one
+        assertEquals(new HashSet<String>(Arrays.asList("coin", "shell")), knowledge.getFoundLandmarks());
+    }
+
+    @Test
+    public void laterRecordOfAnAreaAddsClassesAndKeepsTheHigherConfidence() {
+        MissionKnowledge knowledge = new MissionKnowledge(4);
+        knowledge.recordArea(1, detection(null, "diamond", 0.9f, "coin", 0.5f));
+        Map<String, Integer> coins = new HashMap<String, Integer>();
+        coins.put("coin", 3);
+        knowledge.recordArea(1, new VisionPipeline.ItemDetection(coins, new HashSet<String>(Arrays.asList("crystal")),
+                null, new float[YOLODetectionService.getClassCount()]));
+
+        assertEquals(new HashSet<String>(Arrays.asList("crystal", "diamond")), knowledge.getTreasureNames(1));
+        assertEquals(Integer.valueOf(3), knowledge.getLandmarkQuantities(1).get("coin"));
+        assertEquals(0.5f, knowledge.getConfidence(1, knowledge.classId("coin")), 0f);
+        assertEquals(0.9f, knowledge.getConfidence(1, knowledge.classId("diamond")), 0f);
+    }
+
+    @Test
+    public void unknownNamesAreIgnored() {
+        MissionKnowledge knowledge = new MissionKnowledge(4);
+        knowledge.recordArea(1, detection("unicorn", "unicorn", 0.9f));
+
+        assertTrue(knowledge.getLandmarkQuantities(1).isEmpty());
+        assertTrue(knowledge.getFoundLandmarks().isEmpty());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void areaOutsideTheMissionIsRejected() {
+        new MissionKnowledge(4).recordArea(5, detection(null));
+    }
+
+    @Test
+    public void concurrentRecordsGiveTheSequentialResult() throws Exception {
+        final int areas = 32;
+        final int rounds = 200;
+        ExecutorService workers = Executors.newFixedThreadPool(8);
+        Random random = new Random(45);
+        try {
+            for (int round = 0; round < rounds; round++) {
+                final MissionKnowledge knowledge = new MissionKnowledge(areas);
+                // Few distinct confidences, so ties between areas are common
+                final float[][] confidences = new float[areas][TREASURES.length];
+                for (float[] area : confidences) {
+                    for (int t = 0; t < area.length; t++) {
+                        area[t] = random.nextInt(4) / 4f;
+                    }
+                }
+                final CountDownLatch start = new CountDownLatch(1);
+                List<Future<?>> done = new ArrayList<Future<?>>();
+                for (int a = 0; a < areas; a++) {
+                    final int areaId = a + 1;
+                    done.add(workers.submit(new Runnable() {
+                        @Override
+                        public void run() {
+                            float[] own = confidences[areaId - 1];
+                            try {
+                                start.await();
+                            } catch (InterruptedException e) {
+                                throw new IllegalStateException(e);
+                            }
+                            // Each treasure in its own record, each area recorded several times
+                            for (int t = 0; t < TREASURES.length; t++) {
+                                if (own[t] > 0) {
+                                    knowledge.recordArea(areaId, detection(null, TREASURES[t], own[t],
+                                            "coin", own[t]));
+                                }
+                            }
+                        }
+                    }));
+                }
+                start.countDown();
+                for (Future<?> future : done) {
+                    future.get(10, TimeUnit.SECONDS);
+                }
+
+                Set<String> found = new HashSet<String>();
+                for (int t = 0; t < TREASURES.length; t++) {
+                    int expectedArea = MissionKnowledge.NO_AREA;
+                    float best = 0;
+                    for (int a = 0; a < areas; a++) {
+                        float confidence = confidences[a][t];
+                        if (confidence > 0 && (expectedArea == MissionKnowledge.NO_AREA || confidence > best)) {
+                            expectedArea = a + 1;
+                            best = confidence;
+                        }
+                    }
+                    if (expectedArea != MissionKnowledge.NO_AREA) {
+                        found.add(TREASURES[t]);
+                    }
+                    assertEquals("round " + round + ", " + TREASURES[t], expectedArea,
+                            knowledge.areaOfTreasure(TREASURES[t]));
+                }
+                assertEquals(found, knowledge.getFoundTreasures());
+                for (int a = 0; a < areas; a++) {
+                    float coin = 0;
+                    Set<String> treasures = new HashSet<String>();
+                    for (int t = 0; t < TREASURES.length; t++) {
+                        if (confidences[a][t] > 0) {
+                            treasures.add(TREASURES[t]);
+                            coin = Math.max(coin, confidences[a][t]);
+                        }
+                    }
+                    assertEquals(treasures, knowledge.getTreasureNames(a + 1));
+                    assertEquals(coin, knowledge.getConfidence(a + 1, knowledge.classId("coin")), 0f);
+                }
+            }
+        } finally {
+            workers.shutdownNow();
+        }
+    }
+}
@@ -0,0 +1,174 @@
+package jp.jaxa.iss.kibo.rpc.sampleapk;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+
+public class RoutePlannerTest {
+    private static final double[] FORWARD = {0, 0, 0, 1};
+    // Half a turn about z
+    private static final double[] BACKWARD = {0, 0, 1, 0};
+    private static final double[] ORIGIN = {0, 0, 0};
+
+    // 1 m/s, 1 rad/s and 100 ms a move keep the expected numbers readable
+    private final RoutePlanner planner = new RoutePlanner(1.0, 1.0, 100);
+
+    private static RoutePlanner.Stop stop(String name, double x, double[]... attitudes) {
+        return new RoutePlanner.Stop(name, 0, new int[0], new double[]{x, 0, 0}, attitudes);
+    }
+
+    private static List<String> names(List<RoutePlanner.Waypoint> waypoints) {
+        List<String> names = new ArrayList<String>();
+        for (RoutePlanner.Waypoint waypoint : waypoints) {
+            names.add(waypoint.stop.name);
+        }
+        return names;
+    }
+
+    @Test
+    public void legIsOverheadPlusDistanceAndTurn() {
+        assertEquals(100, planner.legMillis(ORIGIN, FORWARD, ORIGIN, FORWARD));
+        assertEquals(2100, planner.legMillis(ORIGIN, FORWARD, new double[]{0, 1.2, 1.6}, FORWARD));
+        assertEquals(100 + Math.round(1000 * Math.PI), planner.legMillis(ORIGIN, FORWARD, ORIGIN, BACKWARD));
+    }
+
+    @Test
+    public void oppositeQuaternionsAreTheSameAttitude() {
+        assertEquals(0, RoutePlanner.rotationAngle(FORWARD, new double[]{0, 0, 0, -1}), 1e-9);
+        double half = Math.sqrt(0.5);
+        assertEquals(Math.PI / 2, RoutePlanner.rotationAngle(FORWARD, new double[]{0, 0, half, half}), 1e-9);
+    }
+
+    @Test
+    public void stopsOnALineAreVisitedInOrder() {
+        List<RoutePlanner.Stop> viewpoints = Arrays.asList(
+                stop("c", 3, FORWARD), stop("a", 1, FORWARD), stop("b", 2, FORWARD));
+        RoutePlanner.Stop astronaut = stop("astronaut", 4, FORWARD);
+
+        RoutePlanner.Plan plan = planner.plan(ORIGIN, FORWARD, viewpoints, astronaut);
+
+        assertEquals(Arrays.asList("a", "b", "c", "astronaut"), names(plan.waypoints));
+        assertEquals(Arrays.asList("a", "b", "c"), names(plan.getViewpoints()));
+        long[] legs = new long[4];
+        for (int i = 0; i < legs.length; i++) {
+            legs[i] = plan.waypoints.get(i).legMillis;
+        }
+        assertArrayEquals(new long[]{1100, 1100, 1100, 1100}, legs);
+        // Back from the astronaut to x = 1, 2 or 3
+        assertEquals((3100 + 2100 + 1100) / 3, plan.expectedRevisitMillis);
+        assertEquals(4 * 1100 + plan.expectedRevisitMillis, plan.totalMillis);
+    }
+
+    @Test
+    public void attitudeWithoutATurnIsPicked() {
+        RoutePlanner.Stop viewpoint = stop("a", 1, BACKWARD, FORWARD);
+
+        RoutePlanner.Plan plan = planner.plan(ORIGIN, FORWARD,
+                Arrays.asList(viewpoint), stop("astronaut", 2, FORWARD));
+
+        assertSame(FORWARD, plan.waypoints.get(0).attitude);
+        assertSame(FORWARD, plan.waypoints.get(1).attitude);
+    }
+
+    @Test
+    public void planMatchesExhaustiveSearch() {
+        Random random = new Random(42);
+        for (int round = 0; round < 50; round++) {
+            int n = 2 + random.nextInt(4);
+            List<RoutePlanner.Stop> viewpoints = new ArrayList<RoutePlanner.Stop>();
+            for (int s = 0; s < n; s++) {
+                double[][] attitudes = new double[1 + random.nextInt(2)][];
+                for (int a = 0; a < attitudes.length; a++) {
+                    attitudes[a] = randomAttitude(random);
+                }
+                viewpoints.add(new RoutePlanner.Stop("s" + s, s, new int[]{s + 1}, randomPosition(random), attitudes));
+            }
+            RoutePlanner.Stop astronaut = new RoutePlanner.Stop("astronaut", -1, new int[0],
+                    randomPosition(random), randomAttitude(random));
+            double[] startPosition = randomPosition(random);
+            double[] startAttitude = randomAttitude(random);
+
+            RoutePlanner.Plan plan = planner.plan(startPosition, startAttitude, viewpoints, astronaut);
+
+            assertEquals(n + 1, plan.waypoints.size());
+            long planned = 0;
+            double[] position = startPosition;
+            double[] attitude = startAttitude;
+            for (RoutePlanner.Waypoint waypoint : plan.waypoints) {
+                assertEquals(planner.legMillis(position, attitude, waypoint.stop.position, waypoint.attitude),
+                        waypoint.legMillis);
+                planned += waypoint.legMillis;
+                position = waypoint.stop.position;
+                attitude = waypoint.attitude;
+            }
+            for (RoutePlanner.Waypoint waypoint : plan.getViewpoints()) {
+                planned += revisitShare(waypoint.stop, waypoint.attitude, astronaut, n);
+            }
+            long best = cheapest(startPosition, startAttitude, viewpoints, astronaut,
+                    new boolean[n], 0, Long.MAX_VALUE);
+            assertEquals("round " + round, best, planned);
+        }
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void noViewpointsIsRejected() {
+        planner.plan(ORIGIN, FORWARD, new ArrayList<RoutePlanner.Stop>(), stop("astronaut", 1, FORWARD));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void stopWithoutAttitudeIsRejected() {
+        stop("a", 1);
+    }
+
+    private long revisitShare(RoutePlanner.Stop stop, double[] attitude, RoutePlanner.Stop astronaut, int n) {
+        return planner.legMillis(astronaut.position, astronaut.attitudes[0], stop.position, attitude) / n;
+    }
+
+    /**
+     * Cheapest cost over every order and attitude, counted the way the planner does: legs,
+     * the final leg to the astronaut and each viewpoint's share of the revisit.
+     */
+    private long cheapest(double[] position, double[] attitude, List<RoutePlanner.Stop> viewpoints,
+                          RoutePlanner.Stop astronaut, boolean[] visited, long spent, long best) {
+        boolean any = false;
+        for (int s = 0; s < viewpoints.size(); s++) {
+            if (visited[s]) {
+                continue;
+            }
+            any = true;
+            RoutePlanner.Stop stop = viewpoints.get(s);
+            visited[s] = true;
+            for (double[] next : stop.attitudes) {
+                long cost = spent + planner.legMillis(position, attitude, stop.position, next)
+                        + revisitShare(stop, next, astronaut, viewpoints.size());
+                best = cheapest(stop.position, next, viewpoints, astronaut, visited, cost, best);
+            }
+            visited[s] = false;
+        }
+        if (!any) {
+            best = Math.min(best, spent
+                    + planner.legMillis(position, attitude, astronaut.position, astronaut.attitudes[0]));
+        }
+        return best;
+    }
+
+    private static double[] randomPosition(Random random) {
+        return new double[]{10 + 2 * random.nextDouble(), -10 + 2 * random.nextDouble(), 4 + random.nextDouble()};
+    }
+
+    private static double[] randomAttitude(Random random) {
+        double[] q = {random.nextGaussian(), random.nextGaussian(), random.nextGaussian(), random.nextGaussian()};
+        double norm = Math.sqrt(q[0] * q[0] + q[1] * q[1] + q[2] * q[2] + q[3] * q[3]);
+        for (int i = 0; i < 4; i++) {
+            q[i] /= norm;
+        }
+        return q;
+    }
+}
@@ -0,0 +1,85 @@
+package jp.jaxa.iss.kibo.rpc.sampleapk;
+
+import org.junit.Test;
+import org.opencv.core.Rect;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class TileLayoutTest {
+    private static List<Integer> xs(List<Rect> tiles) {
+        List<Integer> xs = new ArrayList<Integer>();
+        for (Rect tile : tiles) {
+            if (!xs.contains(tile.x)) {
+                xs.add(tile.x);
+            }
+        }
+        return xs;
+    }
+
+    @Test
+    public void navCamCropBecomesThreeByTwoModelSizeTiles() {
+        List<Rect> tiles = new TileLayout(320, 64).tiles(640, 480);
+
+        assertEquals(6, tiles.size());
+        int[][] expected = {{0, 0}, {160, 0}, {320, 0}, {0, 160}, {160, 160}, {320, 160}};
+        for (int i = 0; i < expected.length; i++) {
+            assertEquals(new Rect(expected[i][0], expected[i][1], 320, 320), tiles.get(i));
+        }
+    }
+
+    @Test
+    public void cropWithinATileIsOneTileOfItsOwnSize() {
+        List<Rect> tiles = new TileLayout(320, 64).tiles(200, 320);
+
+        assertEquals(1, tiles.size());
+        assertEquals(new Rect(0, 0, 200, 320), tiles.get(0));
+    }
+
+    @Test
+    public void shortSideIsNotSplit() {
+        List<Rect> tiles = new TileLayout(320, 64).tiles(500, 200);
+
+        assertEquals(2, tiles.size());
+        assertEquals(new Rect(0, 0, 320, 200), tiles.get(0));
+        assertEquals(new Rect(180, 0, 320, 200), tiles.get(1));
+    }
+
+    @Test
+    public void fewestTilesCoverEveryPixelWithTheOverlap() {
+        Random random = new Random(50);
+        for (int round = 0; round < 500; round++) {
+            int tileSize = 16 + random.nextInt(400);
+            int overlap = random.nextInt(tileSize);
+            int length = 1 + random.nextInt(2000);
+            List<Integer> starts = xs(new TileLayout(tileSize, overlap).tiles(length, 1));
+            String context = "tile " + tileSize + ", overlap " + overlap + ", length " + length;
+
+            assertEquals(context, 0, (int) starts.get(0));
+            int width = Math.min(tileSize, length);
+            assertEquals(context, length, starts.get(starts.size() - 1) + width);
+            for (int i = 1; i < starts.size(); i++) {
+                assertTrue(context, starts.get(i - 1) + tileSize - starts.get(i) >= overlap);
+            }
+            if (starts.size() > 1) {
+                // One tile less cannot reach the end with the overlap
+                int fewer = starts.size() - 1;
+                assertTrue(context, tileSize + (fewer - 1) * (tileSize - overlap) < length);
+            }
+        }
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void overlapOfAWholeTileIsRejected() {
+        new TileLayout(320, 320);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void emptyTileIsRejected() {
+        new TileLayout(0, 0);
+    }
+}
@@ -0,0 +1,104 @@
+package jp.jaxa.iss.kibo.rpc.sampleapk;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+
+public class TileMergeTest {
+    private static final float THRESHOLD = 0.6f;
+    private static final int CRYSTAL = 3;
+    private static final int COIN = 0;
+
+    // Post-processing only, no model
+    private static final YOLODetectionService SERVICE = new YOLODetectionService();
+
+    private static YOLODetectionService.DetectionCandidate box(float left, float top, float right, float bottom,
+                                                               float confidence, int classId) {
+        return new YOLODetectionService.DetectionCandidate((left + right) / 2, (top + bottom) / 2,
+                right - left, bottom - top, confidence, classId);
+    }
+
+    @SafeVarargs
+    private static List<YOLODetectionService.DetectionCandidate> merge(
+            List<YOLODetectionService.DetectionCandidate>... perTile) {
+        return SERVICE.mergeTileCandidates(Arrays.asList(perTile), THRESHOLD);
+    }
+
+    @Test
+    public void truncatedBoxOnASeamGoesToTheFullBox() {
+        // Tiles [0, 320) and [160, 480): the object spans 280..360, the first tile cuts it at 320
+        YOLODetectionService.DetectionCandidate cut = box(280, 100, 320, 140, 0.6f, CRYSTAL);
+        YOLODetectionService.DetectionCandidate full = box(280, 100, 360, 140, 0.9f, CRYSTAL);
+
+        List<YOLODetectionService.DetectionCandidate> kept = merge(Arrays.asList(cut), Arrays.asList(full));
+
+        assertEquals(1, kept.size());
+        assertSame(full, kept.get(0));
+    }
+
+    @Test
+    public void moreConfidentBoxWinsEvenWhenTruncated() {
+        YOLODetectionService.DetectionCandidate cut = box(280, 100, 320, 140, 0.9f, CRYSTAL);
+        YOLODetectionService.DetectionCandidate full = box(280, 100, 360, 140, 0.6f, CRYSTAL);
+
+        List<YOLODetectionService.DetectionCandidate> kept = merge(Arrays.asList(cut), Arrays.asList(full));
+
+        assertEquals(1, kept.size());
+        assertSame(cut, kept.get(0));
+    }
+
+    @Test
+    public void boxesOfTheSameTileAreLeftToNms() {
+        YOLODetectionService.DetectionCandidate a = box(0, 0, 40, 40, 0.9f, COIN);
+        YOLODetectionService.DetectionCandidate b = box(5, 5, 45, 45, 0.8f, COIN);
+
+        assertEquals(2, merge(Arrays.asList(a, b)).size());
+    }
+
+    @Test
+    public void otherClassesAndSmallOverlapsAreKept() {
+        YOLODetectionService.DetectionCandidate crystal = box(0, 0, 40, 40, 0.9f, CRYSTAL);
+        YOLODetectionService.DetectionCandidate coin = box(0, 0, 40, 40, 0.8f, COIN);
+        // Half of the smaller box covered, below the threshold
+        YOLODetectionService.DetectionCandidate neighbour = box(20, 0, 60, 40, 0.7f, CRYSTAL);
+
+        List<YOLODetectionService.DetectionCandidate> kept = merge(
+                Arrays.asList(crystal), Arrays.asList(coin, neighbour));
+
+        assertEquals(Arrays.asList(crystal, coin, neighbour), kept);
+    }
+
+    @Test
+    public void suppressedBoxDoesNotSuppressFurther() {
+        YOLODetectionService.DetectionCandidate first = box(0, 0, 40, 40, 0.9f, CRYSTAL);
+        YOLODetectionService.DetectionCandidate second = box(10, 0, 50, 40, 0.8f, CRYSTAL);
+        // Covered by the second box only
+        YOLODetectionService.DetectionCandidate third = box(45, 0, 55, 40, 0.7f, CRYSTAL);
+
+        List<YOLODetectionService.DetectionCandidate> kept = merge(
+                Arrays.asList(first), Arrays.asList(second), Arrays.asList(third));
+
+        assertEquals(Arrays.asList(first, third), kept);
+    }
+
+    @Test
+    public void keptBoxesAreOrderedByConfidence() {
+        YOLODetectionService.DetectionCandidate low = box(0, 0, 10, 10, 0.3f, COIN);
+        YOLODetectionService.DetectionCandidate high = box(100, 0, 110, 10, 0.9f, COIN);
+        YOLODetectionService.DetectionCandidate middle = box(200, 0, 210, 10, 0.5f, COIN);
+
+        assertEquals(Arrays.asList(high, middle, low),
+                merge(Arrays.asList(low), Arrays.asList(high, middle)));
+    }
+
+    @Test
+    public void noTiles() {
+        assertEquals(0, SERVICE.mergeTileCandidates(
+                new ArrayList<List<YOLODetectionService.DetectionCandidate>>(), THRESHOLD).size());
+    }
+}
@@ -0,0 +1,131 @@
+#!/usr/bin/env python3
+"""Move YOLO pre- and post-processing into the ONNX graph.
+
+The fused model takes the resized image as uint8 [1, 320, 320, C] (C = 1 for the gray
+NavCam crops, 3 for RGB) and does cast, /255, NHWC -> NCHW (and gray -> 3 channels) in the
+graph. After the original [1, 15, 2100] output it splits boxes and class scores and runs
+NonMaxSuppression per class. The only output is detections [N, 6]: cx, cy, w, h, score,
+class id, in model input pixels.
+
+conf_threshold and iou_threshold are float [1] inputs, so YOLODetectionService still
+chooses them per call. It recognises a fused model by its uint8 input. It runs the
+treasure / landmark rules on the detections, with the looser of its two NMS thresholds
+fed into the graph. Package the result as best.onnx, or as best_int8.onnx when fusing the
+quantised model from quantize_int8.py.
+
+Requires: onnx.
+
+    python3 YOLO/fuse_pre_post.py --model YOLO/best.onnx --output YOLO/best_fused.onnx --channels 1
+"""
+
+import argparse
+import sys
+
+import numpy as np
+import onnx
+from onnx import TensorProto, helper, numpy_helper
+
+INPUT_SIZE = 320
+BOX_FEATURES = 4
+
+
+def const(name, values, dtype):
+    return numpy_helper.from_array(np.array(values, dtype=dtype), name)
+
+
+def main():
+    parser = argparse.ArgumentParser(description=__doc__.split("\n")[0])
+    parser.add_argument("--model", default="YOLO/best.onnx")
+    parser.add_argument("--output", default="YOLO/best_fused.onnx")
+    parser.add_argument("--channels", type=int, choices=[1, 3], default=1,
+                        help="1: gray input (mission crops), 3: RGB input")
+    parser.add_argument("--max-per-class", type=int, default=100,
+                        help="NonMaxSuppression max_output_boxes_per_class")
+    args = parser.parse_args()
+
+    model = onnx.load(args.model)
+    graph = model.graph
+    opset = next(o.version for o in model.opset_import if o.domain in ("", "ai.onnx"))
+    if opset < 11:
+        sys.exit("opset %d too old, NonMaxSuppression needs 11" % opset)
+    if len(graph.input) != 1 or len(graph.output) != 1:
+        sys.exit("expected a single input and output, as exported by Ultralytics")
+
+    image_name = graph.input[0].name
+    raw_output = graph.output[0].name
+    float_input = image_name + "_f32"
+    for node in graph.node:
+        for i, name in enumerate(node.input):
+            if name == image_name:
+                node.input[i] = float_input
+
+    p = "fused/"
+    pre = [
+        helper.make_node("Cast", [image_name], [p + "x_float"], to=TensorProto.FLOAT),
+        helper.make_node("Mul", [p + "x_float", p + "inv255"], [p + "x_norm"]),
+        helper.make_node("Transpose", [p + "x_norm"],
+                         [float_input if args.channels == 3 else p + "x_chw"], perm=[0, 3, 1, 2]),
+    ]
+    if args.channels == 1:
+        pre.append(helper.make_node("Tile", [p + "x_chw", p + "gray_repeats"], [float_input]))
+
+    # Squeeze / Unsqueeze take axes as an input from opset 13 on, as an attribute before
+    def squeeze(op, data, output, axes):
+        if opset >= 13:
+            return helper.make_node(op, [data, p + "axis%d" % axes[0]], [output])
+        return helper.make_node(op, [data], [output], axes=axes)
+
+    post = [
+        helper.make_node("Slice", [raw_output, p + "axis0", p + "box_end", p + "axis1"], [p + "boxes_cf"]),
+        helper.make_node("Transpose", [p + "boxes_cf"], [p + "boxes"], perm=[0, 2, 1]),
+        helper.make_node("Slice", [raw_output, p + "box_end", p + "feature_end", p + "axis1"], [p + "scores"]),
+        helper.make_node("NonMaxSuppression",
+                         [p + "boxes", p + "scores", p + "max_per_class", "iou_threshold", "conf_threshold"],
+                         [p + "selected"], center_point_box=1),
+        helper.make_node("Gather", [p + "selected", p + "index2"], [p + "box_index"], axis=1),
+        helper.make_node("Gather", [p + "selected", p + "index1"], [p + "class_index"], axis=1),
+        squeeze("Squeeze", p + "boxes", p + "boxes_2d", [0]),
+        helper.make_node("Gather", [p + "boxes_2d", p + "box_index"], [p + "selected_boxes"], axis=0),
+        helper.make_node("GatherND", [p + "scores", p + "selected"], [p + "selected_scores"]),
+        squeeze("Unsqueeze", p + "selected_scores", p + "score_column", [1]),
+        helper.make_node("Cast", [p + "class_index"], [p + "class_float"], to=TensorProto.FLOAT),
+        squeeze("Unsqueeze", p + "class_float", p + "class_column", [1]),
+        helper.make_node("Concat", [p + "selected_boxes", p + "score_column", p + "class_column"],
+                         ["detections"], axis=1),
+    ]
+
+    features = graph.output[0].type.tensor_type.shape.dim[1].dim_value or 15
+    graph.initializer.extend([
+        const(p + "inv255", 1.0 / 255.0, np.float32),
+        const(p + "gray_repeats", [1, 3, 1, 1], np.int64),
+        const(p + "axis0", [0], np.int64),
+        const(p + "axis1", [1], np.int64),
+        const(p + "box_end", [BOX_FEATURES], np.int64),
+        const(p + "feature_end", [features], np.int64),
+        const(p + "max_per_class", [args.max_per_class], np.int64),
+        const(p + "index1", 1, np.int64),
+        const(p + "index2", 2, np.int64),
+    ])
+
+    nodes = pre + list(graph.node) + post
+    del graph.node[:]
+    graph.node.extend(nodes)
+
+    del graph.input[:]
+    graph.input.extend([
+        helper.make_tensor_value_info(image_name, TensorProto.UINT8, [1, INPUT_SIZE, INPUT_SIZE, args.channels]),
+        helper.make_tensor_value_info("conf_threshold", TensorProto.FLOAT, [1]),
+        helper.make_tensor_value_info("iou_threshold", TensorProto.FLOAT, [1]),
+    ])
+    del graph.output[:]
+    graph.output.extend([helper.make_tensor_value_info("detections", TensorProto.FLOAT, ["N", 6])])
+
+    onnx.checker.check_model(model)
+    model = onnx.shape_inference.infer_shapes(model)
+    onnx.save(model, args.output)
+    print("wrote %s: uint8 [1, %d, %d, %d] in, detections [N, 6] out"
+          % (args.output, INPUT_SIZE, INPUT_SIZE, args.channels))
+
+
+if __name__ == "__main__":
+    main()
@@ -0,0 +1,147 @@
+#!/usr/bin/env python3
+"""Static INT8 quantisation of best.onnx, calibrated on mission model inputs.
+
+Produces a QDQ model (uint8 activations, per-channel int8 weights) for ONNX Runtime.
+YOLODetectionService loads best_int8.onnx instead of best.onnx when it is packaged in
+the app assets. On the desktop, compare both models with
+
+    ./gradlew :desktop:quantizationReport -PreportArgs="<images dir> YOLO/best.onnx YOLO/best_int8.onnx"
+
+Calibration images are model inputs as the mission produces them: area_N_final.png and
+target_final.png saved by a run (DebugImageWriter), or by the desktop replay run on
+synthetic scenes (:desktop:generateScenes, then :desktop:replay with an output dir). Any
+other PNG/JPEG is used as is. The preprocessing matches YOLODetectionService.preprocessImage
+and matToFloatArray: gray/BGR to RGB, resize to 320x320, scale to [0, 1], NCHW.
+
+The detection head after the last convolutions (DFL, sigmoid, box decoding, concat) stays
+in FP32 by default. Its output mixes pixel coordinates (0..320) with class scores (0..1),
+and one shared uint8 scale would erase the scores.
+
+Requires: onnx, onnxruntime (>= 1.16, same minor as the app is best), numpy, opencv-python.
+
+    python3 YOLO/quantize_int8.py --calibration run_images/ synthetic_crops/
+"""
+
+import argparse
+import glob
+import os
+import random
+import sys
+
+import cv2
+import numpy as np
+import onnx
+from onnxruntime.quantization import (CalibrationDataReader, CalibrationMethod, QuantFormat,
+                                      QuantType, quantize_static)
+from onnxruntime.quantization.shape_inference import quant_pre_process
+
+INPUT_NAME = "images"
+INPUT_SIZE = 320
+IMAGE_PATTERNS = ("*.png", "*.jpg", "*.jpeg")
+# Intermediate images the mission saves next to the model inputs
+SKIPPED_SUFFIXES = ("_raw.png", "_warped.png", "_clahe.png", "_with_frame.png", "_undistorted.png")
+
+
+def find_images(dirs, limit, seed):
+    files = []
+    for directory in dirs:
+        for pattern in IMAGE_PATTERNS:
+            files.extend(glob.glob(os.path.join(directory, "**", pattern), recursive=True))
+    files = sorted(f for f in set(files) if not f.endswith(SKIPPED_SUFFIXES))
+    if limit and len(files) > limit:
+        random.Random(seed).shuffle(files)
+        files = sorted(files[:limit])
+    return files
+
+
+def preprocess(path):
+    """Same tensor as YOLODetectionService.runInference builds for this image."""
+    image = cv2.imread(path, cv2.IMREAD_UNCHANGED)
+    if image is None:
+        return None
+    if image.ndim == 2:
+        image = cv2.cvtColor(image, cv2.COLOR_GRAY2RGB)
+    elif image.shape[2] == 4:
+        image = cv2.cvtColor(image, cv2.COLOR_BGRA2RGB)
+    else:
+        image = cv2.cvtColor(image, cv2.COLOR_BGR2RGB)
+    image = cv2.resize(image, (INPUT_SIZE, INPUT_SIZE), interpolation=cv2.INTER_LINEAR)
+    tensor = image.astype(np.float32) / 255.0
+    return np.ascontiguousarray(tensor.transpose(2, 0, 1)[np.newaxis])
+
+
+class ImageReader(CalibrationDataReader):
+    def __init__(self, files):
+        self.files = iter(files)
+
+    def get_next(self):
+        for path in self.files:
+            tensor = preprocess(path)
+            if tensor is not None:
+                return {INPUT_NAME: tensor}
+            print("skipping undecodable " + path, file=sys.stderr)
+        return None
+
+
+def head_nodes(model):
+    """Non-Conv nodes of the module producing the graph output, e.g. /model.22/ for YOLOv8."""
+    output_name = model.graph.output[0].name
+    producer = next((n for n in model.graph.node if output_name in n.output), None)
+    if producer is None or not producer.name.startswith("/") or producer.name.count("/") < 2:
+        return []
+    prefix = producer.name[:producer.name.index("/", 1) + 1]
+    return [n.name for n in model.graph.node if n.name.startswith(prefix) and n.op_type != "Conv"]
+
+
+def main():
+    parser = argparse.ArgumentParser(description=__doc__.split("\n")[0])
+    parser.add_argument("--model", default="YOLO/best.onnx")
+    parser.add_argument("--output", default="YOLO/best_int8.onnx")
+    parser.add_argument("--calibration", nargs="+", required=True,
+                        help="directories searched recursively for calibration images")
+    parser.add_argument("--max-images", type=int, default=300)
+    parser.add_argument("--seed", type=int, default=1)
+    parser.add_argument("--method", choices=["minmax", "percentile", "entropy"], default="percentile")
+    parser.add_argument("--per-tensor", action="store_true", help="per-tensor instead of per-channel weights")
+    parser.add_argument("--quantize-head", action="store_true", help="also quantise the detection head")
+    args = parser.parse_args()
+
+    files = find_images(args.calibration, args.max_images, args.seed)
+    if not files:
+        sys.exit("no calibration images found in " + ", ".join(args.calibration))
+    print("calibrating on %d images" % len(files))
+
+    # Shape inference and constant folding first, as recommended for static quantisation
+    prepared = os.path.splitext(args.output)[0] + "_prep.onnx"
+    quant_pre_process(args.model, prepared, skip_optimization=False)
+
+    excluded = [] if args.quantize_head else head_nodes(onnx.load(prepared))
+    if excluded:
+        print("keeping %d detection head nodes in FP32" % len(excluded))
+
+    methods = {
+        "minmax": CalibrationMethod.MinMax,
+        "percentile": CalibrationMethod.Percentile,
+        "entropy": CalibrationMethod.Entropy,
+    }
+    quantize_static(
+        prepared,
+        args.output,
+        ImageReader(files),
+        quant_format=QuantFormat.QDQ,
+        activation_type=QuantType.QUInt8,
+        weight_type=QuantType.QInt8,
+        per_channel=not args.per_tensor,
+        calibrate_method=methods[args.method],
+        nodes_to_exclude=excluded,
+        extra_options={"CalibPercentile": 99.99} if args.method == "percentile" else {},
+    )
+    os.remove(prepared)
+
+    before = os.path.getsize(args.model) / 1e6
+    after = os.path.getsize(args.output) / 1e6
+    print("wrote %s (%.1f MB, FP32 %.1f MB)" % (args.output, after, before))
+
+
+if __name__ == "__main__":
+    main()